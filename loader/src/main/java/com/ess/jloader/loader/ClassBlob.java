@@ -0,0 +1,171 @@
+package com.ess.jloader.loader;
+
+import com.ess.jloader.utils.Utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * All packed classes of a pack stored back to back in the single entry {@link PackClassLoader#CLASSES_ENTRY_NAME}.
+ * The name index is sorted by {@link String#hashCode()} of JVM class names, a class is found by a binary search
+ * straight in the mapped entry, no zip entries are involved. Class data keep the order they were written in
+ * (e.g. the load order), so the index holds the offset and the size of every class. See packer/doc/format.txt
+ * for the layout.
+ *
+ * @author Sergey Evdokimov
+ */
+public class ClassBlob {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int HEADER_SIZE = 1 + 1 + 4;
+
+    private final ByteBuffer buffer;
+
+    private final int count;
+
+    private final int hashesStart;
+    private final int nameOffsetsStart;
+    private final int dataOffsetsStart;
+    private final int dataSizesStart;
+    private final int namesStart;
+    private final int dataStart;
+
+    public ClassBlob(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        if (buffer.limit() < HEADER_SIZE || buffer.get(0) != Utils.MAGIC || buffer.get(1) != Utils.PACKER_VERSION) {
+            throw new IOException("Invalid class blob");
+        }
+
+        count = buffer.getInt(2);
+        if (count < 0 || count > (buffer.limit() - HEADER_SIZE) / 16) throw new IOException("Invalid class blob");
+
+        hashesStart = HEADER_SIZE;
+        nameOffsetsStart = hashesStart + count * 4;
+        dataOffsetsStart = nameOffsetsStart + (count + 1) * 4;
+        dataSizesStart = dataOffsetsStart + count * 4;
+        namesStart = dataSizesStart + count * 4;
+
+        if (namesStart > buffer.limit()) throw new EOFException();
+
+        dataStart = namesStart + buffer.getInt(nameOffsetsStart + count * 4);
+
+        if (dataStart < namesStart || dataStart > buffer.limit()) throw new EOFException();
+    }
+
+    public int getClassCount() {
+        return count;
+    }
+
+    /**
+     * @return the index of the class or -1 if the blob doesn't contain the class.
+     */
+    public int find(String jvmClassName) {
+        int hash = jvmClassName.hashCode();
+
+        int low = 0;
+        int high = count;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if (buffer.getInt(hashesStart + mid * 4) < hash) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+
+        for (int i = low; i < count && buffer.getInt(hashesStart + i * 4) == hash; i++) {
+            if (nameEquals(i, jvmClassName)) return i;
+        }
+
+        return -1;
+    }
+
+    private boolean nameEquals(int index, String name) {
+        int offset = namesStart + buffer.getInt(nameOffsetsStart + index * 4);
+        int length = namesStart + buffer.getInt(nameOffsetsStart + index * 4 + 4) - offset;
+
+        int n = name.length();
+
+        if (length < n) return false; // UTF-8 never takes less bytes than chars
+
+        if (length == n) {
+            // Class names are ASCII in most cases, compare them without encoding
+            int i = 0;
+            while (i < n) {
+                char c = name.charAt(i);
+                if (c >= 0x80) break;
+
+                if (buffer.get(offset + i) != c) return false;
+
+                i++;
+            }
+
+            if (i == n) return true;
+        }
+
+        byte[] bytes = name.getBytes(UTF_8);
+        if (bytes.length != length) return false;
+
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != bytes[i]) return false;
+        }
+
+        return true;
+    }
+
+    public String getName(int index) throws IOException {
+        int offset = namesStart + buffer.getInt(nameOffsetsStart + index * 4);
+        int length = namesStart + buffer.getInt(nameOffsetsStart + index * 4 + 4) - offset;
+
+        byte[] bytes = new byte[length];
+        read(offset, bytes);
+
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * @return the packed class, the same data as the content of the .class entry in a pack without the blob.
+     */
+    public byte[] read(int index) throws IOException {
+        byte[] res = new byte[getSize(index)];
+        read(index, res, 0);
+
+        return res;
+    }
+
+    /**
+     * @return size of the packed class.
+     */
+    public int getSize(int index) throws IOException {
+        int res = buffer.getInt(dataSizesStart + index * 4);
+        if (res < 0) throw new EOFException();
+
+        return res;
+    }
+
+    /**
+     * Copies the packed class to the array, see {@link #getSize(int)}.
+     */
+    public void read(int index, byte[] dest, int destOffset) throws IOException {
+        read(dataStart + buffer.getInt(dataOffsetsStart + index * 4), dest, destOffset, getSize(index));
+    }
+
+    private void read(int position, byte[] dest) throws IOException {
+        read(position, dest, 0, dest.length);
+    }
+
+    private void read(int position, byte[] dest, int destOffset, int length) throws IOException {
+        if (position < 0 || length > buffer.limit() - position) throw new EOFException();
+
+        ByteBuffer b = buffer.duplicate(); // the buffer is shared between threads
+        b.position(position);
+        b.get(dest, destOffset, length);
+    }
+}
@@ -0,0 +1,212 @@
+package com.ess.jloader.loader;
+
+import com.ess.jloader.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Access flags, super class, interfaces and class-level annotations of all classes of a pack, written by the packer
+ * to {@link PackClassLoader#CLASS_INDEX_ENTRY_NAME}. Lets classpath scanners select candidate classes without
+ * unpacking them. All names are JVM names (like "java/lang/Object"), queries return direct matches only, the class
+ * hierarchy is not traversed.
+ * <p/>
+ * The index is columnar: every referenced name is stored once and the per-class columns hold name ids, so a query
+ * resolves its argument to an id once and compares integers.
+ *
+ * @author Sergey Evdokimov
+ */
+public class ClassMetadataIndex {
+
+    /**
+     * Sorted names of classes, super classes, interfaces and annotations.
+     */
+    private final String[] names;
+
+    /**
+     * Per-class columns, classes are sorted by name.
+     */
+    private final int[] classNames;
+    private final int[] access;
+    private final int[] superClasses;
+
+    private final int[] interfaceOffsets;
+    private final int[] interfaces;
+
+    private final int[] annotationOffsets;
+    private final int[] annotations;
+
+    public ClassMetadataIndex(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+        if (in.readByte() != Utils.MAGIC || in.readByte() != Utils.PACKER_VERSION) {
+            throw new IOException("Invalid class index");
+        }
+
+        names = new String[checkCount(in.readInt(), data)];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = in.readUTF();
+        }
+
+        int classCount = checkCount(in.readInt(), data);
+
+        classNames = readIds(in, classCount);
+
+        access = new int[classCount];
+        for (int i = 0; i < classCount; i++) {
+            access[i] = in.readUnsignedShort();
+        }
+
+        superClasses = readIds(in, classCount);
+
+        interfaceOffsets = readOffsets(in, classCount, data);
+        interfaces = readIds(in, interfaceOffsets[classCount]);
+
+        annotationOffsets = readOffsets(in, classCount, data);
+        annotations = readIds(in, annotationOffsets[classCount]);
+    }
+
+    private static int checkCount(int count, byte[] data) throws IOException {
+        if (count < 0 || count > data.length) throw new IOException("Invalid class index");
+        return count;
+    }
+
+    private int[] readIds(DataInputStream in, int count) throws IOException {
+        int[] res = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            int id = in.readInt();
+            if (id < -1 || id >= names.length) throw new IOException("Invalid class index");
+
+            res[i] = id;
+        }
+
+        return res;
+    }
+
+    private static int[] readOffsets(DataInputStream in, int classCount, byte[] data) throws IOException {
+        int[] res = new int[classCount + 1];
+
+        for (int i = 0; i <= classCount; i++) {
+            res[i] = in.readInt();
+            if (res[i] < (i == 0 ? 0 : res[i - 1])) throw new IOException("Invalid class index");
+        }
+
+        checkCount(res[classCount], data);
+
+        return res;
+    }
+
+    private int getNameId(String name) {
+        int res = Arrays.binarySearch(names, name);
+        return res < 0 ? -1 : res;
+    }
+
+    public int getClassCount() {
+        return classNames.length;
+    }
+
+    /**
+     * @return the position of the class in the index or -1 if the pack doesn't contain the class.
+     */
+    public int indexOf(String className) {
+        int nameId = getNameId(className);
+        if (nameId < 0) return -1;
+
+        int res = Arrays.binarySearch(classNames, nameId); // both names and classes are sorted
+        return res < 0 ? -1 : res;
+    }
+
+    public String getClassName(int index) {
+        return names[classNames[index]];
+    }
+
+    /**
+     * @return access flags of the class file (not of the InnerClasses attribute).
+     */
+    public int getAccess(int index) {
+        return access[index];
+    }
+
+    /**
+     * @return the super class or <code>null</code> for java/lang/Object.
+     */
+    public String getSuperClass(int index) {
+        int id = superClasses[index];
+        return id < 0 ? null : names[id];
+    }
+
+    public String[] getInterfaces(int index) {
+        return getNames(interfaces, interfaceOffsets[index], interfaceOffsets[index + 1]);
+    }
+
+    /**
+     * @return types of visible and invisible class-level annotations.
+     */
+    public String[] getAnnotations(int index) {
+        return getNames(annotations, annotationOffsets[index], annotationOffsets[index + 1]);
+    }
+
+    private String[] getNames(int[] ids, int from, int to) {
+        String[] res = new String[to - from];
+        for (int i = from; i < to; i++) {
+            res[i - from] = names[ids[i]];
+        }
+
+        return res;
+    }
+
+    /**
+     * @return classes directly extending the class.
+     */
+    public List<String> findSubclasses(String superClass) {
+        List<String> res = new ArrayList<String>();
+
+        int id = getNameId(superClass);
+        if (id < 0) return res;
+
+        for (int i = 0; i < superClasses.length; i++) {
+            if (superClasses[i] == id) {
+                res.add(getClassName(i));
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * @return classes and interfaces directly implementing or extending the interface.
+     */
+    public List<String> findImplementations(String interfaceName) {
+        return findByName(interfaceName, interfaceOffsets, interfaces);
+    }
+
+    /**
+     * @return classes annotated with the annotation type.
+     */
+    public List<String> findAnnotatedClasses(String annotationType) {
+        return findByName(annotationType, annotationOffsets, annotations);
+    }
+
+    private List<String> findByName(String name, int[] offsets, int[] ids) {
+        List<String> res = new ArrayList<String>();
+
+        int id = getNameId(name);
+        if (id < 0) return res;
+
+        for (int i = 0; i < classNames.length; i++) {
+            for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+                if (ids[j] == id) {
+                    res.add(getClassName(i));
+                    break;
+                }
+            }
+        }
+
+        return res;
+    }
+}
@@ -0,0 +1,298 @@
+package com.ess.jloader.loader;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Unpacks classes ahead of the application following a recorded load-order profile (see {@link LoadOrderProfile}).
+ * Worker threads never run more than <code>window</code> profile positions ahead of the last class requested by
+ * the application. Unpacked classes are parked in a cache bounded by <code>maxCachedBytes</code>, the oldest
+ * entries are dropped first.
+ *
+ * @author Sergey Evdokimov
+ */
+public class ClassPrefetcher implements Closeable {
+
+    public static final int DEFAULT_WINDOW = 512;
+
+    public static final long DEFAULT_MAX_CACHED_BYTES = 16 * 1024 * 1024;
+
+    private final PackClassLoader loader;
+
+    private final String[] order;
+    private final Map<String, Integer> positions;
+
+    private final int window;
+    private final long maxCachedBytes;
+
+    /**
+     * Prefetched classes in the order they were unpacked, the oldest are evicted first. Guarded by itself.
+     */
+    private final LinkedHashMap<String, byte[]> ready = new LinkedHashMap<String, byte[]>();
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * The highest profile position requested by the application.
+     */
+    private final AtomicInteger consumed = new AtomicInteger(-1);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition progress = lock.newCondition();
+    private final AtomicInteger waitingWorkers = new AtomicInteger();
+
+    private final List<Thread> workers = new ArrayList<Thread>();
+
+    private volatile boolean closed;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong prefetchedCount = new AtomicLong();
+    private final AtomicLong wastedCount = new AtomicLong();
+
+    public ClassPrefetcher(PackClassLoader loader, List<String> loadOrder, int threadCount, int window, long maxCachedBytes) {
+        if (threadCount <= 0) throw new IllegalArgumentException("threadCount must be positive: " + threadCount);
+
+        this.loader = loader;
+        this.window = window;
+        this.maxCachedBytes = maxCachedBytes;
+
+        order = loadOrder.toArray(new String[loadOrder.size()]);
+
+        positions = new HashMap<String, Integer>(order.length * 4 / 3 + 1);
+        for (int i = order.length; --i >= 0; ) {
+            positions.put(order[i], i);
+        }
+
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(new Worker(), "jloader-prefetch-" + i);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            workers.add(thread);
+        }
+    }
+
+    public void start() {
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * Removes a prefetched class from the cache.
+     *
+     * @return unpacked class or <code>null</code> if the class has not been prefetched yet.
+     */
+    public byte[] take(String jvmClassName) {
+        Integer position = positions.get(jvmClassName);
+        if (position == null) return null;
+
+        advance(position);
+
+        byte[] res = remove(jvmClassName);
+
+        if (res != null) {
+            hitCount.incrementAndGet();
+        }
+        else {
+            missCount.incrementAndGet();
+        }
+
+        return res;
+    }
+
+    /**
+     * Moves the prefetch window like {@link #take(String)} when the class has been got elsewhere, the prefetched copy
+     * is dropped as wasted.
+     */
+    public void skip(String jvmClassName) {
+        Integer position = positions.get(jvmClassName);
+        if (position == null) return;
+
+        advance(position);
+
+        if (remove(jvmClassName) != null) {
+            wastedCount.incrementAndGet();
+        }
+    }
+
+    private byte[] remove(String jvmClassName) {
+        byte[] res;
+
+        synchronized (ready) {
+            res = ready.remove(jvmClassName);
+        }
+
+        if (res != null) {
+            cachedBytes.addAndGet(-res.length);
+        }
+
+        return res;
+    }
+
+    private void advance(int position) {
+        while (true) {
+            int c = consumed.get();
+            if (position <= c) return;
+
+            if (consumed.compareAndSet(c, position)) break;
+        }
+
+        if (waitingWorkers.get() > 0) {
+            lock.lock();
+            try {
+                progress.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void awaitProgress(int position) throws InterruptedException {
+        lock.lock();
+        waitingWorkers.incrementAndGet();
+        try {
+            while (!closed && position > consumed.get() + window) {
+                progress.await();
+            }
+        } finally {
+            waitingWorkers.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    private void put(String jvmClassName, byte[] data) {
+        prefetchedCount.incrementAndGet();
+
+        synchronized (ready) {
+            byte[] old = ready.put(jvmClassName, data);
+            if (old != null) { // unpacked twice, there is no point to count the copy
+                cachedBytes.addAndGet(-old.length);
+                prefetchedCount.decrementAndGet();
+            }
+
+            long size = cachedBytes.addAndGet(data.length);
+
+            for (Iterator<byte[]> itr = ready.values().iterator(); size > maxCachedBytes && itr.hasNext(); ) {
+                byte[] evicted = itr.next();
+                itr.remove();
+
+                wastedCount.incrementAndGet();
+                size = cachedBytes.addAndGet(-evicted.length);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+
+        lock.lock();
+        try {
+            progress.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        // A worker finishes at most one class after the flag is set, wait for it to keep the counters consistent.
+        for (Thread worker : workers) {
+            if (worker == Thread.currentThread()) continue;
+
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        synchronized (ready) {
+            for (Iterator<byte[]> itr = ready.values().iterator(); itr.hasNext(); ) {
+                byte[] data = itr.next();
+                itr.remove();
+
+                cachedBytes.addAndGet(-data.length);
+                wastedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return number of classes served from the prefetch cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return number of profiled classes the application had to unpack itself.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return number of classes unpacked by worker threads.
+     */
+    public long getPrefetchedCount() {
+        return prefetchedCount.get();
+    }
+
+    /**
+     * @return number of prefetched classes dropped without being used (evicted from the cache, got by the loader
+     * elsewhere or left in the cache on close).
+     */
+    public long getWastedCount() {
+        return wastedCount.get();
+    }
+
+    public long getCachedBytes() {
+        return cachedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ClassPrefetcher[hits=%d, misses=%d, prefetched=%d, wasted=%d]",
+                getHitCount(), getMissCount(), getPrefetchedCount(), getWastedCount());
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    int idx = next.get();
+                    if (idx >= order.length) return;
+
+                    if (idx > consumed.get() + window) {
+                        awaitProgress(idx);
+                        continue;
+                    }
+
+                    if (!next.compareAndSet(idx, idx + 1)) continue;
+
+                    String className = order[idx];
+                    if (loader.isClassLoaded(className)) continue;
+
+                    byte[] data;
+                    try {
+                        data = loader.unpackClass(className);
+                    } catch (Exception e) {
+                        continue; // the application thread will get the error when it loads the class itself
+                    }
+
+                    if (data != null && !closed) {
+                        put(className, data);
+                    }
+                }
+            } catch (InterruptedException ignored) {
+
+            }
+        }
+    }
+}
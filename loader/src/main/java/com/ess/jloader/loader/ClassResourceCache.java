@@ -0,0 +1,172 @@
+package com.ess.jloader.loader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unpacked classes read as .class resources, bounded by the total size and evicted in LRU order. Tools that scan
+ * bytecode usually read the resource of a class right before loading it, so {@link PackClassLoader#findClass(String)}
+ * takes the bytes from here instead of unpacking the class again.
+ * <p/>
+ * {@link #take(String)} is called on every class load, so lookups don't lock: the classes are kept in a concurrent map,
+ * the LRU order is the order of access stamps. Only {@link #put(String, byte[])} and eviction are synchronized. When
+ * the cache is over the budget, it is evicted down to 3/4 of the budget at once.
+ *
+ * @author Sergey Evdokimov
+ */
+public class ClassResourceCache {
+
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final Comparator<Candidate> BY_ACCESS = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate o1, Candidate o2) {
+            return o1.lastAccess < o2.lastAccess ? -1 : o1.lastAccess == o2.lastAccess ? 0 : 1;
+        }
+    };
+
+    private final ConcurrentHashMap<String, Item> map = new ConcurrentHashMap<String, Item>();
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private volatile long maxBytes;
+
+    private final AtomicLong size = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public ClassResourceCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public byte[] get(String jvmClassName) {
+        Item item = map.get(jvmClassName);
+
+        if (item == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        item.lastAccess = clock.incrementAndGet();
+        hitCount.incrementAndGet();
+
+        return item.data;
+    }
+
+    /**
+     * Removes the class from the cache, used when the class is defined and its bytes are not needed anymore.
+     */
+    public byte[] take(String jvmClassName) {
+        Item item = map.isEmpty() ? null : map.remove(jvmClassName);
+
+        if (item == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        size.addAndGet(-item.data.length);
+        hitCount.incrementAndGet();
+
+        return item.data;
+    }
+
+    public synchronized void put(String jvmClassName, byte[] classData) {
+        if (classData.length > maxBytes) return;
+
+        Item old = map.put(jvmClassName, new Item(classData, clock.incrementAndGet()));
+        if (old != null) {
+            size.addAndGet(-old.data.length);
+        }
+
+        size.addAndGet(classData.length);
+
+        evict();
+    }
+
+    private void evict() {
+        long maxBytes = this.maxBytes;
+        if (size.get() <= maxBytes) return;
+
+        // Evicting down to the low-water mark makes the sorting below happen once per a quarter of the budget,
+        // not on every put
+        long lowWaterMark = maxBytes - maxBytes / 4;
+
+        // The stamps are copied, they may change while sorting
+        List<Candidate> candidates = new ArrayList<Candidate>(map.size());
+        for (Map.Entry<String, Item> entry : map.entrySet()) {
+            candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+        }
+
+        Collections.sort(candidates, BY_ACCESS);
+
+        for (Candidate candidate : candidates) {
+            if (size.get() <= lowWaterMark) break;
+
+            if (map.remove(candidate.name, candidate.item)) { // may have been taken concurrently
+                size.addAndGet(-candidate.item.data.length);
+            }
+        }
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+
+    public int getClassCount() {
+        return map.size();
+    }
+
+    /**
+     * @return number of requests served from the cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return number of requests of classes not found in the cache, including class loads.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ClassResourceCache[classes=%d, bytes=%d, hits=%d, misses=%d]",
+                map.size(), size.get(), hitCount.get(), missCount.get());
+    }
+
+    private static class Item {
+        private final byte[] data;
+
+        private volatile long lastAccess;
+
+        private Item(byte[] data, long lastAccess) {
+            this.data = data;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private static class Candidate {
+        private final String name;
+        private final Item item;
+        private final long lastAccess;
+
+        private Candidate(String name, Item item) {
+            this.name = name;
+            this.item = item;
+            this.lastAccess = item.lastAccess;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.ess.jloader.loader;
+
+import com.ess.jloader.utils.BitInputStream;
+import com.ess.jloader.utils.FastBuffer;
+import com.ess.jloader.utils.HuffmanTable;
+import com.ess.jloader.utils.HuffmanUtils;
+
+import java.io.IOException;
+
+/**
+ * Huffman-packed string literals of a pack. The strings stay in the inflated metadata array in the form they are
+ * stored (2-byte length + modified UTF-8, the same as CONSTANT_Utf8 body), no per-string objects are created.
+ * The offset index and the decoding table are built on first use.
+ *
+ * @author Sergey Evdokimov
+ */
+public class LiteralPool {
+
+    private final byte[] arena;
+
+    private final int stringsStart;
+    private final int stringsEnd;
+
+    private final int codeLengthsStart;
+
+    private final int count;
+
+    private volatile Index index;
+
+    public LiteralPool(byte[] arena, int stringsStart, int stringsSize, int codeLengthsStart, int count) {
+        this.arena = arena;
+        this.stringsStart = stringsStart;
+        this.stringsEnd = stringsStart + stringsSize;
+        this.codeLengthsStart = codeLengthsStart;
+        this.count = count;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    private Index getIndex() throws IOException {
+        Index res = index;
+        if (res == null) {
+            synchronized (this) {
+                res = index;
+                if (res == null) {
+                    res = new Index();
+                    index = res;
+                }
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * Reads a Huffman code of a string and writes the string to the buffer with its length.
+     */
+    public void readString(BitInputStream in, FastBuffer buffer) throws IOException {
+        Index index = getIndex();
+
+        int symbol = index.table.decode(in);
+
+        int offset = index.offsets[symbol];
+        buffer.put(arena, offset, index.offsets[symbol + 1] - offset);
+    }
+
+    private class Index {
+        /**
+         * offsets[i] is the position of the length of i-th string, offsets[count] is the end of the strings.
+         */
+        private final int[] offsets = new int[count + 1];
+
+        private final HuffmanTable table;
+
+        private Index() throws IOException {
+            int pos = stringsStart;
+
+            for (int i = 0; i < count; i++) {
+                if (pos + 2 > stringsEnd) throw new IOException("Invalid literal pool");
+
+                offsets[i] = pos;
+                pos += 2 + (((arena[pos] & 0xFF) << 8) | (arena[pos + 1] & 0xFF));
+            }
+
+            if (pos != stringsEnd) throw new IOException("Invalid literal pool");
+
+            offsets[count] = pos;
+
+            int[] codeLengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                codeLengths[i] = arena[codeLengthsStart + i] & 0xFF;
+                if (codeLengths[i] == 0 || codeLengths[i] > HuffmanUtils.MAX_CODE_LENGTH) throw new IOException("Invalid literal pool");
+            }
+
+            table = new HuffmanTable(codeLengths);
+        }
+    }
+}
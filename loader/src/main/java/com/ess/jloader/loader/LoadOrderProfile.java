@@ -0,0 +1,43 @@
+package com.ess.jloader.loader;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Class load-order profile. The profile is a UTF-8 text file with one class name per line in the order
+ * the classes were first loaded. Empty lines and lines starting with '#' are ignored.
+ *
+ * @author Sergey Evdokimov
+ */
+public class LoadOrderProfile {
+
+    private LoadOrderProfile() {
+
+    }
+
+    /**
+     * @return JVM class names (like "java/lang/String") in first-load order, without duplicates.
+     */
+    public static List<String> read(File file) throws IOException {
+        Set<String> res = new LinkedHashSet<String>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                res.add(line.replace('.', '/'));
+            }
+        } finally {
+            reader.close();
+        }
+
+        return new ArrayList<String>(res);
+    }
+}
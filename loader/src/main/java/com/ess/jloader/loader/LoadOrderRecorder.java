@@ -0,0 +1,51 @@
+package com.ess.jloader.loader;
+
+import java.io.*;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes the names of loaded classes to a file in first-load order. The output can be read by {@link LoadOrderProfile}
+ * and passed to the packer to lay out class entries in the order the application loads them.
+ *
+ * @author Sergey Evdokimov
+ */
+public class LoadOrderRecorder implements Closeable {
+
+    private final Set<String> recorded = new HashSet<String>();
+
+    private final Writer writer;
+
+    private boolean closed;
+
+    public LoadOrderRecorder(File file) throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        writer.write("# Class load order\n");
+    }
+
+    /**
+     * @param jvmClassName class name like "java/lang/String"
+     */
+    public synchronized void record(String jvmClassName) {
+        if (closed || !recorded.add(jvmClassName)) return;
+
+        try {
+            writer.write(jvmClassName);
+            writer.write('\n');
+        } catch (IOException e) {
+            closed = true; // the trace is an optimization hint, never break class loading because of it
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if (!closed) {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        writer.close();
+    }
+}
@@ -0,0 +1,344 @@
+package com.ess.jloader.loader;
+
+import com.ess.jloader.utils.ByteBufferInputStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Read-only view of a pack file. The file is mapped into memory once, the central directory is parsed into
+ * an offset table, entry data is read straight from the mapping without ZipFile streams.
+ * <p>
+ * {@link #close()} drops the reference to the mapping and makes further reads fail, but the JDK has no way to unmap
+ * a file explicitly: the mapping (and slices of it still referenced by the caller) is released when it is collected
+ * by GC. Until then the file stays locked on Windows, it can't be deleted or replaced.
+ *
+ * @author Sergey Evdokimov
+ */
+public class PackArchive implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_HEADER_SIGNATURE = 0x06054b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIZE = 22;
+
+    private final File file;
+
+    /**
+     * <code>null</code> after {@link #close()}.
+     */
+    private volatile ByteBuffer buffer;
+
+    private final Map<String, Entry> entries;
+
+    private String contentHash;
+
+    public PackArchive(File file) throws IOException {
+        this.file = file;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("Pack file is too large: " + file);
+
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapping.order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer = mapping;
+        } finally {
+            raf.close(); // the mapping stays valid after the channel is closed
+        }
+
+        entries = readCentralDirectory();
+    }
+
+    private ByteBuffer buffer() throws IOException {
+        ByteBuffer res = buffer;
+        if (res == null) throw new IOException("Pack archive is closed: " + file);
+
+        return res;
+    }
+
+    private int findEndHeader() throws IOException {
+        int minPos = Math.max(0, buffer.limit() - END_HEADER_SIZE - 0xFFFF);
+
+        for (int pos = buffer.limit() - END_HEADER_SIZE; pos >= minPos; pos--) {
+            if (buffer.getInt(pos) == END_HEADER_SIGNATURE) {
+                return pos;
+            }
+        }
+
+        throw new IOException("Not a zip file: " + file);
+    }
+
+    private Map<String, Entry> readCentralDirectory() throws IOException {
+        int endPos = findEndHeader();
+
+        int entryCount = buffer.getShort(endPos + 10) & 0xFFFF;
+        long dirSize = buffer.getInt(endPos + 12) & 0xFFFFFFFFL;
+        long dirOffset = buffer.getInt(endPos + 16) & 0xFFFFFFFFL;
+
+        if (entryCount == 0xFFFF || dirOffset == 0xFFFFFFFFL || dirOffset + dirSize > endPos) {
+            throw new IOException("ZIP64 archives are not supported: " + file);
+        }
+
+        byte[] dir = new byte[(int) dirSize];
+        read((int) dirOffset, dir, 0, dir.length);
+
+        contentHash = calculateContentHash(dir);
+
+        ByteBuffer dirBuffer = ByteBuffer.wrap(dir).order(ByteOrder.LITTLE_ENDIAN);
+
+        Map<String, Entry> res = new HashMap<String, Entry>(entryCount * 4 / 3 + 1);
+
+        int pos = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (dirBuffer.getInt(pos) != CENTRAL_HEADER_SIGNATURE) throw new IOException("Invalid central directory: " + file);
+
+            int method = dirBuffer.getShort(pos + 10) & 0xFFFF;
+            int compressedSize = dirBuffer.getInt(pos + 20);
+            int size = dirBuffer.getInt(pos + 24);
+            int nameLength = dirBuffer.getShort(pos + 28) & 0xFFFF;
+            int extraLength = dirBuffer.getShort(pos + 30) & 0xFFFF;
+            int commentLength = dirBuffer.getShort(pos + 32) & 0xFFFF;
+            int localHeaderOffset = dirBuffer.getInt(pos + 42);
+
+            String name = new String(dir, pos + CENTRAL_HEADER_SIZE, nameLength, "UTF-8");
+
+            res.put(name, new Entry(name, method, localHeaderOffset, compressedSize, size));
+
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return res;
+    }
+
+    /**
+     * The central directory holds the CRC and the size of every entry, so its digest identifies the content of the pack
+     * without reading the whole file.
+     */
+    private String calculateContentHash(byte[] dir) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        digest.update(dir);
+        byte[] hash = digest.digest();
+
+        StringBuilder res = new StringBuilder(hash.length * 2 + 9);
+        for (byte b : hash) {
+            res.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        res.append('-').append(Long.toHexString(buffer.limit()));
+
+        return res.toString();
+    }
+
+    /**
+     * @return a string that is the same for packs with the same content.
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @return the position of the entry data in the mapping.
+     */
+    public int getDataOffset(Entry entry) throws IOException {
+        int res = entry.dataOffset;
+
+        if (res < 0) {
+            ByteBuffer buffer = buffer();
+
+            int headerPos = entry.localHeaderOffset;
+            if (buffer.getInt(headerPos) != LOCAL_HEADER_SIGNATURE) throw new IOException("Invalid local header: " + entry.name);
+
+            int nameLength = buffer.getShort(headerPos + 26) & 0xFFFF;
+            int extraLength = buffer.getShort(headerPos + 28) & 0xFFFF;
+
+            res = headerPos + LOCAL_HEADER_SIZE + nameLength + extraLength;
+            entry.dataOffset = res;
+        }
+
+        return res;
+    }
+
+    /**
+     * @return a big-endian view of the data of a STORED entry, the view shares the memory with the mapping.
+     */
+    public ByteBuffer slice(Entry entry) throws IOException {
+        if (entry.method != ZipEntry.STORED) throw new IOException("Entry is compressed: " + entry.name);
+
+        return sliceRaw(entry);
+    }
+
+    private ByteBuffer sliceRaw(Entry entry) throws IOException {
+        ByteBuffer buffer = buffer();
+
+        int position = getDataOffset(entry);
+        if (position + entry.compressedSize > buffer.limit()) throw new EOFException(file.toString());
+
+        ByteBuffer b = buffer.duplicate();
+        b.position(position);
+        b.limit(position + entry.compressedSize);
+
+        return b.slice(); // slice() resets the byte order to big-endian
+    }
+
+    /**
+     * @return a stream of the entry content. STORED entries are read straight from the mapping.
+     */
+    public InputStream openStream(Entry entry) throws IOException {
+        InputStream res = new ByteBufferInputStream(sliceRaw(entry));
+
+        if (entry.method == ZipEntry.STORED) {
+            return res;
+        }
+
+        if (entry.method != ZipEntry.DEFLATED) throw new IOException("Unsupported compression method: " + entry.name);
+
+        final Inflater inflater = new Inflater(true);
+
+        return new InflaterInputStream(res, inflater, Math.max(64, Math.min(entry.compressedSize, 8 * 1024))) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (!closed) {
+                    closed = true;
+                    inflater.end();
+                }
+                super.close();
+            }
+        };
+    }
+
+    /**
+     * Copies raw (not inflated) entry data to the array.
+     */
+    public void readRaw(Entry entry, byte[] dest, int offset) throws IOException {
+        read(getDataOffset(entry), dest, offset, entry.compressedSize);
+    }
+
+    /**
+     * @return uncompressed content of the entry.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        byte[] raw = new byte[entry.compressedSize];
+        readRaw(entry, raw, 0);
+
+        if (entry.method == ZipEntry.STORED) {
+            return raw;
+        }
+
+        if (entry.method != ZipEntry.DEFLATED) throw new IOException("Unsupported compression method: " + entry.name);
+
+        byte[] res = new byte[entry.size];
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(raw);
+
+            int len = 0;
+            while (len < res.length) {
+                int n = inflater.inflate(res, len, res.length - len);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("Unexpected end of entry: " + entry.name);
+                }
+                len += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+
+        return res;
+    }
+
+    private void read(int position, byte[] dest, int offset, int length) throws IOException {
+        ByteBuffer buffer = buffer();
+
+        if (position < 0 || position + length > buffer.limit()) throw new EOFException(file.toString());
+
+        ByteBuffer b = buffer.duplicate(); // the mapping is shared between threads, so never move its own position
+        b.position(position);
+        b.get(dest, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // There is no file handle to close, the mapping is released by GC when it is not referenced anymore
+        buffer = null;
+    }
+
+    public static class Entry {
+        private final String name;
+
+        private final int method;
+
+        private final int localHeaderOffset;
+
+        private final int compressedSize;
+        private final int size;
+
+        private volatile int dataOffset = -1;
+
+        private Entry(String name, int method, int localHeaderOffset, int compressedSize, int size) {
+            this.name = name;
+            this.method = method;
+            this.localHeaderOffset = localHeaderOffset;
+            this.compressedSize = compressedSize;
+            this.size = size;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public int getCompressedSize() {
+            return compressedSize;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
@@ -3,13 +3,21 @@ package com.ess.jloader.loader;
 import com.ess.jloader.utils.*;
 
 import java.io.*;
-import java.net.URL;
-import java.net.URLClassLoader;
-import java.util.PriorityQueue;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 /**
  * @author Sergey Evdokimov
@@ -18,193 +26,911 @@ public class PackClassLoader extends ClassLoader implements Closeable {
 
     public static final String METADATA_ENTRY_NAME = "META-INF/literals.data";
 
-    private final HuffmanUtils.TreeElement packedStrHuffmanTree;
+    /**
+     * The entry holding all classes of a pack written with a single class blob (see {@link ClassBlob}).
+     */
+    public static final String CLASSES_ENTRY_NAME = "META-INF/classes.data";
+
+    /**
+     * Compressed parts of classes of a pack written in the solid mode, see {@link SolidBlocks}.
+     */
+    public static final String BLOCKS_ENTRY_NAME = "META-INF/blocks.data";
+
+    /**
+     * Optional class metadata index, see {@link ClassMetadataIndex}.
+     */
+    public static final String CLASS_INDEX_ENTRY_NAME = "META-INF/classes.index";
+
+    /**
+     * Protocol of resource URLs, see {@link #findResource(String)}.
+     */
+    public static final String RESOURCE_URL_PROTOCOL = "jloader";
+
+    private static final int MAX_FREE_UNPACKERS = 4;
+
+    /**
+     * Unpackers not used by the current thread at the moment. A thread needs several unpackers at once when a class
+     * is loaded while another one is being defined (a super class, for example).
+     */
+    private static final ThreadLocal<ArrayList<Unpacker>> freeUnpackers = new ThreadLocal<ArrayList<Unpacker>>() {
+        @Override
+        protected ArrayList<Unpacker> initialValue() {
+            return new ArrayList<Unpacker>(MAX_FREE_UNPACKERS);
+        }
+    };
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final LiteralPool literalPool;
 
     private final int[] versions = new int[8];
 
-    private final byte[] dictionary;
+    private final Codec codec;
+
+    /**
+     * Dictionaries of the pack are stored in the metadata, a class refers to one of them by id.
+     */
+    private final byte[] dictionaries;
+    private final int[] dictionaryOffsets;
+    private final int[] dictionarySizes;
+
+    /**
+     * Sets of decoders for all the dictionaries not used at the moment. A decoder keeps scratch structures between
+     * calls, so an unpacker takes a set for itself while unpacking a class. Unpackers are shared by loaders, that's
+     * why the sets are kept by the loader instead of the unpackers.
+     */
+    private final Queue<Decoder[]> freeDecoders = new ConcurrentLinkedQueue<Decoder[]>();
+
+    private final PackageIndex packageIndex;
+
+    /**
+     * "file:/path/pack.jar!/", resource URLs are "jloader:" + resourceUrlPrefix + name.
+     */
+    private final String resourceUrlPrefix;
+
+    private final URLStreamHandler resourceHandler = new ResourceHandler();
+
+    private final PackArchive archive;
+
+    /**
+     * <code>null</code> if classes are stored as separate .class entries.
+     */
+    private final ClassBlob classBlob;
 
-    private final URLClassLoader delegateClassLoader;
+    /**
+     * <code>null</code> if every class is compressed separately.
+     */
+    private final SolidBlocks solidBlocks;
 
-    private final ZipFile zipFile;
+    private final ClassLoader parent;
+
+    /**
+     * Locks of the class names being loaded. ReentrantLock is used instead of the monitor returned by the default
+     * getClassLoadingLock() to avoid pinning the carrier thread when a class is loaded from a virtual thread.
+     * A lock is removed when the last thread loading the name releases it, so the map doesn't grow with every name
+     * ever requested.
+     */
+    private final ConcurrentMap<String, ClassLock> classLocks = new ConcurrentHashMap<String, ClassLock>();
+
+    private volatile ClassPrefetcher prefetcher;
+
+    private volatile LoadOrderRecorder loadOrderRecorder;
+
+    private volatile UnpackedClassCache classCache;
+
+    private volatile boolean ownPackagesFirst;
+
+    private volatile ClassMetadataIndex classMetadataIndex;
+
+    private final ClassResourceCache classResourceCache = new ClassResourceCache(ClassResourceCache.DEFAULT_MAX_BYTES);
 
     public PackClassLoader(ClassLoader parent, File packFile) throws IOException {
         super(parent);
 
-        delegateClassLoader = new URLClassLoader(new URL[]{packFile.toURI().toURL()}, null);
+        this.parent = parent;
 
-        zipFile = new ZipFile(packFile);
+        resourceUrlPrefix = packFile.toURI().toURL() + "!/";
 
-      //  delegateClassLoader = delegate;
-        ZipEntry entry = zipFile.getEntry(METADATA_ENTRY_NAME);
+        archive = new PackArchive(packFile);
 
-        boolean allRight = false;
+        PackArchive.Entry entry = archive.getEntry(METADATA_ENTRY_NAME);
+        if (entry == null) throw new IOException("Not a packed jar: " + packFile);
 
-        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(zipFile.getInputStream(entry)));
+        boolean allRight = false;
 
         try {
-            if (inputStream.readByte() != Utils.MAGIC) throw new RuntimeException();
+            byte[] metadata = archive.read(entry);
+            ByteBuffer in = ByteBuffer.wrap(metadata);
 
-            if (inputStream.readByte() != Utils.PACKER_VERSION) throw new RuntimeException();
+            if (in.get() != Utils.MAGIC) throw new RuntimeException();
+
+            if (in.get() != Utils.PACKER_VERSION) throw new RuntimeException();
 
             for (int i = 0; i < 8; i++) {
-                versions[i] = inputStream.readInt();
+                versions[i] = in.getInt();
             }
 
-            int packedStringsCount = inputStream.readInt();
+            int packedStringsCount = in.getInt();
+            int packedStringsSize = in.getInt();
 
-            if (packedStringsCount > 0) {
-                byte[][] packedStrings = new byte[packedStringsCount][];
+            int stringsStart = in.position();
+            int codeLengthsStart = stringsStart + packedStringsSize;
 
-                for (int i = 0; i < packedStringsCount; i++) {
-                    int len = inputStream.readUnsignedShort();
-                    packedStrings[i] = new byte[len];
-                    inputStream.readFully(packedStrings[i]);
-                }
+            literalPool = new LiteralPool(metadata, stringsStart, packedStringsSize, codeLengthsStart, packedStringsCount);
 
-                // Build Huffman tree
-                PriorityQueue<HuffmanUtils.TreeElement> queue = new PriorityQueue<HuffmanUtils.TreeElement>(packedStringsCount);
-                for (int i = 0; i < packedStringsCount; i++) {
-                    int count = Utils.readSmallShort3(inputStream);
-                    queue.add(new HuffmanUtils.Leaf(count, packedStrings[i]));
-                }
-                packedStrHuffmanTree = HuffmanUtils.buildHuffmanTree(queue);
-            }
-            else {
-                packedStrHuffmanTree = null;
+            in.position(codeLengthsStart + packedStringsCount);
+
+            codec = Codec.forId(in.get() & 0xFF);
+
+            int dictionaryCount = in.get() & 0xFF;
+            if (dictionaryCount == 0) throw new RuntimeException();
+
+            dictionaries = metadata;
+            dictionaryOffsets = new int[dictionaryCount];
+            dictionarySizes = new int[dictionaryCount];
+
+            for (int i = 0; i < dictionaryCount; i++) {
+                int dictionarySize = in.getShort() & 0xFFFF;
+                if (dictionarySize > in.remaining()) throw new RuntimeException();
+
+                dictionaryOffsets[i] = in.position();
+                dictionarySizes[i] = dictionarySize;
+
+                in.position(in.position() + dictionarySize);
             }
 
-            int dictionarySize = inputStream.readUnsignedShort();
-            dictionary = new byte[dictionarySize];
-            inputStream.readFully(dictionary);
+            packageIndex = PackageIndex.read(in);
+
+            PackArchive.Entry blobEntry = archive.getEntry(CLASSES_ENTRY_NAME);
+            classBlob = blobEntry == null ? null : new ClassBlob(archive.slice(blobEntry));
+
+            PackArchive.Entry blocksEntry = archive.getEntry(BLOCKS_ENTRY_NAME);
+            solidBlocks = blocksEntry == null ? null
+                    : new SolidBlocks(archive.slice(blocksEntry), SolidBlocks.DEFAULT_MAX_CACHED_BYTES);
 
             allRight = true;
         }
         finally {
-            inputStream.close();
-
             if (!allRight) {
-                zipFile.close();
+                archive.close();
             }
         }
     }
 
     public byte[] unpackClass(String jvmClassName) throws IOException {
-        String classFileName = jvmClassName.concat(".class");
+        Unpacker unpacker = acquireUnpacker();
+
+        try {
+            int size = unpackClass(jvmClassName, unpacker);
+            if (size < 0) return null;
 
-        ZipEntry entry = zipFile.getEntry(classFileName);
-        if (entry == null) return null;
+            return Arrays.copyOf(unpacker.getClassArray(), size);
+        } finally {
+            releaseUnpacker(unpacker);
+        }
+    }
 
-        InputStream inputStream = zipFile.getInputStream(entry);
+    /**
+     * Unpacks a class from the content of a packed .class entry.
+     */
+    public byte[] unpackClass(byte[] data, int offset, int length, String jvmClassName) throws IOException {
+        Unpacker unpacker = acquireUnpacker();
 
         try {
-            DataInputStream dataInputStream = new DataInputStream(inputStream);
-            int plainSize = Utils.readShortInt(dataInputStream);
-            byte[] plainData = new byte[plainSize];
-            dataInputStream.readFully(plainData);
-
-            BitInputStream in = new BitInputStream(plainData, 0, plainSize);
+            int size = unpacker.unpack(this, data, offset, length, jvmClassName);
 
-            return unpackClass(in, new BufferedInputStream(inputStream), jvmClassName);
+            return Arrays.copyOf(unpacker.getClassArray(), size);
         } finally {
-            inputStream.close();
+            releaseUnpacker(unpacker);
         }
     }
 
-    public byte[] unpackClass(BitInputStream in, InputStream dataIn, String jvmClassName) throws IOException {
-        Inflater inflater = new Inflater(true);
-        inflater.setDictionary(dictionary);
-        InflaterInputStream defIn = new InflaterInputStream(dataIn, inflater);
+    /**
+     * @return size of the class unpacked to {@link Unpacker#getClassArray()} or -1 if the pack doesn't contain
+     * the class.
+     */
+    private int unpackClass(String jvmClassName, Unpacker unpacker) throws IOException {
+        int packedSize = readPackedClass(jvmClassName, unpacker);
+        if (packedSize < 0) return -1;
+
+        return unpacker.unpack(this, unpacker.getInputArray(packedSize), 0, packedSize, jvmClassName);
+    }
+
+    /**
+     * Copies the packed class to {@link Unpacker#getInputArray(int)}.
+     *
+     * @return size of the packed class or -1 if the pack doesn't contain the class.
+     */
+    private int readPackedClass(String jvmClassName, Unpacker unpacker) throws IOException {
+        if (classBlob != null) {
+            int index = classBlob.find(jvmClassName);
+            if (index < 0) return -1;
+
+            int size = classBlob.getSize(index);
+            classBlob.read(index, unpacker.getInputArray(size), 0);
+
+            return size;
+        }
+
+        PackArchive.Entry entry = archive.getEntry(jvmClassName.concat(".class"));
+        if (entry == null) return -1;
+
+        if (entry.getMethod() == ZipEntry.STORED) {
+            int size = entry.getCompressedSize();
+            archive.readRaw(entry, unpacker.getInputArray(size), 0);
+
+            return size;
+        }
+
+        byte[] data = archive.read(entry); // the pack has been recompressed
+        System.arraycopy(data, 0, unpacker.getInputArray(data.length), 0, data.length);
+
+        return data.length;
+    }
+
+    /**
+     * Takes a free unpacker of the current thread or creates a new one, must be followed by
+     * {@link #releaseUnpacker(Unpacker)}.
+     */
+    private static Unpacker acquireUnpacker() {
+        ArrayList<Unpacker> unpackers = freeUnpackers.get();
+
+        return unpackers.isEmpty() ? new Unpacker() : unpackers.remove(unpackers.size() - 1);
+    }
+
+    private static void releaseUnpacker(Unpacker unpacker) {
+        unpacker.release();
+
+        ArrayList<Unpacker> unpackers = freeUnpackers.get();
+        if (unpackers.size() < MAX_FREE_UNPACKERS) {
+            unpackers.add(unpacker);
+        }
+    }
+
+    /**
+     * Takes a free set of decoders or creates a new one, must be followed by {@link #releaseDecoders(Decoder[])}.
+     */
+    private Decoder[] acquireDecoders() {
+        Decoder[] res = freeDecoders.poll();
+
+        if (res == null) {
+            res = new Decoder[dictionaryOffsets.length];
+            for (int i = 0; i < res.length; i++) {
+                res[i] = codec.createDecoder(dictionaries, dictionaryOffsets[i], dictionarySizes[i]);
+            }
+        }
+
+        return res;
+    }
+
+    private void releaseDecoders(Decoder[] decoders) {
+        freeDecoders.add(decoders);
+    }
+
+    /**
+     * Starts unpacking classes listed in the load-order profile in background threads.
+     */
+    public ClassPrefetcher startPrefetching(File profile, int threadCount) throws IOException {
+        return startPrefetching(LoadOrderProfile.read(profile), threadCount,
+                ClassPrefetcher.DEFAULT_WINDOW, ClassPrefetcher.DEFAULT_MAX_CACHED_BYTES);
+    }
+
+    public ClassPrefetcher startPrefetching(List<String> loadOrder, int threadCount, int window, long maxCachedBytes) {
+        ClassPrefetcher res = new ClassPrefetcher(this, loadOrder, threadCount, window, maxCachedBytes);
+
+        ClassPrefetcher oldPrefetcher = prefetcher;
+        prefetcher = res;
+
+        if (oldPrefetcher != null) {
+            oldPrefetcher.close();
+        }
+
+        res.start();
+
+        return res;
+    }
+
+    /**
+     * Enables the persistent cache of unpacked classes in the directory. The cache is shared by all loaders and JVMs
+     * that open the same pack with the same directory. New classes are written to disk when the loader is closed
+     * or {@link UnpackedClassCache#flush()} is called.
+     */
+    public UnpackedClassCache openClassCache(File cacheDir) throws IOException {
+        UnpackedClassCache res = new UnpackedClassCache(cacheDir, archive);
+
+        UnpackedClassCache oldCache = classCache;
+        classCache = res;
+
+        if (oldCache != null) {
+            oldCache.close();
+        }
+
+        return res;
+    }
+
+    /**
+     * Makes the loader write the names of classes it defines to the recorder, <code>null</code> stops recording.
+     * The recorder is not closed by the loader.
+     */
+    public void setLoadOrderRecorder(LoadOrderRecorder loadOrderRecorder) {
+        this.loadOrderRecorder = loadOrderRecorder;
+    }
+
+    /**
+     * Makes the loader look up classes of packages owned by the pack (see {@link PackageIndex}) before asking
+     * the parent. For such classes the parent lookup is almost always a miss, but the mode changes the result
+     * if the parent has classes with the same names, so it is off by default. Other classes are always loaded
+     * parent-first.
+     */
+    public void setOwnPackagesFirst(boolean ownPackagesFirst) {
+        this.ownPackagesFirst = ownPackagesFirst;
+    }
+
+    public PackageIndex getPackageIndex() {
+        return packageIndex;
+    }
+
+    boolean isClassLoaded(String jvmClassName) {
+        return findLoadedClass(jvmClassName.replace('/', '.')) != null;
+    }
+
+    /**
+     * Returns the plain per-name monitor of ClassLoader. {@link #loadClass(String, boolean)} is serialized by internal
+     * locks, not by this monitor, so synchronizing on it excludes only other code synchronizing on it.
+     */
+    @Override
+    protected Object getClassLoadingLock(String className) {
+        return super.getClassLoadingLock(className);
+    }
+
+    private ClassLock acquireClassLock(String className) {
+        while (true) {
+            ClassLock res = classLocks.get(className);
+
+            if (res == null) {
+                ClassLock newLock = new ClassLock();
+                res = classLocks.putIfAbsent(className, newLock);
+                if (res == null) return newLock;
+            }
+
+            if (res.retain()) return res;
+
+            classLocks.remove(className, res); // released by its last user, the user is removing it
+        }
+    }
+
+    private void releaseClassLock(String className, ClassLock lock) {
+        if (lock.release()) {
+            classLocks.remove(className, lock);
+        }
+    }
+
+    /**
+     * @return number of class names being loaded, the locks of loaded names are dropped.
+     */
+    public int getClassLockCount() {
+        return classLocks.size();
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        ClassLock lock = acquireClassLock(name);
+        lock.lock();
 
         try {
-            Unpacker unpacker = new Unpacker(in, defIn, jvmClassName);
+            Class<?> res = findLoadedClass(name);
+            if (res == null) {
+                if (ownPackagesFirst && !name.startsWith("java.") && packageIndex.ownsPackage(name)) {
+                    res = findOwnClass(name);
+
+                    if (res == null) {
+                        res = loadFromParent(name);
+                        if (res == null) throw new ClassNotFoundException(name);
+                    }
+                }
+                else {
+                    res = loadFromParent(name);
+
+                    if (res == null) {
+                        res = findClass(name);
+                    }
+                }
+            }
+
+            if (resolve) {
+                resolveClass(res);
+            }
 
-            return unpacker.unpack();
+            return res;
         } finally {
-            inflater.end();
+            lock.unlock();
+            releaseClassLock(name, lock);
+        }
+    }
+
+    private Class<?> loadFromParent(String name) {
+        try {
+            if (parent == null) {
+                return Class.forName(name, false, null); // bootstrap class loader
+            }
+
+            return parent.loadClass(name);
+        } catch (ClassNotFoundException ignored) {
+            return null;
+        }
+    }
+
+    private Class<?> findOwnClass(String name) {
+        try {
+            return findClass(name);
+        } catch (ClassNotFoundException ignored) {
+            return null;
         }
     }
 
     @Override
     protected Class<?> findClass(String name) throws ClassNotFoundException {
+        if (!packageIndex.mayContainClass(name)) throw new ClassNotFoundException(name);
+
         String jvmClassName = name.replace('.', '/');
 
-        byte[] classData;
+        Class<?> res;
 
         try {
-            classData = unpackClass(jvmClassName);
-            if (classData == null) throw new ClassNotFoundException(name);
+            UnpackedClassCache classCache = this.classCache;
+
+            ByteBuffer cachedData = classCache == null ? null : classCache.get(jvmClassName);
+
+            if (cachedData != null) {
+                res = defineClass(name, cachedData, (ProtectionDomain) null);
+            }
+            else {
+                byte[] classData = classResourceCache.take(jvmClassName);
+
+                ClassPrefetcher prefetcher = this.prefetcher;
+                if (prefetcher != null) {
+                    // always called to move the prefetch window
+                    if (classData == null) {
+                        classData = prefetcher.take(jvmClassName);
+                    }
+                    else {
+                        prefetcher.skip(jvmClassName);
+                    }
+                }
+
+                if (classData == null) {
+                    res = unpackAndDefineClass(name, jvmClassName, classCache);
+                }
+                else {
+                    res = defineClass(name, classData, 0, classData.length);
+
+                    if (classCache != null) {
+                        classCache.put(jvmClassName, classData);
+                    }
+                }
+            }
         } catch (IOException e) {
             throw new ClassNotFoundException(name);
         }
 
-        return defineClass(name, classData, 0, classData.length);
+        LoadOrderRecorder recorder = loadOrderRecorder;
+        if (recorder != null) {
+            recorder.record(jvmClassName);
+        }
+
+        return res;
+    }
+
+    /**
+     * Defines the class right from the buffer of the unpacker, the bytes are copied only for the persistent cache.
+     * The unpacker is not released until the class is defined, classes loaded by defineClass() use other unpackers.
+     */
+    private Class<?> unpackAndDefineClass(String name, String jvmClassName, UnpackedClassCache classCache)
+            throws IOException, ClassNotFoundException {
+        Unpacker unpacker = acquireUnpacker();
+
+        try {
+            int size = unpackClass(jvmClassName, unpacker);
+            if (size < 0) throw new ClassNotFoundException(name);
+
+            Class<?> res = defineClass(name, unpacker.getClassArray(), 0, size);
+
+            if (classCache != null) {
+                classCache.put(jvmClassName, Arrays.copyOf(unpacker.getClassArray(), size));
+            }
+
+            return res;
+        } finally {
+            releaseUnpacker(unpacker);
+        }
+    }
+
+    private PackArchive.Entry getResourceEntry(String name) {
+        PackArchive.Entry res = archive.getEntry(name);
+
+        if (res == null && !name.endsWith("/")) {
+            res = archive.getEntry(name.concat("/")); // directory
+        }
+
+        return res;
+    }
+
+    /**
+     * @return JVM class name if the resource is a class of the pack, <code>null</code> otherwise.
+     */
+    private String getClassResourceName(String name) {
+        if (!name.endsWith(".class")) return null;
+
+        String jvmClassName = name.substring(0, name.length() - ".class".length());
+
+        if (!packageIndex.mayContainClass(jvmClassName.replace('/', '.'))) return null;
+
+        if (classBlob != null) {
+            return classBlob.find(jvmClassName) >= 0 ? jvmClassName : null;
+        }
+
+        return archive.getEntry(name) != null ? jvmClassName : null;
+    }
+
+    /**
+     * @return the unpacked class, the bytes are shared with a following {@link #findClass(String)}.
+     */
+    private byte[] getClassResource(String jvmClassName) throws IOException {
+        byte[] res = classResourceCache.get(jvmClassName);
+
+        if (res == null) {
+            res = unpackClass(jvmClassName);
+            if (res == null) throw new FileNotFoundException(jvmClassName);
+
+            classResourceCache.put(jvmClassName, res);
+        }
+
+        return res;
+    }
+
+    /**
+     * @return the content of the resource of the pack or <code>null</code> if the pack doesn't contain the resource.
+     * Classes are returned unpacked.
+     */
+    private InputStream openOwnResource(String name) throws IOException {
+        String jvmClassName = getClassResourceName(name);
+        if (jvmClassName != null) {
+            return new ByteArrayInputStream(getClassResource(jvmClassName));
+        }
+
+        PackArchive.Entry entry = getResourceEntry(name);
+
+        return entry == null ? null : archive.openStream(entry);
     }
 
+    /**
+     * @return URL like "jloader:file:/path/pack.jar!/name". The URL is opened by the loader itself, the content is read
+     * from the already mapped pack, no second file handle is involved. The protocol is not "jar" on purpose: such
+     * a URL would promise a JarURLConnection, and the same URL rebuilt from its string form would be opened by
+     * the JDK handler, which reads the packed bytes of a class. A URL rebuilt from the string form fails with
+     * "unknown protocol" instead.
+     */
     @Override
     protected URL findResource(String name) {
-        return delegateClassLoader.getResource(name);
+        if (getResourceEntry(name) == null && getClassResourceName(name) == null) return null;
+
+        try {
+            return new URL(null, RESOURCE_URL_PROTOCOL + ':' + resourceUrlPrefix + name, resourceHandler);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(String name) throws IOException {
+        URL res = findResource(name);
+        if (res == null) return Collections.emptyEnumeration();
+
+        return Collections.enumeration(Collections.singletonList(res));
+    }
+
+    @Override
+    public InputStream getResourceAsStream(String name) {
+        URL url = getResource(name); // parent first
+
+        if (url == null) return null;
+
+        try {
+            String file = url.getFile();
+            if (RESOURCE_URL_PROTOCOL.equals(url.getProtocol()) && file.startsWith(resourceUrlPrefix)) {
+                InputStream res = openOwnResource(file.substring(resourceUrlPrefix.length()));
+                if (res != null) {
+                    return res;
+                }
+            }
+
+            return url.openStream();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the class metadata index or <code>null</code> if the pack was written without it.
+     */
+    public ClassMetadataIndex getClassMetadataIndex() throws IOException {
+        ClassMetadataIndex res = classMetadataIndex;
+
+        if (res == null) {
+            PackArchive.Entry entry = archive.getEntry(CLASS_INDEX_ENTRY_NAME);
+            if (entry == null) return null;
+
+            synchronized (this) {
+                res = classMetadataIndex;
+                if (res == null) {
+                    res = new ClassMetadataIndex(archive.read(entry));
+                    classMetadataIndex = res;
+                }
+            }
+        }
+
+        return res;
+    }
+
+    /**
+     * @return decoded blocks of the pack or <code>null</code> if the pack was written without the solid mode.
+     */
+    public SolidBlocks getSolidBlocks() {
+        return solidBlocks;
+    }
+
+    public ClassResourceCache getClassResourceCache() {
+        return classResourceCache;
     }
 
     @Override
     public void close() throws IOException {
-        zipFile.close();
+        UnpackedClassCache classCache = this.classCache;
+        if (classCache != null) {
+            classCache.close();
+        }
+
+        ClassPrefetcher prefetcher = this.prefetcher;
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+
+        archive.close();
+    }
+
+    /**
+     * A lock counting the threads using it. Once the count drops to zero the lock is dead and is never handed out
+     * again, a thread that finds a dead lock in the map creates a new one.
+     */
+    private static class ClassLock extends ReentrantLock {
+        private final AtomicInteger users = new AtomicInteger(1);
+
+        private boolean retain() {
+            while (true) {
+                int n = users.get();
+                if (n == 0) return false;
+
+                if (users.compareAndSet(n, n + 1)) return true;
+            }
+        }
+
+        /**
+         * @return <code>true</code> if the lock is not used anymore.
+         */
+        private boolean release() {
+            return users.decrementAndGet() == 0;
+        }
+    }
+
+    private class ResourceHandler extends URLStreamHandler {
+        @Override
+        protected URLConnection openConnection(URL url) throws IOException {
+            String file = url.getFile();
+            if (!file.startsWith(resourceUrlPrefix)) throw new MalformedURLException(url.toString());
+
+            final String name = file.substring(resourceUrlPrefix.length());
+
+            return new URLConnection(url) {
+                @Override
+                public void connect() {
+                    connected = true;
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    InputStream res = openOwnResource(name);
+                    if (res == null) throw new FileNotFoundException(url.toString());
+
+                    return res;
+                }
+
+                @Override
+                public int getContentLength() {
+                    try {
+                        String jvmClassName = getClassResourceName(name);
+                        if (jvmClassName != null) {
+                            return getClassResource(jvmClassName).length;
+                        }
+
+                        PackArchive.Entry entry = getResourceEntry(name);
+                        return entry == null ? -1 : entry.getSize();
+                    } catch (IOException e) {
+                        return -1;
+                    }
+                }
+            };
+        }
     }
 
-    private class Unpacker {
+    /**
+     * Unpacks classes to its own growable buffer. An unpacker keeps its buffers between classes and holds no
+     * reference to the loader while it is not in use, see {@link #acquireUnpacker()}.
+     */
+    private static class Unpacker {
+
+        /**
+         * Larger buffers are dropped when the unpacker is released, so a rare huge class doesn't stay in memory.
+         */
+        private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+        private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+        /**
+         * Packed class being unpacked, filled by {@link PackClassLoader#readPackedClass(String, Unpacker)}.
+         */
+        private byte[] input = new byte[INITIAL_BUFFER_SIZE];
 
-        private final DataInputStream defDataIn;
+        private final BitInputStream in = new BitInputStream(input, 0, 0);
 
-        private final BitInputStream in;
+        private FastInput defDataIn = new FastInput(INITIAL_BUFFER_SIZE);
 
-        private final String className;
+        private FastBuffer buffer = new FastBuffer(INITIAL_BUFFER_SIZE);
 
-        private FastBuffer buffer;
+        private PackClassLoader loader;
 
-        private ConstIndexInterval classesInterval;
-        private ConstIndexInterval fieldInterval;
-        private ConstIndexInterval imethodInterval;
-        private ConstIndexInterval methodInterval;
-        private ConstIndexInterval nameAndTypeInterval;
-        private ConstIndexInterval utfInterval;
+        private String className;
 
-        private int[] predefinedUtfIndexes = new int[Utils.PREDEFINED_UTF.length];
+        private final ConstIndexInterval classesInterval = new ConstIndexInterval();
+        private final ConstIndexInterval fieldInterval = new ConstIndexInterval();
+        private final ConstIndexInterval imethodInterval = new ConstIndexInterval();
+        private final ConstIndexInterval methodInterval = new ConstIndexInterval();
+        private final ConstIndexInterval nameAndTypeInterval = new ConstIndexInterval();
+        private final ConstIndexInterval utfInterval = new ConstIndexInterval();
+
+        private final int[] predefinedUtfIndexes = new int[Utils.PREDEFINED_UTF.length];
 
         private int generatedStrIndex;
-        private DataOutputStream generatedStrDataOutput;
+
+        /**
+         * Generated strings are written as CONSTANT_Utf8 entries right into the place reserved for them in the buffer.
+         */
+        private int generatedStrPos;
 
         private int maxLineNumberBits;
 
         private int classTypeIndex;
 
-        public Unpacker(BitInputStream in, InputStream defIn, String className) {
-            this.in = in;
-            this.defDataIn = new DataInputStream(new BufferedInputStream(defIn));
+        /**
+         * @return the array of {@link #input} size at least <code>size</code>, its content may be lost.
+         */
+        byte[] getInputArray(int size) {
+            if (input.length < size) {
+                input = new byte[Math.max(size, input.length + (input.length >> 1))];
+            }
 
-            this.className = className;
+            return input;
         }
 
-        public byte[] unpack() throws IOException {
-            FastBuffer buffer = new FastBuffer(Utils.readShortInt(in));
-            this.buffer = buffer;
+        /**
+         * @return the array containing the class unpacked by the last {@link #unpack} call at the beginning.
+         */
+        byte[] getClassArray() {
+            return buffer.array;
+        }
+
+        void release() {
+            loader = null;
+            className = null;
+
+            if (input.length > MAX_RETAINED_BUFFER_SIZE) {
+                input = new byte[INITIAL_BUFFER_SIZE];
+            }
+            if (buffer.array.length > MAX_RETAINED_BUFFER_SIZE) {
+                buffer = new FastBuffer(INITIAL_BUFFER_SIZE);
+            }
+            if (defDataIn.array.length > MAX_RETAINED_BUFFER_SIZE) {
+                defDataIn = new FastInput(INITIAL_BUFFER_SIZE);
+            }
+        }
+
+        /**
+         * Unpacks a class from the content of a packed .class entry.
+         *
+         * @return size of the class, see {@link #getClassArray()}
+         */
+        int unpack(PackClassLoader loader, byte[] data, int offset, int length, String className) throws IOException {
+            SolidBlocks solidBlocks = loader.solidBlocks;
+            int dictionaryCount = loader.dictionaryOffsets.length;
+
+            int plainStart;
+            int plainSize;
+            int dictionaryId = 0;
+            int blockIndex = 0;
+            int blockClassIndex = 0;
+
+            if (solidBlocks == null) {
+                // the size of the plain part and the dictionary id
+                int header = Utils.readShortInt(data, offset);
+                plainSize = header / dictionaryCount;
+                dictionaryId = header % dictionaryCount;
+
+                plainStart = offset + Utils.getShortIntSize(header);
+            }
+            else {
+                if (length < 6) throw new EOFException(className);
+
+                plainSize = Utils.readShortInt(data, offset);
+                plainStart = offset + Utils.getShortIntSize(plainSize);
+
+                blockIndex = Utils.readShortInt(data, plainStart);
+                plainStart += Utils.getShortIntSize(blockIndex);
+
+                blockClassIndex = Utils.readShortInt(data, plainStart);
+                plainStart += Utils.getShortIntSize(blockClassIndex);
+            }
+
+            int plainEnd = plainStart + plainSize;
+
+            if (plainEnd > offset + length) throw new EOFException(className);
+
+            this.loader = loader;
+            this.className = className;
+
+            Arrays.fill(predefinedUtfIndexes, 0);
+            maxLineNumberBits = 0;
+            classTypeIndex = 0;
+
+            BitInputStream in = this.in;
+            in.reset(data, plainStart, plainEnd);
+
+            int classSize = Utils.readShortInt(in);
+
+            FastBuffer buffer = this.buffer;
+            buffer.reset(classSize);
+
+            Decoder[] decoders = loader.acquireDecoders();
+            try {
+                if (solidBlocks == null) {
+                    // The compressed part is decoded at once and parsed without streams. It is usually smaller than the class.
+                    decoders[dictionaryId].decode(data, plainEnd, offset + length - plainEnd, defDataIn);
+                }
+                else {
+                    solidBlocks.readClass(blockIndex, blockClassIndex, decoders, defDataIn);
+                }
+            } finally {
+                loader.releaseDecoders(decoders);
+            }
 
             // Magic
             buffer.putInt(0xCAFEBABE);
 
             // Version
-            buffer.putInt(versions[in.readBits(3)]);
+            buffer.putInt(loader.versions[in.readBits(3)]);
 
             // Const count
             int constCount = Utils.readSmallShort3(in);
             buffer.putShort(constCount);
 
-            utfInterval = ConstIndexInterval.create(constCount, in.readLimitedShort(constCount));
-            nameAndTypeInterval = new ConstIndexInterval(utfInterval, Utils.readSmallShort3(in));
-            methodInterval = new ConstIndexInterval(nameAndTypeInterval, Utils.readSmallShort3(in));
-            imethodInterval = new ConstIndexInterval(methodInterval, Utils.readSmallShort3(in));
-            fieldInterval = new ConstIndexInterval(imethodInterval, Utils.readSmallShort3(in));
+            int utfCount = in.readLimitedShort(constCount);
+            utfInterval.set(constCount - utfCount, utfCount);
+            nameAndTypeInterval.setBefore(utfInterval, Utils.readSmallShort3(in));
+            methodInterval.setBefore(nameAndTypeInterval, Utils.readSmallShort3(in));
+            imethodInterval.setBefore(methodInterval, Utils.readSmallShort3(in));
+            fieldInterval.setBefore(imethodInterval, Utils.readSmallShort3(in));
 
-            classesInterval = new ConstIndexInterval(1, in.readLimitedShort(utfInterval.count));
+            classesInterval.set(1, in.readLimitedShort(utfInterval.count));
 
             buffer.put((byte) 7);
             buffer.putShort(utfInterval.firstIndex); // Class name;
@@ -246,9 +972,10 @@ public class PackClassLoader extends ClassLoader implements Closeable {
             }
 
             generatedStrIndex = utfInterval.firstIndex;
-            generatedStrDataOutput = new DataOutputStream(new OpenByteOutputStream(buffer.array, buffer.pos));
+            generatedStrPos = buffer.pos;
 
             int generatedStrSize = Utils.readSmallShort3(in);
+            int generatedStrEnd = buffer.pos + generatedStrSize;
 
             buffer.skip(generatedStrSize);
 
@@ -260,12 +987,9 @@ public class PackClassLoader extends ClassLoader implements Closeable {
             // Packed utf
             int packedStrCount = in.readLimitedShort(utfInterval.count);
 
-            HuffmanInputStream<byte[]> huffmanInputStream = new HuffmanInputStream<byte[]>(in, packedStrHuffmanTree);
             for (int i = 0; i < packedStrCount; i++) {
                 buffer.put((byte) 1);
-                byte[] str = huffmanInputStream.read();
-                buffer.putShort(str.length);
-                buffer.put(str);
+                loader.literalPool.readString(in, buffer);
             }
 
             int notPackedStrCount = in.readLimitedShort(utfInterval.count);
@@ -290,33 +1014,101 @@ public class PackClassLoader extends ClassLoader implements Closeable {
             processClassAttr();
 
             assert generatedStrIndex == constCount - packedStrCount - notPackedStrCount : className;
-            assert generatedStrDataOutput.size() == generatedStrSize : className;
 
-            assert buffer.pos == buffer.array.length : className;
+            if (generatedStrPos != generatedStrEnd || buffer.pos != classSize) throw new IOException("Invalid packed class: " + className);
 
-            return buffer.array;
+            return classSize;
         }
 
-        private int putGeneratedStr(String s) throws IOException {
-            generatedStrDataOutput.write(1);
-            generatedStrDataOutput.writeUTF(s);
-
-            return generatedStrIndex++;
+        private int putGeneratedStr(String s) {
+            int start = beginGeneratedStr();
+            appendUtf(s, 0, s.length());
+            return endGeneratedStr(start);
         }
 
-        private int putGeneratedStr(byte[] bytes) throws IOException {
+        private int putGeneratedStr(byte[] bytes) {
             return putGeneratedStr(bytes, 0, bytes.length);
         }
 
-        private int putGeneratedStr(byte[] bytes, int offset, int len) throws IOException {
-            generatedStrDataOutput.write(1);
-            generatedStrDataOutput.write(bytes, offset, len);
+        /**
+         * @param bytes the string in the DataOutput.writeUTF() format
+         */
+        private int putGeneratedStr(byte[] bytes, int offset, int len) {
+            buffer.array[generatedStrPos] = 1;
+            System.arraycopy(bytes, offset, buffer.array, generatedStrPos + 1, len);
+            generatedStrPos += 1 + len;
 
             return generatedStrIndex++;
         }
 
+        /**
+         * Starts a string written by append*() methods.
+         *
+         * @return position of the string content, must be passed to {@link #endGeneratedStr(int)}
+         */
+        private int beginGeneratedStr() {
+            buffer.array[generatedStrPos] = 1;
+            generatedStrPos += 3; // tag and length
+
+            return generatedStrPos;
+        }
+
+        private int endGeneratedStr(int start) {
+            buffer.putShort(start - 2, generatedStrPos - start);
+            return generatedStrIndex++;
+        }
+
+        /**
+         * Appends the chars in modified UTF-8, the same way as DataOutput.writeUTF().
+         */
+        private void appendUtf(String s, int from, int to) {
+            byte[] array = buffer.array;
+            int pos = generatedStrPos;
+
+            for (int i = from; i < to; i++) {
+                char c = s.charAt(i);
+
+                if (c >= 1 && c <= 0x7F) {
+                    array[pos++] = (byte) c;
+                }
+                else if (c <= 0x7FF) {
+                    array[pos++] = (byte) (0xC0 | (c >> 6));
+                    array[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+                else {
+                    array[pos++] = (byte) (0xE0 | (c >> 12));
+                    array[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    array[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+
+            generatedStrPos = pos;
+        }
+
+        private void appendAscii(char c) {
+            buffer.array[generatedStrPos++] = (byte) c;
+        }
+
+        private void appendNumber(int x) {
+            assert x >= 0;
+
+            int digitCount = 1;
+            for (int t = x; t >= 10; t /= 10) {
+                digitCount++;
+            }
+
+            byte[] array = buffer.array;
+            int pos = generatedStrPos + digitCount;
+            generatedStrPos = pos;
+
+            do {
+                array[--pos] = (byte) ('0' + x % 10);
+                x /= 10;
+            } while (x > 0);
+        }
+
         // See Utils.PREDEFINED_UTF
-        private int putPredefinedGeneratedString(int predefinedStrId) throws IOException {
+        private int putPredefinedGeneratedString(int predefinedStrId) {
             int res = predefinedUtfIndexes[predefinedStrId];
             if (res == 0) {
                 int strStart = Utils.PREDEFINED_UTF_BYTE_INDEXES[predefinedStrId];
@@ -477,7 +1269,18 @@ public class PackClassLoader extends ClassLoader implements Closeable {
                 buffer.putInt(2);
 
                 if (in.readBoolean()) {
-                    buffer.putShort(putGeneratedStr(Utils.generateSourceFileName(className)));
+                    // the same as Utils.generateSourceFileName(className)
+                    int nameStart = className.lastIndexOf('/') + 1;
+                    int nameEnd = className.indexOf('$', nameStart);
+                    if (nameEnd == -1) {
+                        nameEnd = className.length();
+                    }
+
+                    int start = beginGeneratedStr();
+                    appendUtf(className, nameStart, nameEnd);
+                    appendUtf(".java", 0, ".java".length());
+
+                    buffer.putShort(endGeneratedStr(start));
                 }
                 else {
                     int utfIndex = utfInterval.readIndexCompact(in);
@@ -516,7 +1319,11 @@ public class PackClassLoader extends ClassLoader implements Closeable {
 
             int anonymousClassCount = in.readSmall_0_3_8_16();
             for (int i = 1; i <= anonymousClassCount; i++) {
-                putGeneratedStr(className + '$' + i);
+                int start = beginGeneratedStr();
+                appendUtf(className, 0, className.length());
+                appendAscii('$');
+                appendNumber(i);
+                endGeneratedStr(start);
             }
 
             int length = in.readLimitedShort(classesInterval.count);
@@ -610,8 +1417,14 @@ public class PackClassLoader extends ClassLoader implements Closeable {
             buffer.putInt(4);
 
             if (in.readBoolean()) {
-                int classNameIndex = putGeneratedStr(Utils.generateEnclosingClassName(className));
-                buffer.putShort(findClassIndexByName(classNameIndex));
+                // the same as Utils.generateEnclosingClassName(className)
+                int idx = className.lastIndexOf('$');
+                if (idx == -1) throw new IOException("Invalid packed class: " + className);
+
+                int start = beginGeneratedStr();
+                appendUtf(className, 0, idx);
+
+                buffer.putShort(findClassIndexByName(endGeneratedStr(start)));
             }
             else {
                 buffer.putShort(classesInterval.readIndexCompact(in));
@@ -726,7 +1539,12 @@ public class PackClassLoader extends ClassLoader implements Closeable {
                 buffer.putShort(putPredefinedGeneratedString(Utils.PS_THIS));
 
                 if (classTypeIndex == 0) {
-                    classTypeIndex = putGeneratedStr('L' + className + ';');
+                    int start = beginGeneratedStr();
+                    appendAscii('L');
+                    appendUtf(className, 0, className.length());
+                    appendAscii(';');
+
+                    classTypeIndex = endGeneratedStr(start);
                 }
                 buffer.putShort(classTypeIndex);
                 buffer.putShort(0);
@@ -844,145 +1662,98 @@ public class PackClassLoader extends ClassLoader implements Closeable {
             buffer.putShort(savedPosition + 4, (buffer.pos - savedPosition - 4 - 2) >>> 1);
         }
 
+        /**
+         * Copies runs of instructions as is, only field and method instructions between them are relocated,
+         * see AttributeCode.writeCode() in the packer.
+         */
         private void readCode() throws IOException {
             byte[] array = buffer.array;
             int pos = buffer.pos;
 
-            loop:
-            while (true) {
-
-                // visits the instruction at this offset
-                int opcode = defDataIn.read();
-                array[pos++] = (byte) opcode;
-
-                switch (InsnTypes.TYPE[opcode]) {
-                    case InsnTypes.NOARG_INSN:
-                    case InsnTypes.IMPLVAR_INSN:
-                        break;
-
-                    case InsnTypes.VAR_INSN:
-                    case InsnTypes.SBYTE_INSN:
-                    case InsnTypes.LDC_INSN:
-                        array[pos++] = (byte) defDataIn.read();
-                        break;
+            FastInput defDataIn = this.defDataIn;
+            byte[] src = defDataIn.array;
+            int srcPos = defDataIn.pos;
+            int srcLimit = defDataIn.limit;
 
-                    case InsnTypes.LABEL_INSN:
-                    case InsnTypes.SHORT_INSN:
-                    case InsnTypes.LDCW_INSN:
-                    case InsnTypes.TYPE_INSN:
-                    case InsnTypes.IINC_INSN:
-                        defDataIn.readFully(array, pos, 2);
-                        pos += 2;
-                        break;
-
-                    case InsnTypes.LABELW_INSN:
-                        defDataIn.readFully(array, pos, 4);
-                        pos += 4;
-                        break;
+            while (true) {
+                if (srcPos >= srcLimit) throw new EOFException(className);
 
-                    case InsnTypes.WIDE_INSN:
-                        opcode = defDataIn.read();
-                        array[pos++] = (byte) opcode;
+                int token = src[srcPos++] & 0xFF;
 
-                        int len;
-                        if (opcode == 132 /*Opcodes.IINC*/) {
-                            len = 4;
-                        } else {
-                            len = 2;
-                        }
-                        defDataIn.readFully(array, pos, len);
+                int run;
+                int opcode;
 
-                        pos += len;
-                        break;
+                if (token < 0xF8) {
+                    run = token >>> 3;
+                    opcode = 178 /*Opcodes.GETSTATIC*/ + (token & 7);
+                }
+                else {
+                    if (token != 0xFE /*long run*/ && token != 0xFF /*end of code*/) {
+                        throw new IOException("Invalid packed class: bad code token " + token);
+                    }
 
-                    case InsnTypes.TABL_INSN: {
-                        pos += (4 - ((pos - buffer.pos) & 3)) & 3; // skips 0 to 3 padding bytes
+                    defDataIn.pos = srcPos;
+                    run = Utils.readSmallShort3(defDataIn);
+                    srcPos = defDataIn.pos;
 
-                        defDataIn.readFully(array, pos, 4); // default ref
-                        pos += 4;
+                    opcode = -1;
+                }
 
-                        int min = defDataIn.readInt();
-                        buffer.putInt(pos, min);
-                        pos += 4;
+                if (run > srcLimit - srcPos) throw new EOFException(className);
+                if (run > array.length - pos) throw new IOException("Invalid packed class: code is too long");
 
-                        int max = defDataIn.readInt();
-                        buffer.putInt(pos, max);
-                        pos += 4;
-                        assert min <= max;
+                System.arraycopy(src, srcPos, array, pos, run);
+                srcPos += run;
+                pos += run;
 
-                        len = (max - min + 1)*4;
-                        defDataIn.readFully(array, pos, len);
-                        pos += len;
-                        break;
-                    }
+                if (opcode < 0) {
+                    if (token == 0xFF) break;
 
-                    case InsnTypes.LOOK_INSN: {
-                        pos += (4 - ((pos - buffer.pos) & 3)) & 3; // skips 0 to 3 padding bytes
+                    if (srcPos >= srcLimit) throw new EOFException(className);
+                    opcode = src[srcPos++] & 0xFF;
+                }
 
-                        defDataIn.readFully(array, pos, 4); // default ref
-                        pos += 4;
+                // The reference, the argument count of invokeinterface and the instruction in the class
+                if (srcLimit - srcPos < (opcode == 185 ? 3 : 2)) throw new EOFException(className);
+                if (array.length - pos < (opcode == 185 ? 5 : 3)) throw new IOException("Invalid packed class: code is too long");
 
-                        len = defDataIn.readInt();
-                        buffer.putInt(pos, len);
-                        pos += 4;
+                array[pos] = (byte) opcode;
 
-                        defDataIn.readFully(array, pos, 8 * len);
+                int ref = ((src[srcPos] & 0xFF) << 8) | (src[srcPos + 1] & 0xFF);
+                srcPos += 2;
 
-                        pos += 8 * len;
+                switch (opcode) {
+                    case 178: // Opcodes.GETSTATIC
+                    case 179: // Opcodes.PUTSTATIC
+                    case 180: // Opcodes.GETFIELD
+                    case 181: // Opcodes.PUTFIELD
+                        ref += fieldInterval.firstIndex;
                         break;
-                    }
 
-                    case InsnTypes.ITFMETH_INSN:
-                    case InsnTypes.FIELDORMETH_INSN:
-                        int ref = defDataIn.readUnsignedShort();
-
-                        if (opcode == 185 /*Opcodes.INVOKEINTERFACE*/) {
-                            int imethIndex = ref + imethodInterval.firstIndex;
-                            buffer.putShort(pos, imethIndex);
-                            pos += 2;
-
-                            array[pos++] = (byte) defDataIn.read();
-                            pos++; // put 0
-                        }
-                        else {
-                            if (opcode == 180 /*Opcodes.GETFIELD*/ || opcode == 181 /*Opcodes.PUTFIELD*/
-                                    || opcode == 178 /*Opcodes.GETSTATIC*/ || opcode == 179 /*Opcodes.PUTSTATIC*/) {
-                                ref += fieldInterval.firstIndex;
-                            } else if (opcode == 182/*Opcodes.INVOKEVIRTUAL*/ || opcode == 183/*Opcodes.INVOKESPECIAL*/
-                                    || opcode == 184 /*Opcodes.INVOKESTATIC*/) {
-                                ref += methodInterval.firstIndex;
-                            }
-                            else {
-                                throw new UnsupportedOperationException(String.valueOf(opcode));
-                            }
-
-                            buffer.putShort(pos, ref);
-                            pos += 2;
-                        }
+                    case 182: // Opcodes.INVOKEVIRTUAL
+                    case 183: // Opcodes.INVOKESPECIAL
+                    case 184: // Opcodes.INVOKESTATIC
+                        ref += methodInterval.firstIndex;
                         break;
 
-    //                case InsnTypes.INDYMETH_INSN: {
-    //                    throw new UnsupportedOperationException(); // todo Implement support of INVOKEDYNAMIC!!!
-    //                }
+                    case 185: // Opcodes.INVOKEINTERFACE
+                        ref += imethodInterval.firstIndex;
 
-                    case InsnTypes.MANA_INSN:
-                        defDataIn.readFully(array, pos, 3);
-                        pos += 3;
+                        array[pos + 3] = src[srcPos++]; // argument count
+                        array[pos + 4] = 0;
                         break;
 
-                    case InsnTypes.UNKNOWN_INSN:
-                        if (opcode == 255) {
-                            pos--; // remove end of code marker
-                            break loop;
-                        }
-
-                        throw new UnsupportedOperationException(String.valueOf(opcode));
-
                     default:
-                        throw new UnsupportedOperationException(String.valueOf(opcode));
+                        throw new IOException("Invalid packed class: bad code opcode " + opcode);
                 }
+
+                array[pos + 1] = (byte) (ref >>> 8);
+                array[pos + 2] = (byte) ref;
+                pos += opcode == 185 ? 5 : 3;
             }
 
+            defDataIn.pos = srcPos;
+
             buffer.pos = pos;
         }
     }
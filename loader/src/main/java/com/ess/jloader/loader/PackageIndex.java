@@ -0,0 +1,136 @@
+package com.ess.jloader.loader;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Packages owned by a pack and a Bloom filter over the names of its classes, stored in
+ * {@link PackClassLoader#METADATA_ENTRY_NAME}. The loader rejects names of classes it doesn't have without looking
+ * them up in the archive, the filter is probed with the cached {@link String#hashCode()} of the binary class name,
+ * so a miss costs a few array reads.
+ *
+ * @author Sergey Evdokimov
+ */
+public class PackageIndex {
+
+    private static final int BITS_PER_CLASS = 10;
+
+    private static final int HASH_COUNT = 7;
+
+    private final Set<String> packages;
+
+    private final long[] bloomFilter;
+
+    private final int bitMask;
+
+    private PackageIndex(Set<String> packages, long[] bloomFilter) {
+        this.packages = packages;
+        this.bloomFilter = bloomFilter;
+
+        bitMask = bloomFilter.length * 64 - 1;
+    }
+
+    /**
+     * Reads the index written by {@link #write(DataOutput, Collection)}.
+     */
+    public static PackageIndex read(ByteBuffer in) throws IOException {
+        int packageCount = in.getInt();
+        if (packageCount < 0 || packageCount > in.remaining() / 2) throw new IOException("Invalid package index");
+
+        Set<String> packages = new HashSet<String>(packageCount * 4 / 3 + 1);
+
+        for (int i = 0; i < packageCount; i++) {
+            int length = in.getShort() & 0xFFFF;
+            if (length > in.remaining()) throw new IOException("Invalid package index");
+
+            packages.add(new String(in.array(), in.arrayOffset() + in.position(), length, "UTF-8").replace('/', '.'));
+            in.position(in.position() + length);
+        }
+
+        int wordCount = in.getInt();
+        if (wordCount <= 0 || Integer.bitCount(wordCount) != 1 || wordCount > in.remaining() / 8) {
+            throw new IOException("Invalid package index");
+        }
+
+        long[] bloomFilter = new long[wordCount];
+        for (int i = 0; i < wordCount; i++) {
+            bloomFilter[i] = in.getLong();
+        }
+
+        return new PackageIndex(packages, bloomFilter);
+    }
+
+    /**
+     * @param classNames JVM names of all classes of the pack (like "java/lang/String").
+     */
+    public static void write(DataOutput out, Collection<String> classNames) throws IOException {
+        Set<String> packages = new TreeSet<String>();
+        for (String className : classNames) {
+            packages.add(getPackageName(className, '/'));
+        }
+
+        out.writeInt(packages.size());
+        for (String packageName : packages) {
+            out.writeUTF(packageName); // package names are ASCII in practice, so modified UTF-8 is the same as UTF-8
+        }
+
+        int bitCount = Integer.highestOneBit(Math.max(64, classNames.size() * BITS_PER_CLASS) * 2 - 1);
+
+        long[] bloomFilter = new long[bitCount / 64];
+        int bitMask = bitCount - 1;
+
+        for (String className : classNames) {
+            int h1 = className.replace('/', '.').hashCode();
+            int h2 = secondHash(h1);
+
+            for (int i = 0; i < HASH_COUNT; i++) {
+                int bit = (h1 + i * h2) & bitMask;
+                bloomFilter[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        out.writeInt(bloomFilter.length);
+        for (long word : bloomFilter) {
+            out.writeLong(word);
+        }
+    }
+
+    private static int secondHash(int h1) {
+        return Integer.rotateLeft(h1 * 0x9E3779B9, 16) | 1;
+    }
+
+    private static String getPackageName(String className, char separator) {
+        int idx = className.lastIndexOf(separator);
+        return idx == -1 ? "" : className.substring(0, idx);
+    }
+
+    /**
+     * @param className binary class name (like "java.lang.String").
+     * @return <code>false</code> if the pack definitely doesn't contain the class.
+     */
+    public boolean mayContainClass(String className) {
+        int h1 = className.hashCode();
+        int h2 = secondHash(h1);
+
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = (h1 + i * h2) & bitMask;
+            if ((bloomFilter[bit >>> 6] & (1L << bit)) == 0) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param className binary class name (like "java.lang.String").
+     * @return <code>true</code> if the pack contains classes of the package of the class.
+     */
+    public boolean ownsPackage(String className) {
+        return packages.contains(getPackageName(className, '.'));
+    }
+
+    public int getPackageCount() {
+        return packages.size();
+    }
+}
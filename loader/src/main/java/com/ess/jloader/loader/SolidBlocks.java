@@ -0,0 +1,310 @@
+package com.ess.jloader.loader;
+
+import com.ess.jloader.utils.Decoder;
+import com.ess.jloader.utils.FastInput;
+import com.ess.jloader.utils.Utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compressed parts of classes of a pack written in the solid mode, {@link PackClassLoader#BLOCKS_ENTRY_NAME}.
+ * Classes following each other in the pack are compressed together as one block, a block is decoded as a whole when
+ * one of its classes is loaded. Decoded blocks are kept in a cache bounded by the total size and evicted in LRU
+ * order, so the next classes of the block are served without decoding. When the cache is over the budget, it is
+ * evicted down to 3/4 of the budget at once. See packer/doc/format.txt for the layout.
+ * <p/>
+ * Lookups don't lock: blocks are kept in a concurrent map, the LRU order is the order of access stamps. A block is
+ * put into the map before it is decoded, so threads that miss on the same block wait for one decoding. Only eviction
+ * is synchronized.
+ *
+ * @author Sergey Evdokimov
+ */
+public class SolidBlocks {
+
+    public static final long DEFAULT_MAX_CACHED_BYTES = 4 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 1 + 1 + 4;
+
+    private final ByteBuffer buffer;
+
+    private final int count;
+
+    private final int offsetsStart;
+    private final int dictionaryIdsStart;
+    private final int dataStart;
+
+    private static final Comparator<Candidate> BY_ACCESS = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate o1, Candidate o2) {
+            return o1.lastAccess < o2.lastAccess ? -1 : o1.lastAccess == o2.lastAccess ? 0 : 1;
+        }
+    };
+
+    private final ConcurrentHashMap<Integer, Block> cache = new ConcurrentHashMap<Integer, Block>();
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private volatile long maxCachedBytes;
+
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public SolidBlocks(ByteBuffer buffer, long maxCachedBytes) throws IOException {
+        this.buffer = buffer;
+        this.maxCachedBytes = maxCachedBytes;
+
+        if (buffer.limit() < HEADER_SIZE || buffer.get(0) != Utils.MAGIC || buffer.get(1) != Utils.PACKER_VERSION) {
+            throw new IOException("Invalid solid blocks");
+        }
+
+        count = buffer.getInt(2);
+        if (count < 0 || count > (buffer.limit() - HEADER_SIZE) / 5) throw new IOException("Invalid solid blocks");
+
+        offsetsStart = HEADER_SIZE;
+        dictionaryIdsStart = offsetsStart + (count + 1) * 4;
+        dataStart = dictionaryIdsStart + count;
+
+        if (dataStart > buffer.limit()) throw new EOFException();
+    }
+
+    public int getBlockCount() {
+        return count;
+    }
+
+    /**
+     * Copies the compressed part of a class to the beginning of <code>out.array</code>, see
+     * {@link FastInput#fill(byte[], int, int)}.
+     *
+     * @param blockIndex the block containing the class.
+     * @param classIndex the index of the class in the block.
+     * @param decoders decoders of the pack owned by the calling thread, used if the block is not in the cache.
+     */
+    public void readClass(int blockIndex, int classIndex, Decoder[] decoders, FastInput out) throws IOException {
+        Block block = getBlock(blockIndex, decoders);
+
+        if (classIndex >= block.offsets.length - 1) throw new IOException("Invalid class index: " + classIndex);
+
+        int start = block.offsets[classIndex];
+        out.fill(block.data, start, block.offsets[classIndex + 1] - start);
+    }
+
+    private Block getBlock(int index, Decoder[] decoders) throws IOException {
+        if (index >= count) throw new IOException("Invalid block index: " + index);
+
+        Block res = cache.get(index);
+
+        if (res == null) {
+            Block newBlock = new Block();
+
+            res = cache.putIfAbsent(index, newBlock);
+
+            if (res == null) {
+                missCount.incrementAndGet();
+                newBlock.lastAccess = clock.incrementAndGet();
+
+                load(index, newBlock, decoders);
+
+                cachedBytes.addAndGet(newBlock.data.length);
+                evict();
+
+                return newBlock;
+            }
+        }
+
+        hitCount.incrementAndGet();
+        res.lastAccess = clock.incrementAndGet();
+
+        res.await(); // may be being decoded by another thread
+
+        return res;
+    }
+
+    /**
+     * Decodes the block and completes <code>res</code>. On failure the block is removed from the cache, the threads
+     * waiting for it fail too, the next read decodes the block again.
+     */
+    private void load(int index, Block res, Decoder[] decoders) throws IOException {
+        boolean allRight = false;
+
+        try {
+            parse(index, res, decodeData(index, decoders));
+            allRight = true;
+        } finally {
+            if (!allRight) {
+                cache.remove(index, res);
+            }
+
+            res.complete();
+        }
+    }
+
+    private FastInput decodeData(int index, Decoder[] decoders) throws IOException {
+        int start = buffer.getInt(offsetsStart + index * 4);
+        int end = buffer.getInt(offsetsStart + index * 4 + 4);
+
+        if (start < 0 || end < start || end > buffer.limit() - dataStart) throw new EOFException();
+
+        int dictionaryId = buffer.get(dictionaryIdsStart + index) & 0xFF;
+        if (dictionaryId >= decoders.length) throw new IOException("Invalid dictionary id: " + dictionaryId);
+
+        byte[] compressed = new byte[end - start];
+
+        ByteBuffer b = buffer.duplicate(); // the buffer is shared between threads
+        b.position(dataStart + start);
+        b.get(compressed);
+
+        FastInput decoded = new FastInput(compressed.length * 4);
+        decoders[dictionaryId].decode(compressed, 0, compressed.length, decoded);
+
+        return decoded;
+    }
+
+    private static void parse(int index, Block res, FastInput decoded) throws IOException {
+        // The block starts with the number of classes and the sizes of their compressed parts
+        int classCount = Utils.readShortInt(decoded);
+
+        int[] offsets = new int[classCount + 1];
+        for (int i = 0; i < classCount; i++) {
+            offsets[i + 1] = offsets[i] + Utils.readShortInt(decoded);
+        }
+
+        int dataSize = decoded.limit - decoded.pos;
+        if (offsets[classCount] != dataSize) throw new IOException("Invalid block: " + index);
+
+        byte[] data = new byte[dataSize];
+        decoded.readFully(data, 0, dataSize);
+
+        res.data = data;
+        res.offsets = offsets;
+    }
+
+    private synchronized void evict() {
+        long maxCachedBytes = this.maxCachedBytes;
+        if (cachedBytes.get() <= maxCachedBytes) return;
+
+        // A quarter of the budget is freed at once, so the blocks are sorted once per several decoded blocks
+        long lowWaterMark = maxCachedBytes - maxCachedBytes / 4;
+
+        // The stamps are copied, they may change while sorting
+        List<Candidate> candidates = new ArrayList<Candidate>(cache.size());
+        for (Map.Entry<Integer, Block> entry : cache.entrySet()) {
+            Block block = entry.getValue();
+            if (block.isDecoded()) { // blocks being decoded are not counted yet
+                candidates.add(new Candidate(entry.getKey(), block));
+            }
+        }
+
+        Collections.sort(candidates, BY_ACCESS);
+
+        for (Candidate candidate : candidates) {
+            if (cachedBytes.get() <= lowWaterMark) break;
+
+            if (cache.remove(candidate.index, candidate.block)) {
+                cachedBytes.addAndGet(-candidate.block.data.length);
+            }
+        }
+    }
+
+    public void setMaxCachedBytes(long maxCachedBytes) {
+        this.maxCachedBytes = maxCachedBytes;
+        evict();
+    }
+
+    public long getCachedBytes() {
+        return cachedBytes.get();
+    }
+
+    /**
+     * @return number of class reads served by decoded blocks from the cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return number of decoded blocks.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SolidBlocks[blocks=%d, cached=%d, bytes=%d, hits=%d, misses=%d]",
+                count, cache.size(), cachedBytes.get(), hitCount.get(), missCount.get());
+    }
+
+    private static class Block {
+        private final CountDownLatch decoded = new CountDownLatch(1);
+
+        /**
+         * Compressed parts of the classes, decoded. Set before {@link #complete()}.
+         */
+        private byte[] data;
+
+        /**
+         * Offsets of classes in {@link #data}, the last one is the size of the data.
+         */
+        private int[] offsets;
+
+        private volatile long lastAccess;
+
+        private void complete() {
+            decoded.countDown();
+        }
+
+        private boolean isDecoded() {
+            return decoded.getCount() == 0 && data != null;
+        }
+
+        /**
+         * Waits until the block is decoded by another thread.
+         *
+         * @throws IOException if the decoding has failed.
+         */
+        private void await() throws IOException {
+            if (decoded.getCount() > 0) {
+                boolean interrupted = false;
+
+                while (true) {
+                    try {
+                        decoded.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (data == null) throw new IOException("Failed to decode the block");
+        }
+    }
+
+    private static class Candidate {
+        private final int index;
+        private final Block block;
+        private final long lastAccess;
+
+        private Candidate(int index, Block block) {
+            this.index = index;
+            this.block = block;
+            this.lastAccess = block.lastAccess;
+        }
+    }
+}
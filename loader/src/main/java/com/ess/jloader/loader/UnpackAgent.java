@@ -1,10 +1,7 @@
 package com.ess.jloader.loader;
 
-import com.ess.jloader.utils.BitInputStream;
 import com.ess.jloader.utils.Utils;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
@@ -19,10 +16,22 @@ public class UnpackAgent implements ClassFileTransformer {
 
     private static boolean initialized;
 
+    /**
+     * Agent option that makes the agent write the load order of unpacked classes to a file,
+     * e.g. <code>-javaagent:loader.jar=recordLoadOrder=/tmp/load-order.txt</code>
+     */
+    public static final String RECORD_LOAD_ORDER_OPTION = "recordLoadOrder=";
+
     private volatile PackClassLoader classLoader;
 
+    private final LoadOrderRecorder loadOrderRecorder;
+
     public UnpackAgent() {
+        this(null);
+    }
 
+    public UnpackAgent(LoadOrderRecorder loadOrderRecorder) {
+        this.loadOrderRecorder = loadOrderRecorder;
     }
 
     private PackClassLoader getClassLoader(ClassLoader l) {
@@ -60,17 +69,17 @@ public class UnpackAgent implements ClassFileTransformer {
         }
 
         try {
-            ByteArrayInputStream byteIn = new ByteArrayInputStream(classfileBuffer);
+            PackClassLoader packClassLoader = getClassLoader(loader);
 
-            int plainSize = Utils.readShortInt(new DataInputStream(byteIn));
-            int pos = plainSize < 0x8000 ? 2 : 4;
+            String jvmClassName = className.replace('.', '/');
 
-            BitInputStream in = new BitInputStream(classfileBuffer, pos, pos + plainSize);
+            byte[] res = packClassLoader.unpackClass(classfileBuffer, 0, classfileBuffer.length, jvmClassName);
 
-            byteIn.skip(plainSize);
+            if (loadOrderRecorder != null) {
+                loadOrderRecorder.record(jvmClassName);
+            }
 
-            PackClassLoader packClassLoader = getClassLoader(loader);
-            return packClassLoader.unpackClass(in, byteIn, className.replace('.', '/'));
+            return res;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -83,7 +92,31 @@ public class UnpackAgent implements ClassFileTransformer {
         }
         initialized = true;
 
-        inst.addTransformer(new UnpackAgent());
+        LoadOrderRecorder recorder = null;
+
+        if (options != null && options.startsWith(RECORD_LOAD_ORDER_OPTION)) {
+            File file = new File(options.substring(RECORD_LOAD_ORDER_OPTION.length()));
+
+            try {
+                recorder = new LoadOrderRecorder(file);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to create load order file: " + file, e);
+            }
+
+            final LoadOrderRecorder r = recorder;
+            Runtime.getRuntime().addShutdownHook(new Thread("jloader-load-order-recorder") {
+                @Override
+                public void run() {
+                    try {
+                        r.close();
+                    } catch (IOException ignored) {
+
+                    }
+                }
+            });
+        }
+
+        inst.addTransformer(new UnpackAgent(recorder));
     }
 
 }
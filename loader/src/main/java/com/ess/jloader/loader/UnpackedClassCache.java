@@ -0,0 +1,352 @@
+package com.ess.jloader.loader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk cache of unpacked classes shared between JVMs that load the same pack. The cache of a pack is a single file
+ * named by the pack content hash: a header, an index (class name, offset, length, CRC-32) and the class bytes. The file
+ * is mapped into memory. A class is copied out of the mapping and checked against its CRC before it is served, so
+ * a damaged or modified file can't make the loader define wrong bytes: a class that fails the check is dropped from
+ * the cache and unpacked from the pack again. Cache files are readable and writable by the owner only.
+ * <p/>
+ * Cache files are never modified in place. Classes unpacked after a miss are collected in memory, {@link #flush()}
+ * writes a new snapshot (the current file merged with the new classes) to a temporary file and atomically renames it
+ * over the old one. Several JVMs may read and flush the same cache concurrently: a reader always sees a complete
+ * snapshot, the worst case is that classes added by one JVM are dropped by a concurrent flush of another one and
+ * get unpacked and cached again later.
+ *
+ * @author Sergey Evdokimov
+ */
+public class UnpackedClassCache implements Closeable {
+
+    private static final int MAGIC = 0x4A4C4343; // "JLCC"
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+
+    private static final String CACHE_FILE_SUFFIX = ".classes";
+
+    private final File cacheFile;
+
+    /**
+     * The last snapshot read or written by this cache, replaced on {@link #flush()}.
+     */
+    private volatile ConcurrentMap<String, Entry> cached;
+
+    /**
+     * Classes that are not in {@link #cached}, they are removed from the map once they are written to disk.
+     */
+    private final ConcurrentMap<String, byte[]> added = new ConcurrentHashMap<String, byte[]>();
+
+    /**
+     * <code>true</code> if {@link #added} contains classes that have not been written to disk yet.
+     */
+    private volatile boolean modified;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private boolean closed;
+
+    public UnpackedClassCache(File cacheDir, PackArchive archive) throws IOException {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs() && !cacheDir.isDirectory()) {
+            throw new IOException("Failed to create cache directory: " + cacheDir);
+        }
+
+        cacheFile = new File(cacheDir, archive.getContentHash() + CACHE_FILE_SUFFIX);
+
+        cached = readSnapshot(cacheFile);
+    }
+
+    /**
+     * @return the content of the cache file or an empty map if the file doesn't exist or is damaged.
+     */
+    private static ConcurrentMap<String, Entry> readSnapshot(File file) {
+        ConcurrentMap<String, Entry> res = new ConcurrentHashMap<String, Entry>();
+
+        if (!file.isFile()) return res;
+
+        try {
+            ByteBuffer buffer;
+
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) return res;
+
+                MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer = mapping;
+            } finally {
+                raf.close();
+            }
+
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) return res;
+            if (buffer.getLong(8) != buffer.limit()) return res; // truncated
+
+            int count = buffer.getInt(16);
+            int indexSize = buffer.getInt(20);
+
+            int dataStart = HEADER_SIZE + indexSize;
+            if (count < 0 || indexSize < 0 || dataStart > buffer.limit()) return res;
+
+            byte[] index = new byte[indexSize];
+            ByteBuffer b = buffer.duplicate();
+            b.position(HEADER_SIZE);
+            b.get(index);
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+
+            for (int i = 0; i < count; i++) {
+                String className = in.readUTF();
+                int offset = in.readInt();
+                int length = in.readInt();
+                int crc = in.readInt();
+
+                if (offset < 0 || length < 0 || (long)dataStart + offset + length > buffer.limit()) {
+                    res.clear();
+                    return res;
+                }
+
+                ByteBuffer slice = buffer.duplicate();
+                slice.position(dataStart + offset);
+                slice.limit(dataStart + offset + length);
+
+                res.put(className, new Entry(slice.slice(), crc));
+            }
+
+            return res;
+        } catch (IOException e) {
+            res.clear();
+            return res;
+        }
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    /**
+     * @return the unpacked class or <code>null</code> if the class is not cached or its cached copy is damaged.
+     * The returned buffer must not be modified.
+     */
+    public ByteBuffer get(String jvmClassName) {
+        ByteBuffer res = null;
+
+        ConcurrentMap<String, Entry> cached = this.cached;
+
+        Entry entry = cached.get(jvmClassName);
+        if (entry != null) {
+            // Copied before the check, the mapped file may be replaced in place after the check
+            byte[] data = new byte[entry.data.remaining()];
+            entry.data.duplicate().get(data);
+
+            if (crc(data) == entry.crc) {
+                res = ByteBuffer.wrap(data);
+            }
+            else {
+                cached.remove(jvmClassName, entry); // the class is unpacked and put to 'added', the next flush fixes the file
+            }
+        }
+        else {
+            byte[] data = added.get(jvmClassName);
+            if (data != null) {
+                res = ByteBuffer.wrap(data);
+            }
+        }
+
+        if (res == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        return res;
+    }
+
+    /**
+     * Adds a class unpacked after a miss. The class is written to disk on the next {@link #flush()}.
+     */
+    public void put(String jvmClassName, byte[] classData) {
+        if (!cached.containsKey(jvmClassName) && added.putIfAbsent(jvmClassName, classData) == null) {
+            modified = true;
+        }
+    }
+
+    /**
+     * Writes a new snapshot of the cache if classes have been added since the cache was opened.
+     */
+    public synchronized void flush() throws IOException {
+        if (closed || !modified) return;
+
+        modified = false; // set before reading 'added' so classes added concurrently are written by the next flush
+
+        Map<String, Entry> snapshot = new TreeMap<String, Entry>(readSnapshot(cacheFile)); // may have been updated by another JVM
+        snapshot.putAll(cached);
+
+        Map<String, byte[]> flushed = new HashMap<String, byte[]>(added);
+
+        for (Map.Entry<String, byte[]> entry : flushed.entrySet()) {
+            byte[] data = entry.getValue();
+            snapshot.put(entry.getKey(), new Entry(ByteBuffer.wrap(data), crc(data)));
+        }
+
+        boolean allRight = false;
+        try {
+            writeSnapshot(snapshot);
+            allRight = true;
+        } finally {
+            if (!allRight) {
+                modified = true;
+            }
+        }
+
+        // The flushed classes are served from the new file now, so the process doesn't keep a second copy of them.
+        // The file may have already been replaced by another JVM, then some of them are unpacked and cached again.
+        cached = readSnapshot(cacheFile);
+
+        for (Map.Entry<String, byte[]> entry : flushed.entrySet()) {
+            added.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Entries copied from the old file keep their CRC, so a damaged class is still detected after it is copied.
+     */
+    private void writeSnapshot(Map<String, Entry> snapshot) throws IOException {
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(indexBytes);
+
+        long dataSize = 0;
+
+        for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+            int length = entry.getValue().data.remaining();
+
+            index.writeUTF(entry.getKey());
+            index.writeInt((int) dataSize);
+            index.writeInt(length);
+            index.writeInt(entry.getValue().crc);
+
+            dataSize += length;
+        }
+
+        long fileSize = HEADER_SIZE + indexBytes.size() + dataSize;
+        if (fileSize > Integer.MAX_VALUE) throw new IOException("Class cache is too large: " + cacheFile);
+
+        // Unlike File.createTempFile(), the file is created accessible by the owner only where the file system supports
+        // POSIX permissions. The permissions stay with the file after it is renamed.
+        File tmpFile = Files.createTempFile(cacheFile.getParentFile().toPath(), cacheFile.getName(), ".tmp").toFile();
+
+        boolean allRight = false;
+
+        try {
+            FileOutputStream fileOut = new FileOutputStream(tmpFile);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(fileSize);
+                out.writeInt(snapshot.size());
+                out.writeInt(indexBytes.size());
+
+                indexBytes.writeTo(out);
+
+                byte[] buff = new byte[8 * 1024];
+
+                for (Entry entry : snapshot.values()) {
+                    ByteBuffer b = entry.data.duplicate();
+                    while (b.hasRemaining()) {
+                        int len = Math.min(b.remaining(), buff.length);
+                        b.get(buff, 0, len);
+                        out.write(buff, 0, len);
+                    }
+                }
+
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                fileOut.close();
+            }
+
+            try {
+                Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            allRight = true;
+        } finally {
+            if (!allRight) {
+                tmpFile.delete();
+            }
+        }
+
+    }
+
+    /**
+     * @return number of added classes that have not been written to disk yet.
+     */
+    public int getPendingCount() {
+        return added.size();
+    }
+
+    /**
+     * @return number of classes served from the cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return number of classes not found in the cache.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Writes the new classes to disk.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        closed = true;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UnpackedClassCache[%s, hits=%d, misses=%d]", cacheFile.getName(), getHitCount(), getMissCount());
+    }
+
+    private static class Entry {
+        /**
+         * Must be read via {@link ByteBuffer#duplicate()}, the buffer is shared by threads.
+         */
+        private final ByteBuffer data;
+
+        private final int crc;
+
+        private Entry(ByteBuffer data, int crc) {
+            this.data = data;
+            this.crc = crc;
+        }
+    }
+}
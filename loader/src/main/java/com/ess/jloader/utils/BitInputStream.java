@@ -1,32 +1,95 @@
 package com.ess.jloader.utils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * @author Sergey Evdokimov
  */
 public class BitInputStream extends InputStream implements DataInput {
 
-    private int x;
+    /**
+     * Bit accumulator, the next bit of the stream is the lowest one. <code>remainBits</code> low bits are available.
+     */
+    private long x;
     private int remainBits;
 
-    private final DataInputStream dataIn = new DataInputStream(this);
+    /**
+     * Created on first use, DataInputStream allocates its buffers in the constructor.
+     */
+    private DataInputStream dataIn;
 
-    private final byte[] buffer;
-    private final int limit;
+    private byte[] buffer;
+    private int limit;
+
+    /**
+     * Little-endian view of the buffer used to refill the accumulator by 8 bytes at once.
+     */
+    private ByteBuffer words;
 
     private int pos;
 
     public BitInputStream(byte[] buffer, int pos, int limit) {
-        this.buffer = buffer;
-        this.limit = limit;
+        reset(buffer, pos, limit);
+    }
 
+    /**
+     * Starts reading another range, the instance can be reused this way without allocations as long as
+     * the buffer is the same.
+     */
+    public void reset(byte[] buffer, int pos, int limit) {
+        if (buffer != this.buffer) {
+            this.buffer = buffer;
+            words = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        this.limit = limit;
         this.pos = pos;
 
+        x = 0;
+        remainBits = 0;
+
         assert limit <= buffer.length;
         assert pos >= 0 && pos <= limit;
     }
 
+    private DataInputStream dataIn() {
+        DataInputStream res = dataIn;
+        if (res == null) {
+            res = new DataInputStream(this);
+            dataIn = res;
+        }
+
+        return res;
+    }
+
+    /**
+     * Loads as many whole bytes into the accumulator as fit into it. At least 56 bits are available after refill
+     * unless the end of the buffer is reached.
+     * <p/>
+     * The fast path loads 8 bytes at once and counts only the whole ones, the bits of the partially loaded byte stay
+     * above <code>remainBits</code>. They are the real next bits of the stream, so the next refill ORs the same
+     * values over them.
+     */
+    private void refill() {
+        if (pos + 8 <= limit) {
+            x |= words.getLong(pos) << remainBits;
+            pos += (63 - remainBits) >>> 3;
+            remainBits |= 56;
+        }
+        else {
+            refillTail();
+        }
+    }
+
+    private void refillTail() {
+        while (remainBits <= 56 && pos < limit) {
+            x |= (buffer[pos++] & 0xFFL) << remainBits;
+            remainBits += 8;
+        }
+    }
+
     @Override
     public int read() throws IOException {
         return readBitsSoft(8);
@@ -36,27 +99,30 @@ public class BitInputStream extends InputStream implements DataInput {
     public int read(byte[] b, int off, int len) throws IOException {
         if (len == 0) return 0;
 
-        if (len > limit - pos) {
-            len = limit - pos;
+        int available = (remainBits >>> 3) + (limit - pos);
+
+        if (len > available) {
+            len = available;
 
             if (len == 0) return -1;
         }
 
-        int end = off + len;
-        do {
-            x |= (buffer[pos++] & 0xFF) << remainBits;
-            b[off++] = (byte) x;
+        for (int i = 0; i < len; i++) {
+            if (remainBits < 8) refill();
 
+            b[off + i] = (byte) x;
             x >>>= 8;
+            remainBits -= 8;
         }
-        while (off < end);
 
-        return off - (end - len);
+        return len;
     }
 
     public int readBitsSoft(int bitCount) throws IOException {
-        while (bitCount > remainBits) {
-            if (pos == limit) {
+        if (bitCount > remainBits) {
+            refill();
+
+            if (bitCount > remainBits) {
                 if (remainBits == 0) {
                     return -1;
                 }
@@ -64,33 +130,66 @@ public class BitInputStream extends InputStream implements DataInput {
                     throw new EOFException();
                 }
             }
-
-            x |= ((buffer[pos++] & 0xFF) << remainBits);
-            remainBits += 8;
         }
 
-        int res = x & ((1 << bitCount) - 1);  // optimize???
+        int res = (int) x & ((1 << bitCount) - 1);
         x >>>= bitCount;
         remainBits -= bitCount;
 
         return res;
     }
 
+    /**
+     * @param bitCount number of bits, not more than 32
+     */
     public int readBits(int bitCount) throws IOException {
-        while (bitCount > remainBits) {
-            if (pos == limit) throw new EOFException();
+        if (bitCount > remainBits) {
+            refill();
 
-            x |= ((buffer[pos++] & 0xFF) << remainBits);
-            remainBits += 8;
+            if (bitCount > remainBits) throw new EOFException();
         }
 
-        int res = x & ((1 << bitCount) - 1);
+        int res = (int) (x & ((1L << bitCount) - 1));
         x >>>= bitCount;
         remainBits -= bitCount;
 
         return res;
     }
 
+    /**
+     * Returns the next <code>bitCount</code> bits without consuming them. Missing bits past the end of the stream
+     * are read as zeros.
+     */
+    public int peekBits(int bitCount) {
+        assert bitCount <= 32;
+
+        if (bitCount > remainBits) {
+            refill();
+        }
+
+        return (int) (x & ((1L << bitCount) - 1));
+    }
+
+    /**
+     * Consumes bits returned by {@link #peekBits(int)}.
+     */
+    public void skipBits(int bitCount) throws IOException {
+        if (bitCount > remainBits) throw new EOFException();
+
+        x >>>= bitCount;
+        remainBits -= bitCount;
+    }
+
+    /**
+     * Skips the bits remaining in the current byte.
+     */
+    public void alignToByte() {
+        int n = remainBits & 7; // the accumulator is always loaded by whole bytes
+
+        x >>>= n;
+        remainBits -= n;
+    }
+
     @Override
     public long skip(long n) throws IOException {
         throw new UnsupportedOperationException();
@@ -151,13 +250,12 @@ public class BitInputStream extends InputStream implements DataInput {
 
     public int readBit() throws IOException {
         if (remainBits == 0) {
-            if (pos == limit) throw new EOFException();
+            refill();
 
-            x = buffer[pos++] & 0xFF;
-            remainBits = 8;
+            if (remainBits == 0) throw new EOFException();
         }
 
-        int res = x & 1;
+        int res = (int) x & 1;
         x >>>= 1;
         remainBits--;
 
@@ -171,7 +269,7 @@ public class BitInputStream extends InputStream implements DataInput {
 
     @Override
     public void readFully(byte[] b, int off, int len) throws IOException {
-        dataIn.readFully(b, off, len);
+        dataIn().readFully(b, off, len);
     }
 
 
@@ -192,14 +290,7 @@ public class BitInputStream extends InputStream implements DataInput {
 
     @Override
     public int readUnsignedByte() throws IOException {
-        if (pos == limit) throw new EOFException();
-
-        x |= ((buffer[pos++] & 0xFF) << remainBits);
-
-        int res = x & 0xFF;
-        x >>>= 8;
-
-        return res;
+        return readBits(8);
     }
 
     @Override
@@ -208,67 +299,41 @@ public class BitInputStream extends InputStream implements DataInput {
     }
 
     public int readShortBE() throws IOException {
-        return dataIn.readUnsignedShort();
+        return dataIn().readUnsignedShort();
     }
 
     public int readIntBE() throws IOException {
-        return dataIn.readInt();
+        return dataIn().readInt();
     }
 
     @Override
     public int readUnsignedShort() throws IOException {
-        if (pos + 2 > limit) throw new EOFException();
-
-        x |= ((buffer[pos++] & 0xFF) << remainBits);
-
-        x |= ((buffer[pos++] & 0xFF) << (remainBits + 8));
-
-        int res = x & 0xFFFF;
-        x >>>= 16;
-
-        return res;
+        return readBits(16);
     }
 
     @Override
     public char readChar() throws IOException {
-        return (char) dataIn.readShort();
+        return (char) dataIn().readShort();
     }
 
     @Override
     public int readInt() throws IOException {
-        if (pos + 4 > limit) throw new EOFException();
-
-        x |= ((buffer[pos++] & 0xFF) << remainBits);
-
-        x |= ((buffer[pos++] & 0xFF) << (remainBits + 8));
-
-        x |= ((buffer[pos++] & 0xFF) << (remainBits + 16));
-
-        int res = x & 0xFFFFFF;
-        x >>>= 24;
-
-        x |= ((buffer[pos++] & 0xFF) << remainBits);
-
-        res |= x << 24;
-
-        x >>>= 8;
-
-        return res;
+        return readBits(32);
     }
 
     @Override
     public long readLong() throws IOException {
-        return dataIn.readLong();
+        return dataIn().readLong();
     }
 
     @Override
     public float readFloat() throws IOException {
-        return dataIn.readFloat();
+        return dataIn().readFloat();
     }
 
     @Override
     public double readDouble() throws IOException {
-        return dataIn.readDouble();
+        return dataIn().readDouble();
     }
 
     @Override
@@ -278,6 +343,6 @@ public class BitInputStream extends InputStream implements DataInput {
 
     @Override
     public String readUTF() throws IOException {
-        return dataIn.readUTF();
+        return dataIn().readUTF();
     }
 }
@@ -0,0 +1,58 @@
+package com.ess.jloader.utils;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Unsynchronized stream over a byte buffer, the data is not copied.
+ *
+ * @author Sergey Evdokimov
+ */
+public class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * @return the unread part of the data.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) return 0;
+
+        int remaining = buffer.remaining();
+        if (remaining == 0) return -1;
+
+        len = Math.min(len, remaining);
+        buffer.get(b, off, len);
+
+        return len;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) return 0;
+
+        int res = (int) Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + res);
+
+        return res;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
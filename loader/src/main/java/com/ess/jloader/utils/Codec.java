@@ -0,0 +1,42 @@
+package com.ess.jloader.utils;
+
+import java.io.IOException;
+
+/**
+ * Compression of the class data. The ordinal is the id stored in the pack metadata, so constants must never be
+ * reordered, new codecs are added to the end.
+ *
+ * @author Sergey Evdokimov
+ */
+public enum Codec {
+
+    /**
+     * Raw DEFLATE with a preset dictionary, see {@link RawInflater}.
+     */
+    DEFLATE,
+
+    /**
+     * LZ77 without entropy coding, see {@link LzDecoder}. Packs are larger, classes are decoded several times faster.
+     */
+    LZ;
+
+    public Decoder createDecoder(byte[] dictionary, int dictionaryOffset, int dictionaryLength) {
+        switch (this) {
+            case DEFLATE:
+                return new RawInflater(dictionary, dictionaryOffset, dictionaryLength);
+
+            case LZ:
+                return new LzDecoder(dictionary, dictionaryOffset, dictionaryLength);
+
+            default:
+                throw new IllegalStateException(name());
+        }
+    }
+
+    public static Codec forId(int id) throws IOException {
+        Codec[] values = values();
+        if (id < 0 || id >= values.length) throw new IOException("Unknown codec: " + id);
+
+        return values[id];
+    }
+}
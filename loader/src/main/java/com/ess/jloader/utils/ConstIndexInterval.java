@@ -1,16 +1,19 @@
 package com.ess.jloader.utils;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 
 /**
+ * Mutable, so an unpacker can reuse the same instances for every class.
+ *
  * @author Sergey Evdokimov
  */
 public class ConstIndexInterval {
 
-    public final int firstIndex;
-    public final int count;
+    public int firstIndex;
+    public int count;
+
+    public ConstIndexInterval() {
+    }
 
     public ConstIndexInterval(ConstIndexInterval rightNeighbor, int count) {
         this(rightNeighbor.firstIndex - count, count);
@@ -21,6 +24,18 @@ public class ConstIndexInterval {
         this.count = count;
     }
 
+    public void set(int firstIndex, int count) {
+        this.firstIndex = firstIndex;
+        this.count = count;
+    }
+
+    /**
+     * Makes the interval end right before the neighbor.
+     */
+    public void setBefore(ConstIndexInterval rightNeighbor, int count) {
+        set(rightNeighbor.firstIndex - count, count);
+    }
+
     public int readIndexCompact(BitInputStream in) throws IOException {
         return in.readBits(32 - Integer.numberOfLeadingZeros(count - 1)) + firstIndex;
     }
@@ -34,7 +49,7 @@ public class ConstIndexInterval {
         return x - 1 + firstIndex;
     }
 
-    public int readIndexCompactNullable(DataInputStream defDataIn) throws IOException {
+    public int readIndexCompactNullable(FastInput defDataIn) throws IOException {
         int x = Utils.readLimitedShort(defDataIn, count);
         if (x == 0) {
             return 0;
@@ -43,7 +58,7 @@ public class ConstIndexInterval {
         return x - 1 + firstIndex;
     }
 
-    public int readIndexCompact(DataInputStream in) throws IOException {
+    public int readIndexCompact(FastInput in) throws IOException {
         return Utils.readLimitedShort(in, count - 1) + firstIndex;
     }
 
@@ -0,0 +1,19 @@
+package com.ess.jloader.utils;
+
+import java.io.IOException;
+
+/**
+ * Decoder of the compressed part of classes, the codec of a pack is recorded in the metadata (see {@link Codec}).
+ * An instance holds the dictionary and may keep scratch structures between calls (see {@link RawInflater}), so it is
+ * not thread-safe: a thread decoding classes uses its own instances.
+ *
+ * @author Sergey Evdokimov
+ */
+public interface Decoder {
+
+    /**
+     * Decodes the data to <code>out.array</code> starting from 0, the array grows if it is too small.
+     * Sets <code>out.pos</code> to 0 and <code>out.limit</code> to the size of the decoded data.
+     */
+    void decode(byte[] data, int offset, int length, FastInput out) throws IOException;
+}
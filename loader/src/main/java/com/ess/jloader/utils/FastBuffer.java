@@ -1,6 +1,5 @@
 package com.ess.jloader.utils;
 
-import java.io.DataInputStream;
 import java.io.IOException;
 
 /**
@@ -8,7 +7,7 @@ import java.io.IOException;
  */
 public class FastBuffer {
 
-    public final byte[] array;
+    public byte[] array;
 
     public int pos;
 
@@ -16,6 +15,17 @@ public class FastBuffer {
         array = new byte[size];
     }
 
+    /**
+     * Moves to the beginning of the buffer, the array is replaced if it is smaller than <code>size</code>.
+     */
+    public void reset(int size) {
+        if (array.length < size) {
+            array = new byte[Math.max(size, array.length + (array.length >> 1))];
+        }
+
+        pos = 0;
+    }
+
 
     public void putInt(int value) {
         putInt(pos, value);
@@ -40,6 +50,11 @@ public class FastBuffer {
         }
     }
 
+    public void put(byte[] data, int offset, int length) {
+        System.arraycopy(data, offset, array, pos, length);
+        pos += length;
+    }
+
     public void putInt(int index, int value) {
         index += 3;
         array[index--] = (byte) value;
@@ -74,7 +89,7 @@ public class FastBuffer {
         return ((array[pos] & 0xFF) << 8) | (array[pos + 1] & 0xFF);
     }
 
-    public void readFully(DataInputStream in, int len) throws IOException {
+    public void readFully(FastInput in, int len) throws IOException {
         in.readFully(array, pos, len);
         pos += len;
     }
@@ -0,0 +1,88 @@
+package com.ess.jloader.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Unsynchronized cursor over a byte array, reads big-endian values like {@link java.io.DataInputStream}.
+ * The array may be filled by {@link RawInflater#inflate(byte[], int, int, FastInput)}, the instance can be reused for
+ * the next stream.
+ *
+ * @author Sergey Evdokimov
+ */
+public class FastInput {
+
+    public byte[] array;
+
+    public int pos;
+
+    public int limit;
+
+    public FastInput(int size) {
+        array = new byte[Math.max(size, 16)];
+    }
+
+    public FastInput(byte[] array, int pos, int limit) {
+        this.array = array;
+        this.pos = pos;
+        this.limit = limit;
+    }
+
+    /**
+     * Copies the data to the beginning of the array, the array grows if it is too small. Sets <code>pos</code> to 0
+     * and <code>limit</code> to the length.
+     */
+    public void fill(byte[] data, int offset, int length) {
+        if (array.length < length) {
+            array = new byte[Math.max(length, array.length * 2)];
+        }
+
+        System.arraycopy(data, offset, array, 0, length);
+
+        pos = 0;
+        limit = length;
+    }
+
+    public int remaining() {
+        return limit - pos;
+    }
+
+    /**
+     * @return the next byte or -1 at the end of data.
+     */
+    public int read() {
+        return pos < limit ? array[pos++] & 0xFF : -1;
+    }
+
+    public int readUnsignedByte() throws IOException {
+        if (pos >= limit) throw new EOFException();
+        return array[pos++] & 0xFF;
+    }
+
+    public int readUnsignedShort() throws IOException {
+        int p = pos;
+        if (p + 2 > limit) throw new EOFException();
+
+        pos = p + 2;
+        return ((array[p] & 0xFF) << 8) | (array[p + 1] & 0xFF);
+    }
+
+    public int readShort() throws IOException {
+        return (short) readUnsignedShort();
+    }
+
+    public int readInt() throws IOException {
+        int p = pos;
+        if (p + 4 > limit) throw new EOFException();
+
+        pos = p + 4;
+        return (array[p] << 24) | ((array[p + 1] & 0xFF) << 16) | ((array[p + 2] & 0xFF) << 8) | (array[p + 3] & 0xFF);
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        if (len > limit - pos) throw new EOFException();
+
+        System.arraycopy(array, pos, b, off, len);
+        pos += len;
+    }
+}
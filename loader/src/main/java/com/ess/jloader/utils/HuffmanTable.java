@@ -0,0 +1,166 @@
+package com.ess.jloader.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+/**
+ * Table-driven decoder of canonical Huffman codes (see {@link HuffmanUtils#buildCanonicalCodes(int[])}).
+ * The first {@link #ROOT_BITS} bits of the code select an entry of the root table, the entry is either a symbol
+ * or a link to a second-level table indexed by the remaining bits. A symbol is resolved with one or two lookups.
+ * <p/>
+ * Entry format: <code>symbol << 5 | codeLength</code> for symbols (the length is counted from the beginning of
+ * the table), <code>~(offset << 5 | tableBits)</code> for links. Incomplete code sets (e.g. a single code) are
+ * allowed, bit patterns not assigned to any symbol are filled with the number of symbols and rejected by
+ * {@link #decode(BitInputStream)}. Over-subscribed code sets are rejected by {@link #build(int[], int, int)}.
+ *
+ * @author Sergey Evdokimov
+ */
+public class HuffmanTable {
+
+    public static final int ROOT_BITS = 10;
+
+    private int[] table;
+
+    private int rootBits;
+
+    private int count;
+
+    // Scratch arrays kept for the next build()
+    private int[] codes;
+    private int[] nextCode;
+    private int[] subBits;
+    private int[] subOffset;
+
+    public HuffmanTable(int[] lengths) throws ZipException {
+        build(lengths, 0, lengths.length);
+    }
+
+    /**
+     * Creates an empty table to be filled by {@link #build(int[], int, int)}.
+     */
+    public HuffmanTable() {
+    }
+
+    /**
+     * Rebuilds the table for the code lengths <code>lengths[offset .. offset + count)</code>, the arrays of
+     * the table are reused if they are large enough.
+     *
+     * @throws ZipException if the code set is over-subscribed, i.e. the lengths don't describe a prefix code.
+     */
+    public void build(int[] lengths, int offset, int count) throws ZipException {
+        int maxLength = 0;
+        long kraftSum = 0; // sum of 2^(MAX_CODE_LENGTH - length), a prefix code has at most 2^MAX_CODE_LENGTH
+
+        for (int i = offset; i < offset + count; i++) {
+            int len = lengths[i];
+            maxLength = Math.max(maxLength, len);
+
+            if (len > 0) {
+                kraftSum += 1L << (HuffmanUtils.MAX_CODE_LENGTH - len);
+            }
+        }
+
+        assert maxLength <= HuffmanUtils.MAX_CODE_LENGTH;
+        assert count < (1 << 26);
+
+        if (kraftSum > 1L << HuffmanUtils.MAX_CODE_LENGTH) throw new ZipException("Over-subscribed Huffman code set");
+
+        this.count = count;
+
+        rootBits = Math.min(maxLength, ROOT_BITS);
+
+        int rootSize = 1 << rootBits;
+        int rootMask = rootSize - 1;
+
+        if (codes == null || codes.length < count) {
+            codes = new int[count];
+        }
+        if (nextCode == null) {
+            nextCode = new int[HuffmanUtils.MAX_CODE_LENGTH + 2];
+            subBits = new int[1 << ROOT_BITS];
+            subOffset = new int[1 << ROOT_BITS];
+        }
+
+        int[] codes = this.codes;
+        int[] subBits = this.subBits;
+        int[] subOffset = this.subOffset;
+
+        HuffmanUtils.buildCanonicalCodes(lengths, offset, count, codes, nextCode);
+
+        // Size of second-level tables
+        Arrays.fill(subBits, 0, rootSize, 0);
+        for (int i = 0; i < count; i++) {
+            int len = lengths[offset + i];
+            if (len > rootBits) {
+                int prefix = codes[i] & rootMask;
+                subBits[prefix] = Math.max(subBits[prefix], len - rootBits);
+            }
+        }
+
+        int size = rootSize;
+        for (int prefix = 0; prefix < rootSize; prefix++) {
+            if (subBits[prefix] > 0) {
+                subOffset[prefix] = size;
+                size += 1 << subBits[prefix];
+            }
+        }
+
+        if (table == null || table.length < size) {
+            table = new int[size];
+        }
+
+        int[] table = this.table;
+
+        Arrays.fill(table, 0, size, count << 5);
+
+        for (int prefix = 0; prefix < rootSize; prefix++) {
+            if (subBits[prefix] > 0) {
+                table[prefix] = ~(subOffset[prefix] << 5 | subBits[prefix]);
+            }
+        }
+
+        for (int symbol = 0; symbol < count; symbol++) {
+            int len = lengths[offset + symbol];
+            if (len == 0) continue;
+
+            int code = codes[symbol];
+
+            if (len <= rootBits) {
+                for (int i = code; i < rootSize; i += 1 << len) {
+                    table[i] = symbol << 5 | len;
+                }
+            }
+            else {
+                int prefix = code & rootMask;
+                int subLen = len - rootBits;
+                int offs = subOffset[prefix];
+
+                for (int i = code >>> rootBits; i < (1 << subBits[prefix]); i += 1 << subLen) {
+                    table[offs + i] = symbol << 5 | subLen;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return index of the decoded symbol.
+     * @throws ZipException if the bits are not a code of any symbol.
+     */
+    public int decode(BitInputStream in) throws IOException {
+        int e = table[in.peekBits(rootBits)];
+
+        if (e < 0) {
+            e = ~e;
+            in.skipBits(rootBits);
+            e = table[(e >>> 5) + in.peekBits(e & 31)];
+        }
+
+        int res = e >>> 5;
+        if (res >= count) throw new ZipException("Invalid Huffman code");
+
+        in.skipBits(e & 31);
+
+        return res;
+    }
+}
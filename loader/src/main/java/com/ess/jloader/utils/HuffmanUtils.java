@@ -1,56 +1,140 @@
 package com.ess.jloader.utils;
 
-import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.SortedMap;
+import java.util.Arrays;
 
 /**
  * @author Sergey Evdokimov
  */
 public class HuffmanUtils {
 
-    public static <T> TreeElement buildHuffmanTree(PriorityQueue<TreeElement> queue) {
-        while (queue.size() > 1) {
-            TreeElement e1 = queue.poll();
-            TreeElement e2 = queue.poll();
+    /**
+     * Longer codes are never produced, so {@link BitInputStream#peekBits(int)} can see any code at once.
+     */
+    public static final int MAX_CODE_LENGTH = 24;
 
-            queue.add(new Node(e1.weight + e2.weight, e1, e2));
+    /**
+     * Calculates Huffman code lengths. The result depends only on the weights and their order, so the packer
+     * and the loader get the same code from the same weight array.
+     *
+     * @param weights positive symbol weights
+     * @return code length of each symbol, no length exceeds <code>maxLength</code>
+     */
+    public static int[] buildCodeLengths(int[] weights, int maxLength) {
+        int n = weights.length;
+
+        if (n == 0) return new int[0];
+        if (n == 1) return new int[]{1};
+
+        long[] w = new long[n];
+        for (int i = 0; i < n; i++) {
+            assert weights[i] > 0;
+            w[i] = weights[i];
         }
 
-        return queue.peek();
+        while (true) {
+            int[] res = buildCodeLengths(w);
+
+            int max = 0;
+            for (int len : res) {
+                max = Math.max(max, len);
+            }
+
+            if (max <= maxLength) return res;
+
+            // Flatten the distribution and try again, like bzip2 does.
+            for (int i = 0; i < n; i++) {
+                w[i] = (w[i] >> 1) + 1;
+            }
+        }
     }
 
-    public static class TreeElement implements Comparable<TreeElement> {
-        public final int weight;
+    private static int[] buildCodeLengths(long[] weights) {
+        int n = weights.length;
+
+        // Symbols sorted by (weight, index)
+        long[] sorted = new long[n];
+        for (int i = 0; i < n; i++) {
+            sorted[i] = (weights[i] << 32) | i;
+        }
+        Arrays.sort(sorted);
+
+        // Two-queue construction: leaves in sorted order and internal nodes in creation order, both are ascending.
+        int[] leafParent = new int[n];
+
+        long[] nodeWeight = new long[n - 1];
+        int[] nodeParent = new int[n - 1];
 
-        public TreeElement(int weight) {
-            this.weight = weight;
+        int leafPos = 0;
+        int nodePos = 0;
+
+        for (int node = 0; node < n - 1; node++) {
+            long weight = 0;
+
+            for (int k = 0; k < 2; k++) {
+                if (leafPos < n && (nodePos == node || (sorted[leafPos] >>> 32) <= nodeWeight[nodePos])) {
+                    weight += sorted[leafPos] >>> 32;
+                    leafParent[leafPos++] = node;
+                }
+                else {
+                    weight += nodeWeight[nodePos];
+                    nodeParent[nodePos++] = node;
+                }
+            }
+
+            nodeWeight[node] = weight;
+        }
+
+        int[] depth = new int[n - 1];
+        for (int node = n - 3; node >= 0; node--) {
+            depth[node] = depth[nodeParent[node]] + 1;
         }
 
-        @Override
-        public int compareTo(TreeElement o) {
-            return weight - o.weight;
+        int[] res = new int[n];
+        for (int i = 0; i < n; i++) {
+            res[(int) sorted[i]] = depth[leafParent[i]] + 1;
         }
+
+        return res;
     }
 
-    public static class Leaf extends TreeElement {
+    /**
+     * Assigns canonical codes: shorter codes come first, codes of the same length are ordered by symbol index.
+     * The codes are bit-reversed because {@link BitOutputStream} writes the low bit first, so the first bit of a code
+     * is its lowest bit.
+     */
+    public static int[] buildCanonicalCodes(int[] lengths) {
+        int[] res = new int[lengths.length];
+        buildCanonicalCodes(lengths, 0, lengths.length, res, new int[MAX_CODE_LENGTH + 2]);
+        return res;
+    }
 
-        public final Object element;
+    /**
+     * Writes the codes of <code>lengths[offset .. offset + count)</code> to <code>codes[0 .. count)</code>.
+     *
+     * @param nextCode scratch array, at least <code>MAX_CODE_LENGTH + 2</code> elements
+     */
+    public static void buildCanonicalCodes(int[] lengths, int offset, int count, int[] codes, int[] nextCode) {
+        int maxLength = 0;
+        for (int i = offset; i < offset + count; i++) {
+            maxLength = Math.max(maxLength, lengths[i]);
+        }
 
-        public Leaf(int weight, Object element) {
-            super(weight);
-            this.element = element;
+        // nextCode[len + 1] counts codes of the length first
+        Arrays.fill(nextCode, 0, maxLength + 2, 0);
+        for (int i = offset; i < offset + count; i++) {
+            nextCode[lengths[i] + 1]++;
         }
-    }
+        nextCode[1] = 0;
 
-    public static class Node extends TreeElement {
-        public final TreeElement trueNode;
-        public final TreeElement falseNode;
+        int code = 0;
+        for (int len = 1; len <= maxLength; len++) {
+            code = (code + nextCode[len]) << 1;
+            nextCode[len] = code;
+        }
 
-        public Node(int weight, TreeElement trueNode, TreeElement falseNode) {
-            super(weight);
-            this.trueNode = trueNode;
-            this.falseNode = falseNode;
+        for (int i = 0; i < count; i++) {
+            int len = lengths[offset + i];
+            codes[i] = len > 0 ? Integer.reverse(nextCode[len]++) >>> (32 - len) : 0;
         }
     }
 
@@ -0,0 +1,130 @@
+package com.ess.jloader.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+/**
+ * Decoder of the LZ codec: byte-aligned LZ77 sequences without entropy coding, so decoding is a series of array copies.
+ * A sequence is a token (literal count in the high nibble, match length - {@link #MIN_MATCH} in the low one, 15 means
+ * the value continues in the next bytes, each byte is added until a byte is not 255), literals, 2-byte little-endian
+ * match distance. The last sequence has literals only. Like {@link RawInflater}, back references reaching before
+ * the beginning of the output are resolved against the dictionary array directly.
+ *
+ * @author Sergey Evdokimov
+ */
+public class LzDecoder implements Decoder {
+
+    public static final int MIN_MATCH = 4;
+
+    public static final int MAX_DISTANCE = 0xFFFF;
+
+    private final byte[] dictionary;
+    private final int dictionaryOffset;
+    private final int dictionaryLength;
+
+    public LzDecoder(byte[] dictionary, int dictionaryOffset, int dictionaryLength) {
+        this.dictionary = dictionary;
+        this.dictionaryOffset = dictionaryOffset;
+        this.dictionaryLength = dictionaryLength;
+    }
+
+    @Override
+    public void decode(byte[] data, int offset, int length, FastInput out) throws IOException {
+        int pos = offset;
+        int end = offset + length;
+
+        byte[] res = out.array;
+        int outPos = 0;
+
+        while (true) {
+            if (pos >= end) throw new EOFException();
+
+            int token = data[pos++] & 0xFF;
+
+            int literalCount = token >>> 4;
+            if (literalCount == 15) {
+                int b;
+                do {
+                    if (pos >= end) throw new EOFException();
+                    b = data[pos++] & 0xFF;
+                    literalCount += b;
+                } while (b == 255);
+            }
+
+            if (literalCount > end - pos) throw new EOFException();
+
+            if (outPos + literalCount > res.length) {
+                res = ensureCapacity(out, outPos + literalCount);
+            }
+
+            System.arraycopy(data, pos, res, outPos, literalCount);
+            pos += literalCount;
+            outPos += literalCount;
+
+            if (pos == end) break;
+
+            if (pos + 2 > end) throw new EOFException();
+
+            int distance = (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8);
+            pos += 2;
+
+            int len = (token & 15) + MIN_MATCH;
+            if ((token & 15) == 15) {
+                int b;
+                do {
+                    if (pos >= end) throw new EOFException();
+                    b = data[pos++] & 0xFF;
+                    len += b;
+                } while (b == 255);
+            }
+
+            if (distance == 0) throw new ZipException("Invalid distance");
+
+            if (outPos + len > res.length) {
+                res = ensureCapacity(out, outPos + len);
+            }
+
+            if (distance > outPos) {
+                // The match starts in the dictionary and may continue at the beginning of the output
+                int back = distance - outPos;
+                if (back > dictionaryLength) throw new ZipException("Invalid distance too far back");
+
+                int n = Math.min(len, back);
+                System.arraycopy(dictionary, dictionaryOffset + dictionaryLength - back, res, outPos, n);
+                outPos += n;
+                len -= n;
+
+                if (len == 0) continue;
+            }
+
+            int from = outPos - distance;
+
+            if (distance >= len) {
+                System.arraycopy(res, from, res, outPos, len);
+                outPos += len;
+            }
+            else {
+                // Overlapping match repeats the last 'distance' bytes
+                for (int matchEnd = outPos + len; outPos < matchEnd; ) {
+                    res[outPos++] = res[from++];
+                }
+            }
+        }
+
+        out.pos = 0;
+        out.limit = outPos;
+    }
+
+    private static byte[] ensureCapacity(FastInput out, int size) {
+        byte[] res = out.array;
+
+        if (size > res.length) {
+            res = Arrays.copyOf(res, Math.max(size, res.length * 2));
+            out.array = res;
+        }
+
+        return res;
+    }
+}
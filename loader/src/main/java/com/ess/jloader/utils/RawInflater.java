@@ -0,0 +1,303 @@
+package com.ess.jloader.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+/**
+ * Decoder of raw DEFLATE data (RFC 1951) compressed with a preset dictionary. Unlike {@link java.util.zip.Inflater}
+ * the dictionary is never copied into a window: back references reaching before the beginning of the output are
+ * resolved against the dictionary array directly. Per-call structures live in a {@link Workspace} that can be reused
+ * to decode without allocations. {@link #decode(byte[], int, int, FastInput)} reuses the workspace of the instance,
+ * so it must not be called by several threads at once, {@link #inflate(byte[], int, int, FastInput)} is thread-safe.
+ *
+ * @author Sergey Evdokimov
+ */
+public class RawInflater implements Decoder {
+
+    private static final int MAX_MATCH = 258;
+
+    private static final int END_OF_BLOCK = 256;
+
+    private static final int MAX_LITERAL_SYMBOL = 285;
+
+    private static final int MAX_DISTANCE_SYMBOL = 29;
+
+    private static final int[] LENGTH_BASE = {
+            3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258
+    };
+
+    private static final int[] LENGTH_EXTRA = {
+            0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+    };
+
+    private static final int[] DISTANCE_BASE = {
+            1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073,
+            4097, 6145, 8193, 12289, 16385, 24577
+    };
+
+    private static final int[] DISTANCE_EXTRA = {
+            0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13
+    };
+
+    private static final int[] CODE_LENGTH_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+    private static final byte[] NO_DATA = new byte[0];
+
+    private static final HuffmanTable FIXED_LITERALS;
+    private static final HuffmanTable FIXED_DISTANCES;
+
+    static {
+        int[] lengths = new int[288];
+        Arrays.fill(lengths, 0, 144, 8);
+        Arrays.fill(lengths, 144, 256, 9);
+        Arrays.fill(lengths, 256, 280, 7);
+        Arrays.fill(lengths, 280, 288, 8);
+
+        try {
+            FIXED_LITERALS = new HuffmanTable(lengths);
+
+            lengths = new int[30];
+            Arrays.fill(lengths, 5);
+            FIXED_DISTANCES = new HuffmanTable(lengths);
+        } catch (ZipException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private final byte[] dictionary;
+    private final int dictionaryOffset;
+    private final int dictionaryLength;
+
+    /**
+     * Workspace of {@link #decode(byte[], int, int, FastInput)}, created on first use.
+     */
+    private Workspace workspace;
+
+    public RawInflater(byte[] dictionary, int dictionaryOffset, int dictionaryLength) {
+        this.dictionary = dictionary;
+        this.dictionaryOffset = dictionaryOffset;
+        this.dictionaryLength = dictionaryLength;
+    }
+
+    /**
+     * Decodes the data to <code>out.array</code> starting from 0, the array grows if it is too small.
+     * Sets <code>out.pos</code> to 0 and <code>out.limit</code> to the size of the decoded data.
+     */
+    public void inflate(byte[] data, int offset, int length, FastInput out) throws IOException {
+        inflate(data, offset, length, out, new Workspace(data));
+    }
+
+    @Override
+    public void decode(byte[] data, int offset, int length, FastInput out) throws IOException {
+        Workspace ws = workspace;
+        if (ws == null) {
+            ws = new Workspace(NO_DATA);
+            workspace = ws;
+        }
+
+        inflate(data, offset, length, out, ws);
+    }
+
+    public void inflate(byte[] data, int offset, int length, FastInput out, Workspace ws) throws IOException {
+        BitInputStream in = ws.in;
+        in.reset(data, offset, offset + length);
+
+        int pos = 0;
+
+        try {
+            boolean last;
+            do {
+                last = in.readBoolean();
+
+                switch (in.readBits(2)) {
+                    case 0:
+                        pos = copyStoredBlock(in, out, pos);
+                        break;
+
+                    case 1:
+                        pos = inflateBlock(in, FIXED_LITERALS, FIXED_DISTANCES, out, pos);
+                        break;
+
+                    case 2:
+                        pos = inflateDynamicBlock(in, out, pos, ws);
+                        break;
+
+                    default:
+                        throw new ZipException("Invalid block type");
+                }
+            } while (!last);
+        } finally {
+            in.reset(NO_DATA, 0, 0); // a reused workspace must not keep the compressed data reachable
+        }
+
+        out.pos = 0;
+        out.limit = pos;
+    }
+
+    private static byte[] ensureCapacity(FastInput out, int size) {
+        byte[] res = out.array;
+
+        if (size > res.length) {
+            res = Arrays.copyOf(res, Math.max(size, res.length * 2));
+            out.array = res;
+        }
+
+        return res;
+    }
+
+    private static int copyStoredBlock(BitInputStream in, FastInput out, int pos) throws IOException {
+        in.alignToByte();
+
+        int len = in.readBits(16);
+        int nlen = in.readBits(16);
+        if (len != (~nlen & 0xFFFF)) throw new ZipException("Invalid stored block lengths");
+
+        byte[] res = ensureCapacity(out, pos + len);
+
+        if (len > 0 && in.read(res, pos, len) != len) throw new ZipException("Unexpected end of stored block");
+
+        return pos + len;
+    }
+
+    private int inflateDynamicBlock(BitInputStream in, FastInput out, int pos, Workspace ws) throws IOException {
+        int literalCount = in.readBits(5) + 257;
+        int distanceCount = in.readBits(5) + 1;
+        int codeLengthCount = in.readBits(4) + 4;
+
+        int[] codeLengthLengths = ws.codeLengthLengths;
+        Arrays.fill(codeLengthLengths, 0);
+        for (int i = 0; i < codeLengthCount; i++) {
+            codeLengthLengths[CODE_LENGTH_ORDER[i]] = in.readBits(3);
+        }
+
+        HuffmanTable codeLengthTable = ws.codeLengthTable;
+        codeLengthTable.build(codeLengthLengths, 0, codeLengthLengths.length);
+
+        int[] lengths = ws.lengths;
+        int lengthCount = literalCount + distanceCount;
+
+        for (int i = 0; i < lengthCount; ) {
+            int symbol = codeLengthTable.decode(in);
+
+            if (symbol < 16) {
+                lengths[i++] = symbol;
+                continue;
+            }
+
+            int value = 0;
+            int repeat;
+
+            if (symbol == 16) {
+                if (i == 0) throw new ZipException("Invalid bit length repeat");
+                value = lengths[i - 1];
+                repeat = 3 + in.readBits(2);
+            }
+            else if (symbol == 17) {
+                repeat = 3 + in.readBits(3);
+            }
+            else if (symbol == 18) {
+                repeat = 11 + in.readBits(7);
+            }
+            else {
+                throw new ZipException("Invalid code lengths set");
+            }
+
+            if (i + repeat > lengthCount) throw new ZipException("Invalid bit length repeat");
+
+            Arrays.fill(lengths, i, i + repeat, value);
+            i += repeat;
+        }
+
+        if (lengths[END_OF_BLOCK] == 0) throw new ZipException("Missing end-of-block code");
+
+        HuffmanTable literals = ws.literals;
+        literals.build(lengths, 0, literalCount);
+
+        HuffmanTable distances = ws.distances;
+        distances.build(lengths, literalCount, distanceCount);
+
+        return inflateBlock(in, literals, distances, out, pos);
+    }
+
+    private int inflateBlock(BitInputStream in, HuffmanTable literals, HuffmanTable distances, FastInput out, int pos)
+            throws IOException {
+        byte[] res = out.array;
+
+        while (true) {
+            int symbol = literals.decode(in);
+
+            if (symbol < END_OF_BLOCK) {
+                if (pos == res.length) {
+                    res = ensureCapacity(out, pos + 1);
+                }
+
+                res[pos++] = (byte) symbol;
+                continue;
+            }
+
+            if (symbol == END_OF_BLOCK) return pos;
+
+            if (symbol > MAX_LITERAL_SYMBOL) throw new ZipException("Invalid literal/length code");
+
+            symbol -= END_OF_BLOCK + 1;
+            int len = LENGTH_BASE[symbol] + in.readBits(LENGTH_EXTRA[symbol]);
+
+            symbol = distances.decode(in);
+            if (symbol > MAX_DISTANCE_SYMBOL) throw new ZipException("Invalid distance code");
+
+            int distance = DISTANCE_BASE[symbol] + in.readBits(DISTANCE_EXTRA[symbol]);
+
+            if (pos + MAX_MATCH > res.length) {
+                res = ensureCapacity(out, pos + MAX_MATCH);
+            }
+
+            if (distance > pos) {
+                // The match starts in the dictionary and may continue at the beginning of the output
+                int back = distance - pos;
+                if (back > dictionaryLength) throw new ZipException("Invalid distance too far back");
+
+                int n = Math.min(len, back);
+                System.arraycopy(dictionary, dictionaryOffset + dictionaryLength - back, res, pos, n);
+                pos += n;
+                len -= n;
+
+                if (len == 0) continue;
+            }
+
+            int from = pos - distance;
+
+            if (distance >= len) {
+                System.arraycopy(res, from, res, pos, len);
+                pos += len;
+            }
+            else {
+                // Overlapping match repeats the last 'distance' bytes
+                for (int end = pos + len; pos < end; ) {
+                    res[pos++] = res[from++];
+                }
+            }
+        }
+    }
+
+    /**
+     * Reusable decoding structures, must not be used by several threads at once.
+     */
+    public static class Workspace {
+        private final BitInputStream in;
+
+        private final int[] codeLengthLengths = new int[CODE_LENGTH_ORDER.length];
+        private final int[] lengths = new int[(257 + 31) + (1 + 31)]; // HLIT and HDIST are 5 bits
+
+        private final HuffmanTable codeLengthTable = new HuffmanTable();
+        private final HuffmanTable literals = new HuffmanTable();
+        private final HuffmanTable distances = new HuffmanTable();
+
+        /**
+         * @param data the array the workspace is going to decode mostly, see {@link BitInputStream#reset(byte[], int, int)}
+         */
+        public Workspace(byte[] data) {
+            in = new BitInputStream(data, 0, 0);
+        }
+    }
+}
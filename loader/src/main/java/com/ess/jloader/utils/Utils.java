@@ -70,7 +70,7 @@ public class Utils {
         }
     }
 
-    public static final byte PACKER_VERSION = 0x01;
+    public static final byte PACKER_VERSION = 0x09;
 
     public static final byte MAGIC = (byte) 0xAA;
 
@@ -104,7 +104,7 @@ public class Utils {
         }
     }
 
-    public static int readLimitedShort(DataInputStream in, int limit) throws IOException {
+    public static int readLimitedShort(FastInput in, int limit) throws IOException {
         if (CHECK_LIMITS) {
             int storedLimit = in.readUnsignedShort();
             assert storedLimit == limit;
@@ -146,6 +146,23 @@ public class Utils {
         return (((x - 251) << 8) + in.readUnsignedByte()) - 4;
     }
 
+    public static int readSmallShort3(FastInput in) throws IOException {
+        if (CHECK_LIMITS) {
+            if (in.readUnsignedByte() != 0x73) throw new RuntimeException();
+        }
+
+        int x = in.readUnsignedByte();
+        if (x <= 251) {
+            return x;
+        }
+
+        if (x == 255) {
+            return in.readUnsignedShort();
+        }
+
+        return (((x - 251) << 8) + in.readUnsignedByte()) - 4;
+    }
+
     public static String generateEnclosingClassName(String thisClassName) {
         int idx = thisClassName.lastIndexOf('$');
         return idx == -1 ? null : thisClassName.substring(0, idx);
@@ -171,6 +188,31 @@ public class Utils {
         return size;
     }
 
+    public static int readShortInt(FastInput in) throws IOException {
+        int size = in.readUnsignedShort();
+        if (size >= 0x8000) {
+            size = ((-((short)size)) << 15) | in.readUnsignedShort();
+        }
+
+        return size;
+    }
+
+    public static int readShortInt(byte[] data, int pos) {
+        int size = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+        if (size >= 0x8000) {
+            size = ((-((short)size)) << 15) | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+        }
+
+        return size;
+    }
+
+    /**
+     * @return number of bytes used by writeShortInt() to store the value.
+     */
+    public static int getShortIntSize(int value) {
+        return value < 0x8000 ? 2 : 4;
+    }
+
     public static File getJarByMarker(ClassLoader classLoader, String marker) {
         String path = classLoader.getResource(marker).getPath();
         int idx = path.lastIndexOf("!/");
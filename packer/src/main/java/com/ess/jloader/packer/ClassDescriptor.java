@@ -1,6 +1,7 @@
 package com.ess.jloader.packer;
 
 import com.ess.jloader.packer.attributes.*;
+import com.ess.jloader.packer.codec.Encoder;
 import com.ess.jloader.packer.consts.*;
 import com.ess.jloader.utils.*;
 import com.google.common.collect.Iterables;
@@ -17,8 +18,6 @@ import java.io.OutputStream;
 import java.lang.reflect.Modifier;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 /**
 * @author Sergey Evdokimov
@@ -126,7 +125,7 @@ public class ClassDescriptor extends PropertiesHolder {
     public void pack(CompressionContext ctx) throws IOException {
         assert plainData == null;
 
-        plainData = new BitOutputStream(new ByteArrayOutputStream());
+        plainData = new BitOutputStream(new OpenByteOutputStream());
         forCompressionDataArray = new OpenByteOutputStream();
 
         DataOutputStream compressed = new DataOutputStream(forCompressionDataArray);
@@ -422,20 +421,45 @@ public class ClassDescriptor extends PropertiesHolder {
         list.set(beginIndex, element);
     }
 
+    public OpenByteOutputStream getPlainDataArray() {
+        return (OpenByteOutputStream) plainData.getDelegate();
+    }
+
     public void writeTo(OutputStream out, byte[] dictionary) throws IOException {
-        ByteArrayOutputStream plainDataArray = (ByteArrayOutputStream) plainData.getDelegate();
+        OpenByteOutputStream plainDataArray = getPlainDataArray();
 
-        PackUtils.writeShortInt(new DataOutputStream(out), plainDataArray.size());
+        writeTo(out, plainDataArray.getBuffer(), plainDataArray.size(),
+                forCompressionDataArray.getBuffer(), forCompressionDataArray.size(), dictionary, 0, 1,
+                Encoder.forCodec(Codec.DEFLATE));
+    }
 
-        plainDataArray.writeTo(out);
+    /**
+     * Writes a packed class, the plain and the compressed parts are the result of {@link #pack(CompressionContext)}.
+     * The id of the dictionary is combined with the size of the plain part, so a single dictionary costs nothing.
+     */
+    public static void writeTo(OutputStream out, byte[] plainData, int plainDataSize,
+                               byte[] forCompressionData, int forCompressionDataSize,
+                               byte[] dictionary, int dictionaryId, int dictionaryCount,
+                               Encoder encoder) throws IOException {
+        PackUtils.writeShortInt(new DataOutputStream(out), plainDataSize * dictionaryCount + dictionaryId);
 
-        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
-        deflater.setDictionary(dictionary);
+        out.write(plainData, 0, plainDataSize);
+
+        encoder.encode(out, forCompressionData, forCompressionDataSize, dictionary);
+    }
 
-        DeflaterOutputStream defOut = new DeflaterOutputStream(out, deflater);
-        forCompressionDataArray.writeTo(defOut);
-        defOut.close();
-        deflater.end();
+    /**
+     * Writes a packed class of the solid mode, the compressed part is stored in a block (see
+     * {@link com.ess.jloader.loader.SolidBlocks}).
+     */
+    public static void writeTo(OutputStream out, byte[] plainData, int plainDataSize,
+                               int blockIndex, int blockClassIndex) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(out);
+        PackUtils.writeShortInt(dataOut, plainDataSize);
+        PackUtils.writeShortInt(dataOut, blockIndex);
+        PackUtils.writeShortInt(dataOut, blockClassIndex);
+
+        out.write(plainData, 0, plainDataSize);
     }
 
     private int skipClassConst(ByteBuffer buffer, String className) {
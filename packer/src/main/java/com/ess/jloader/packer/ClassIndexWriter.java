@@ -0,0 +1,122 @@
+package com.ess.jloader.packer;
+
+import com.ess.jloader.utils.Utils;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Writes the class metadata index read by {@link com.ess.jloader.loader.ClassMetadataIndex}: access flags,
+ * super class, interfaces and class-level annotations of every class, see packer/doc/format.txt.
+ *
+ * @author Sergey Evdokimov
+ */
+public class ClassIndexWriter {
+
+    private final List<ClassInfo> classes = new ArrayList<ClassInfo>();
+
+    private final SortedSet<String> names = new TreeSet<String>();
+
+    public void addClass(ClassDescriptor descriptor) {
+        final ClassInfo info = new ClassInfo();
+
+        new ClassReader(descriptor.getRepackedClass()).accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                info.name = name;
+                info.access = access;
+                info.superName = superName;
+                info.interfaces = interfaces == null ? new String[0] : interfaces;
+            }
+
+            @Override
+            public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                info.annotations.add(Type.getType(desc).getInternalName());
+                return null;
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+
+        classes.add(info);
+
+        names.add(info.name);
+        if (info.superName != null) {
+            names.add(info.superName);
+        }
+        names.addAll(Arrays.asList(info.interfaces));
+        names.addAll(info.annotations);
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        Collections.sort(classes, new Comparator<ClassInfo>() {
+            @Override
+            public int compare(ClassInfo o1, ClassInfo o2) {
+                return o1.name.compareTo(o2.name);
+            }
+        });
+
+        Map<String, Integer> nameIds = new HashMap<String, Integer>();
+
+        out.write(Utils.MAGIC);
+        out.write(Utils.PACKER_VERSION);
+
+        out.writeInt(names.size());
+        for (String name : names) {
+            nameIds.put(name, nameIds.size());
+            out.writeUTF(name);
+        }
+
+        out.writeInt(classes.size());
+
+        for (ClassInfo info : classes) {
+            out.writeInt(nameIds.get(info.name));
+        }
+
+        for (ClassInfo info : classes) {
+            out.writeShort(info.access);
+        }
+
+        for (ClassInfo info : classes) {
+            out.writeInt(info.superName == null ? -1 : nameIds.get(info.superName));
+        }
+
+        int offset = 0;
+        for (ClassInfo info : classes) {
+            out.writeInt(offset);
+            offset += info.interfaces.length;
+        }
+        out.writeInt(offset);
+
+        for (ClassInfo info : classes) {
+            for (String name : info.interfaces) {
+                out.writeInt(nameIds.get(name));
+            }
+        }
+
+        offset = 0;
+        for (ClassInfo info : classes) {
+            out.writeInt(offset);
+            offset += info.annotations.size();
+        }
+        out.writeInt(offset);
+
+        for (ClassInfo info : classes) {
+            for (String name : info.annotations) {
+                out.writeInt(nameIds.get(name));
+            }
+        }
+    }
+
+    private static class ClassInfo {
+        private String name;
+        private int access;
+        private String superName;
+        private String[] interfaces;
+        private final List<String> annotations = new ArrayList<String>();
+    }
+}
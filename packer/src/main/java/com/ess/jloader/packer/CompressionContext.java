@@ -17,6 +17,11 @@ public class CompressionContext {
         versionCache = new VersionCache(classes);
     }
 
+    public CompressionContext(LiteralsCache literalsCache, VersionCache versionCache) {
+        this.literalsCache = literalsCache;
+        this.versionCache = versionCache;
+    }
+
     public LiteralsCache getLiteralsCache() {
         return literalsCache;
     }
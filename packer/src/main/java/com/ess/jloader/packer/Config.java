@@ -1,13 +1,78 @@
 package com.ess.jloader.packer;
 
+import com.ess.jloader.packer.dictionary.DictionaryCalculator;
+import com.ess.jloader.utils.Codec;
+
+import java.io.File;
+
 /**
  * @author Sergey Evdokimov
  */
 public class Config {
 
+    public static final int MAX_DICTIONARY_COUNT = 16;
+
+    public static final int MAX_SOLID_BLOCK_SIZE = 16 * 1024 * 1024;
+
     private boolean removeSourceDebugExtensionAttribute;
     private boolean removeInvisibleAnnotation;
 
+    /**
+     * Class load-order trace (see {@link com.ess.jloader.loader.LoadOrderRecorder}). Traced classes are written
+     * at the beginning of the pack in first-load order.
+     */
+    private File loadOrderFile;
+
+    /**
+     * Write all classes to one entry with a name index instead of separate .class entries. Such pack can be loaded by
+     * {@link com.ess.jloader.loader.PackClassLoader} only, not by the agent.
+     */
+    private boolean singleBlob;
+
+    /**
+     * Write the class metadata index (see {@link com.ess.jloader.loader.ClassMetadataIndex}).
+     */
+    private boolean classIndex;
+
+    /**
+     * Number of threads used to build, pack, compress and verify classes. The result doesn't depend on it.
+     */
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Read source jars twice instead of keeping all classes and resources in memory, see {@link StreamingJarPacker}.
+     * Not compatible with {@link #singleBlob} and {@link #solidBlockSize}.
+     */
+    private boolean streaming;
+
+    /**
+     * Approximate heap used by classes being processed in the streaming mode.
+     */
+    private long memoryBudget = 64 * 1024 * 1024;
+
+    /**
+     * Bytes of packed classes analyzed to build the dictionary, the time of building is proportional to it.
+     */
+    private long dictionaryTrainingSize = DictionaryCalculator.DEFAULT_MAX_TRAINING_SIZE;
+
+    /**
+     * Maximum number of dictionaries, each is trained on a cluster of packages (see
+     * {@link com.ess.jloader.packer.dictionary.DictionaryClusters}). Small jars get one dictionary anyway.
+     */
+    private int dictionaryCount = 8;
+
+    /**
+     * Compress classes following each other in the pack together, as blocks of about this size (see
+     * {@link com.ess.jloader.loader.SolidBlocks}), 0 compresses every class separately. Not compatible with
+     * {@link #streaming}.
+     */
+    private int solidBlockSize;
+
+    /**
+     * Compression of the class data, {@link Codec#LZ} trades the size of the pack for the speed of class loading.
+     */
+    private Codec codec = Codec.DEFLATE;
+
     public boolean isRemoveSourceDebugExtensionAttribute() {
         return removeSourceDebugExtensionAttribute;
     }
@@ -23,4 +88,96 @@ public class Config {
     public void setRemoveInvisibleAnnotation(boolean removeInvisibleAnnotation) {
         this.removeInvisibleAnnotation = removeInvisibleAnnotation;
     }
+
+    public File getLoadOrderFile() {
+        return loadOrderFile;
+    }
+
+    public void setLoadOrderFile(File loadOrderFile) {
+        this.loadOrderFile = loadOrderFile;
+    }
+
+    public boolean isSingleBlob() {
+        return singleBlob;
+    }
+
+    public void setSingleBlob(boolean singleBlob) {
+        this.singleBlob = singleBlob;
+    }
+
+    public boolean isClassIndex() {
+        return classIndex;
+    }
+
+    public void setClassIndex(boolean classIndex) {
+        this.classIndex = classIndex;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public void setThreadCount(int threadCount) {
+        if (threadCount < 1) throw new IllegalArgumentException("threadCount: " + threadCount);
+        this.threadCount = threadCount;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget <= 0) throw new IllegalArgumentException("memoryBudget: " + memoryBudget);
+        this.memoryBudget = memoryBudget;
+    }
+
+    public long getDictionaryTrainingSize() {
+        return dictionaryTrainingSize;
+    }
+
+    public void setDictionaryTrainingSize(long dictionaryTrainingSize) {
+        if (dictionaryTrainingSize <= 0 || dictionaryTrainingSize > DictionaryCalculator.MAX_TRAINING_SIZE) {
+            throw new IllegalArgumentException("dictionaryTrainingSize: " + dictionaryTrainingSize);
+        }
+        this.dictionaryTrainingSize = dictionaryTrainingSize;
+    }
+
+    public int getDictionaryCount() {
+        return dictionaryCount;
+    }
+
+    public void setDictionaryCount(int dictionaryCount) {
+        if (dictionaryCount < 1 || dictionaryCount > MAX_DICTIONARY_COUNT) {
+            throw new IllegalArgumentException("dictionaryCount: " + dictionaryCount);
+        }
+        this.dictionaryCount = dictionaryCount;
+    }
+
+    public int getSolidBlockSize() {
+        return solidBlockSize;
+    }
+
+    public void setSolidBlockSize(int solidBlockSize) {
+        if (solidBlockSize < 0 || solidBlockSize > MAX_SOLID_BLOCK_SIZE) {
+            throw new IllegalArgumentException("solidBlockSize: " + solidBlockSize);
+        }
+        this.solidBlockSize = solidBlockSize;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    public void setCodec(Codec codec) {
+        if (codec == null) throw new IllegalArgumentException("codec: null");
+        this.codec = codec;
+    }
 }
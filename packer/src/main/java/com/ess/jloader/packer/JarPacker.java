@@ -1,23 +1,28 @@
 package com.ess.jloader.packer;
 
+import com.ess.jloader.loader.ClassBlob;
+import com.ess.jloader.loader.LoadOrderProfile;
 import com.ess.jloader.loader.PackClassLoader;
-import com.ess.jloader.packer.dictionary.DictionaryCalculator;
+import com.ess.jloader.loader.PackageIndex;
+import com.ess.jloader.loader.SolidBlocks;
+import com.ess.jloader.packer.codec.Encoder;
+import com.ess.jloader.packer.dictionary.DictionaryClusters;
 import com.ess.jloader.utils.ClassComparator;
+import com.ess.jloader.utils.Codec;
 import com.ess.jloader.utils.OpenByteOutputStream;
 import com.ess.jloader.utils.Utils;
-import com.google.common.base.Function;
-import com.google.common.collect.Collections2;
+import com.google.common.base.Throwables;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.objectweb.asm.ClassReader;
 
 import java.io.*;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.jar.JarEntry;
 import java.util.jar.JarInputStream;
 import java.util.jar.JarOutputStream;
@@ -42,11 +47,35 @@ public class JarPacker {
 
     private final Config cfg;
 
+    /**
+     * Not null in the streaming mode, the packer delegates everything to it.
+     */
+    private final StreamingJarPacker streamingPacker;
+
+    private final Encoder encoder;
+
     public JarPacker(Config cfg) {
         this.cfg = cfg;
+
+        encoder = Encoder.forCodec(cfg.getCodec());
+
+        if (cfg.isStreaming()) {
+            if (cfg.isSingleBlob()) throw new IllegalArgumentException("The streaming mode doesn't support the single blob");
+            if (cfg.getSolidBlockSize() > 0) throw new IllegalArgumentException("The streaming mode doesn't support solid blocks");
+
+            streamingPacker = new StreamingJarPacker(cfg);
+        }
+        else {
+            streamingPacker = null;
+        }
     }
 
     public void addJar(File jarFile) throws IOException {
+        if (streamingPacker != null) {
+            streamingPacker.addJar(jarFile);
+            return;
+        }
+
         JarInputStream jarInputStream = new JarInputStream(new FileInputStream(jarFile));
 
         if (manifest == null) {
@@ -61,6 +90,24 @@ public class JarPacker {
     }
 
     public void addJar(JarInputStream jarInputStream) throws IOException {
+        if (streamingPacker != null) throw new IllegalStateException("The streaming mode requires jar files");
+
+        ExecutorService executor = createExecutor(cfg);
+        try {
+            addJar(jarInputStream, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the jar sequentially, descriptors of classes are built by the executor and added to {@link #classMap}
+     * in the order of entries.
+     */
+    private void addJar(JarInputStream jarInputStream, ExecutorService executor) throws IOException {
+        List<ClassReader> classReaders = new ArrayList<ClassReader>();
+        List<Future<ClassDescriptor>> descriptors = new ArrayList<Future<ClassDescriptor>>();
+
         JarEntry entry;
         while ((entry = jarInputStream.getNextJarEntry()) != null) {
             String fileName = entry.getName();
@@ -70,15 +117,16 @@ public class JarPacker {
             if (!entry.isDirectory()) {
                 if (fileName.endsWith(".class")) {
                     String className = Utils.fileNameToClassName(fileName);
-                    ClassReader classReader = new ClassReader(jarInputStream);
+                    final ClassReader classReader = new ClassReader(jarInputStream);
                     if (!classReader.getClassName().equals(className)) throw new InvalidJarException();
 
-                    ClassDescriptor existingClass = classMap.put(className, new ClassDescriptor(classReader));
-                    if (existingClass != null) {
-                        if (!Arrays.equals(classReader.b, existingClass.getClassReader().b)) {
-                            throw new InvalidJarException("Duplicated class name: " + className);
+                    classReaders.add(classReader);
+                    descriptors.add(executor.submit(new Callable<ClassDescriptor>() {
+                        @Override
+                        public ClassDescriptor call() {
+                            return new ClassDescriptor(classReader);
                         }
-                    }
+                    }));
                 }
                 else {
                     byte[] data = ByteStreams.toByteArray(jarInputStream);
@@ -91,9 +139,50 @@ public class JarPacker {
 
             resourceEntries.put(fileName, entry);
         }
+
+        for (int i = 0; i < classReaders.size(); i++) {
+            ClassReader classReader = classReaders.get(i);
+
+            ClassDescriptor existingClass = classMap.put(classReader.getClassName(), getResult(descriptors.get(i)));
+            if (existingClass != null) {
+                if (!Arrays.equals(classReader.b, existingClass.getClassReader().b)) {
+                    throw new InvalidJarException("Duplicated class name: " + classReader.getClassName());
+                }
+            }
+        }
     }
 
-    private void writeMetadata(ZipOutputStream zipOut, CompressionContext ctx, byte[] dictionary) throws IOException {
+    /**
+     * @return an executor running tasks on {@link Config#getThreadCount()} threads, or in the calling thread
+     * if the packer is single-threaded.
+     */
+    static ExecutorService createExecutor(Config cfg) {
+        if (cfg.getThreadCount() == 1) {
+            return MoreExecutors.sameThreadExecutor();
+        }
+
+        return new ForkJoinPool(cfg.getThreadCount());
+    }
+
+    static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    static void waitAll(List<? extends Future<?>> futures) throws IOException {
+        for (Future<?> future : futures) {
+            getResult(future);
+        }
+    }
+
+    static void writeMetadata(ZipOutputStream zipOut, CompressionContext ctx, Codec codec, byte[][] dictionaries,
+                              Collection<String> classNames) throws IOException {
         DataOutputStream zipDataOutput = new DataOutputStream(zipOut);
 
         zipOut.putNextEntry(new ZipEntry(PackClassLoader.METADATA_ENTRY_NAME));
@@ -104,31 +193,92 @@ public class JarPacker {
         ctx.getVersionCache().writeTo(zipDataOutput);
         ctx.getLiteralsCache().writeTo(zipDataOutput);
 
-        zipDataOutput.writeShort(dictionary.length);
-        zipDataOutput.write(dictionary);
+        zipDataOutput.write(codec.ordinal());
+
+        zipDataOutput.write(dictionaries.length);
+        for (byte[] dictionary : dictionaries) {
+            zipDataOutput.writeShort(dictionary.length);
+            zipDataOutput.write(dictionary);
+        }
+
+        PackageIndex.write(zipDataOutput, classNames);
 
         zipOut.closeEntry();
     }
 
     public boolean hasClasses() {
+        if (streamingPacker != null) {
+            return streamingPacker.hasClasses();
+        }
+
         return classMap.size() > 0;
     }
 
     public void writeResult(@NotNull File resultFile) throws IOException {
-        CompressionContext ctx = new CompressionContext(classMap.values());
+        if (streamingPacker != null) {
+            streamingPacker.writeResult(resultFile);
+            return;
+        }
 
+        ExecutorService executor = createExecutor(cfg);
+        try {
+            writeResult(resultFile, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Classes are packed and compressed by the executor, the calling thread writes entries in the pack order,
+     * so the result is the same for any number of threads.
+     */
+    private void writeResult(File resultFile, ExecutorService executor) throws IOException {
+        final CompressionContext ctx = new CompressionContext(classMap.values());
+
+        List<Future<?>> packTasks = new ArrayList<Future<?>>();
+        for (final ClassDescriptor classDescriptor : classMap.values()) {
+            packTasks.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    classDescriptor.pack(ctx);
+                    return null;
+                }
+            }));
+        }
+        waitAll(packTasks);
+
+        Map<String, Integer> classSizes = new HashMap<String, Integer>();
         for (ClassDescriptor classDescriptor : classMap.values()) {
-            classDescriptor.pack(ctx);
+            classSizes.put(classDescriptor.getClassName(), classDescriptor.getClassReader().b.length);
         }
 
-        Collection<OpenByteOutputStream> packedItems = Collections2.transform(classMap.values(), new Function<ClassDescriptor, OpenByteOutputStream>() {
-            @Override
-            public OpenByteOutputStream apply(ClassDescriptor classDescriptor) {
-                return classDescriptor.forCompressionDataArray;
-            }
-        });
-//        byte[] dictionary = new byte[0];
-        byte[] dictionary = DictionaryCalculator.buildDictionary(packedItems);
+        DictionaryClusters clusters = new DictionaryClusters(classSizes, cfg.getDictionaryCount(), cfg.getDictionaryTrainingSize());
+        for (ClassDescriptor classDescriptor : classMap.values()) {
+            OpenByteOutputStream packedItem = classDescriptor.forCompressionDataArray;
+            clusters.addData(classDescriptor.getClassName(), packedItem.getBuffer(), 0, packedItem.size());
+        }
+
+        byte[][] dictionaries = clusters.getDictionaries(executor);
+
+        // Dictionaries chosen for the classes by the retraining, the first one is used if there is only one
+        Map<String, Integer> dictionaryIds = new HashMap<String, Integer>();
+
+        if (dictionaries.length > 1) {
+            dictionaries = retrainDictionaries(clusters, dictionaries, dictionaryIds, executor);
+        }
+
+        Collection<JarEntry> entries = getEntryOrder();
+
+        Map<String, Future<CompressedClass>> compressedClasses;
+        List<Future<CompressedBlock>> blocks = null;
+
+        if (cfg.getSolidBlockSize() > 0) {
+            compressedClasses = new HashMap<String, Future<CompressedClass>>();
+            blocks = compressBlocks(entries, dictionaries, dictionaryIds, compressedClasses, executor);
+        }
+        else {
+            compressedClasses = compressClasses(entries, dictionaries, dictionaryIds, executor);
+        }
 
         OutputStream out = new FileOutputStream(resultFile);
 
@@ -143,67 +293,480 @@ public class JarPacker {
             }
 
             if (hasClasses()) {
-                writeMetadata(zipOutputStream, ctx, dictionary);
+                writeMetadata(zipOutputStream, ctx, cfg.getCodec(), dictionaries, classMap.keySet());
             }
 
-            OpenByteOutputStream buff = new OpenByteOutputStream();
+            if (blocks != null && hasClasses()) {
+                writeBlocks(zipOutputStream, blocks);
+            }
 
-            for (Map.Entry<String, JarEntry> entry : resourceEntries.entrySet()) {
-                if (entry.getKey().equals("META-INF/MANIFEST.MF")) {
-                    continue;
-                }
+            if (cfg.isSingleBlob() && hasClasses()) {
+                writeClassBlob(zipOutputStream, entries, compressedClasses);
+            }
 
-                JarEntry jarEntry = entry.getValue();
+            for (JarEntry jarEntry : entries) {
+                if (cfg.isSingleBlob() && isClassEntry(jarEntry)) continue;
 
-                jarEntry.setCompressedSize(-1);
+                writeEntry(zipOutputStream, jarEntry, compressedClasses);
+            }
 
-                if (!jarEntry.isDirectory()) {
-                    byte[] resourceContent = resourceMap.get(jarEntry.getName());
-                    if (resourceContent != null) {
-                        zipOutputStream.putNextEntry(jarEntry);
-                        zipOutputStream.write(resourceContent);
-                        zipOutputStream.closeEntry();
-                    }
-                    else {
+            if (cfg.isClassIndex() && hasClasses()) {
+                writeClassIndex(zipOutputStream);
+            }
+
+            zipOutputStream.close();
+        } finally {
+            out.close();
+        }
+    }
 
-                        String className = Utils.fileNameToClassName(entry.getKey());
+    /**
+     * @return entries in the order they are written to the pack. Classes listed in the load-order trace form
+     * a hot prefix in first-load order, so classes needed at startup lie next to each other in the file,
+     * the rest of entries keep the source jar order.
+     */
+    private Collection<JarEntry> getEntryOrder() throws IOException {
+        return getEntryOrder(resourceEntries, classMap.keySet(), cfg);
+    }
 
-                        ClassDescriptor classDescriptor = classMap.get(className);
-                        buff.reset();
-                        classDescriptor.writeTo(buff, dictionary);
+    static <T> Collection<T> getEntryOrder(Map<String, T> entries, Set<String> classNames, Config cfg) throws IOException {
+        Map<String, T> res = new LinkedHashMap<String, T>();
 
-                        jarEntry.setMethod(ZipEntry.STORED);
-                        jarEntry.setSize(buff.size());
-                        jarEntry.setCompressedSize(buff.size());
-                        jarEntry.setCrc(Hashing.crc32().hashBytes(buff.getBuffer(), 0, buff.size()).asInt() & 0xFFFFFFFFL);
+        if (cfg.getLoadOrderFile() != null) {
+            for (String className : LoadOrderProfile.read(cfg.getLoadOrderFile())) {
+                String fileName = className + ".class";
 
-                        zipOutputStream.putNextEntry(jarEntry);
-                        buff.writeTo(zipOutputStream);
-                        zipOutputStream.closeEntry();
-                    }
+                T entry = entries.get(fileName);
+                if (entry != null && classNames.contains(className)) {
+                    res.put(fileName, entry);
                 }
-                else {
-                    zipOutputStream.putNextEntry(jarEntry);
-                    zipOutputStream.closeEntry();
+            }
+        }
+
+        for (Map.Entry<String, T> entry : entries.entrySet()) {
+            if (entry.getKey().equals("META-INF/MANIFEST.MF")) continue;
+
+            if (!res.containsKey(entry.getKey())) {
+                res.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return res.values();
+    }
+
+    /**
+     * Trains each dictionary again on the classes it compresses best, see {@link DictionaryClusters}.
+     *
+     * @param dictionaryIds receives the dictionary chosen for each class.
+     */
+    private byte[][] retrainDictionaries(final DictionaryClusters clusters, final byte[][] dictionaries,
+                                         Map<String, Integer> dictionaryIds, ExecutorService executor) throws IOException {
+        List<Future<CompressedClass>> compressedClasses = new ArrayList<Future<CompressedClass>>();
+
+        for (final ClassDescriptor classDescriptor : classMap.values()) {
+            compressedClasses.add(executor.submit(new Callable<CompressedClass>() {
+                @Override
+                public CompressedClass call() throws IOException {
+                    int cluster = clusters.getCluster(classDescriptor.getClassName());
+                    return compressClass(classDescriptor, dictionaries, clusters.getCandidates(cluster));
                 }
+            }));
+        }
+
+        int i = 0;
+        for (ClassDescriptor classDescriptor : classMap.values()) {
+            int dictionaryId = getResult(compressedClasses.get(i++)).dictionaryId;
+            dictionaryIds.put(classDescriptor.getClassName(), dictionaryId);
+
+            OpenByteOutputStream packedItem = classDescriptor.forCompressionDataArray;
+            clusters.addData(dictionaryId, packedItem.getBuffer(), 0, packedItem.size());
+        }
+
+        return clusters.getDictionaries(executor);
+    }
+
+    private static int getDictionaryId(Map<String, Integer> dictionaryIds, String className) {
+        Integer res = dictionaryIds.get(className);
+        return res == null ? 0 : res;
+    }
+
+    /**
+     * Submits compression of classes in the order of entries, so the writer rarely waits for a class.
+     */
+    private Map<String, Future<CompressedClass>> compressClasses(Collection<JarEntry> entries, final byte[][] dictionaries,
+                                                                 Map<String, Integer> dictionaryIds,
+                                                                 ExecutorService executor) {
+        Map<String, Future<CompressedClass>> res = new HashMap<String, Future<CompressedClass>>();
+
+        for (JarEntry jarEntry : entries) {
+            if (!isClassEntry(jarEntry)) continue;
+
+            final ClassDescriptor classDescriptor = classMap.get(Utils.fileNameToClassName(jarEntry.getName()));
+            final int dictionaryId = getDictionaryId(dictionaryIds, classDescriptor.getClassName());
+
+            res.put(classDescriptor.getClassName(), executor.submit(new Callable<CompressedClass>() {
+                @Override
+                public CompressedClass call() throws IOException {
+                    return compressClass(classDescriptor, dictionaries, new int[]{dictionaryId});
+                }
+            }));
+        }
+
+        return res;
+    }
+
+    private CompressedClass compressClass(ClassDescriptor classDescriptor, byte[][] dictionaries,
+                                          int[] dictionaryIds) throws IOException {
+        OpenByteOutputStream plainData = classDescriptor.getPlainDataArray();
+        OpenByteOutputStream forCompressionData = classDescriptor.forCompressionDataArray;
+
+        return compressClass(plainData.getBuffer(), plainData.size(),
+                forCompressionData.getBuffer(), forCompressionData.size(), dictionaries, dictionaryIds, encoder);
+    }
+
+    /**
+     * Compresses the class with each of the given dictionaries and keeps the smallest result.
+     *
+     * @param dictionaryIds ids of the dictionaries to try, see {@link DictionaryClusters#getCandidates(int)}.
+     */
+    static CompressedClass compressClass(byte[] plainData, int plainDataSize,
+                                         byte[] forCompressionData, int forCompressionDataSize,
+                                         byte[][] dictionaries, int[] dictionaryIds, Encoder encoder) throws IOException {
+        OpenByteOutputStream buff = new OpenByteOutputStream();
+
+        byte[] res = null;
+        int dictionaryId = 0;
+
+        for (int i : dictionaryIds) {
+            buff.reset();
+            ClassDescriptor.writeTo(buff, plainData, plainDataSize, forCompressionData, forCompressionDataSize,
+                    dictionaries[i], i, dictionaries.length, encoder);
+
+            if (res == null || buff.size() < res.length) {
+                res = buff.toByteArray();
+                dictionaryId = i;
             }
+        }
 
-            zipOutputStream.close();
-        } finally {
-            out.close();
+        return new CompressedClass(res, dictionaryId);
+    }
+
+    /**
+     * Splits classes into solid blocks: classes following each other in the order of entries are compressed together
+     * until the block size is reached. Blocks are submitted for compression as soon as they are complete, the classes
+     * keep only the plain part and the position of the compressed part in the block.
+     *
+     * @param compressedClasses receives the packed classes.
+     * @return compressed blocks in the order of indexes.
+     */
+    private List<Future<CompressedBlock>> compressBlocks(Collection<JarEntry> entries, final byte[][] dictionaries,
+                                                         Map<String, Integer> dictionaryIds,
+                                                         Map<String, Future<CompressedClass>> compressedClasses,
+                                                         ExecutorService executor) throws IOException {
+        List<Future<CompressedBlock>> res = new ArrayList<Future<CompressedBlock>>();
+
+        List<OpenByteOutputStream> block = new ArrayList<OpenByteOutputStream>();
+        int blockSize = 0;
+
+        // A block is compressed with the dictionaries chosen for its classes only
+        Set<Integer> blockDictionaryIds = new TreeSet<Integer>();
+
+        for (JarEntry jarEntry : entries) {
+            if (!isClassEntry(jarEntry)) continue;
+
+            ClassDescriptor classDescriptor = classMap.get(Utils.fileNameToClassName(jarEntry.getName()));
+            OpenByteOutputStream forCompressionData = classDescriptor.forCompressionDataArray;
+
+            if (!block.isEmpty() && blockSize + forCompressionData.size() > cfg.getSolidBlockSize()) {
+                res.add(submitBlock(block, dictionaries, toArray(blockDictionaryIds), encoder, executor));
+
+                block = new ArrayList<OpenByteOutputStream>();
+                blockSize = 0;
+                blockDictionaryIds.clear();
+            }
+
+            OpenByteOutputStream plainData = classDescriptor.getPlainDataArray();
+
+            OpenByteOutputStream buff = new OpenByteOutputStream();
+            ClassDescriptor.writeTo(buff, plainData.getBuffer(), plainData.size(), res.size(), block.size());
+
+            compressedClasses.put(classDescriptor.getClassName(),
+                    Futures.immediateFuture(new CompressedClass(buff.toByteArray(), 0)));
+
+            block.add(forCompressionData);
+            blockSize += forCompressionData.size();
+            blockDictionaryIds.add(getDictionaryId(dictionaryIds, classDescriptor.getClassName()));
+        }
+
+        if (!block.isEmpty()) {
+            res.add(submitBlock(block, dictionaries, toArray(blockDictionaryIds), encoder, executor));
+        }
+
+        return res;
+    }
+
+    private static int[] toArray(Collection<Integer> values) {
+        int[] res = new int[values.size()];
+
+        int i = 0;
+        for (Integer value : values) {
+            res[i++] = value;
+        }
+
+        return res;
+    }
+
+    private static Future<CompressedBlock> submitBlock(final List<OpenByteOutputStream> block,
+                                                       final byte[][] dictionaries, final int[] dictionaryIds,
+                                                       final Encoder encoder, ExecutorService executor) {
+        return executor.submit(new Callable<CompressedBlock>() {
+            @Override
+            public CompressedBlock call() throws IOException {
+                return compressBlock(block, dictionaries, dictionaryIds, encoder);
+            }
+        });
+    }
+
+    /**
+     * Compresses the block with each of the given dictionaries and keeps the smallest result. The decoded block starts
+     * with the number of classes and the sizes of their compressed parts.
+     */
+    static CompressedBlock compressBlock(List<OpenByteOutputStream> block, byte[][] dictionaries, int[] dictionaryIds,
+                                         Encoder encoder) throws IOException {
+        OpenByteOutputStream data = new OpenByteOutputStream();
+        DataOutputStream out = new DataOutputStream(data);
+
+        PackUtils.writeShortInt(out, block.size());
+        for (OpenByteOutputStream forCompressionData : block) {
+            PackUtils.writeShortInt(out, forCompressionData.size());
+        }
+
+        for (OpenByteOutputStream forCompressionData : block) {
+            forCompressionData.writeTo(out);
+        }
+
+        OpenByteOutputStream buff = new OpenByteOutputStream();
+
+        byte[] res = null;
+        int dictionaryId = 0;
+
+        for (int i : dictionaryIds) {
+            buff.reset();
+            encoder.encode(buff, data.getBuffer(), data.size(), dictionaries[i]);
+
+            if (res == null || buff.size() < res.length) {
+                res = buff.toByteArray();
+                dictionaryId = i;
+            }
+        }
+
+        return new CompressedBlock(res, dictionaryId);
+    }
+
+    /**
+     * Writes the solid blocks to one STORED entry (see {@link SolidBlocks}), so the loader maps it.
+     */
+    private static void writeBlocks(ZipOutputStream zipOutputStream, List<Future<CompressedBlock>> blocks)
+            throws IOException {
+        OpenByteOutputStream buff = new OpenByteOutputStream();
+        DataOutputStream out = new DataOutputStream(buff);
+
+        out.write(Utils.MAGIC);
+        out.write(Utils.PACKER_VERSION);
+        out.writeInt(blocks.size());
+
+        int offset = 0;
+        for (Future<CompressedBlock> block : blocks) {
+            out.writeInt(offset);
+            offset += getResult(block).data.length;
+        }
+        out.writeInt(offset);
+
+        for (Future<CompressedBlock> block : blocks) {
+            out.write(getResult(block).dictionaryId);
+        }
+
+        for (Future<CompressedBlock> block : blocks) {
+            out.write(getResult(block).data);
+        }
+
+        ZipEntry entry = new ZipEntry(PackClassLoader.BLOCKS_ENTRY_NAME);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(buff.size());
+        entry.setCompressedSize(buff.size());
+        entry.setCrc(Hashing.crc32().hashBytes(buff.getBuffer(), 0, buff.size()).asInt() & 0xFFFFFFFFL);
+
+        zipOutputStream.putNextEntry(entry);
+        buff.writeTo(zipOutputStream);
+        zipOutputStream.closeEntry();
+    }
+
+    private boolean isClassEntry(JarEntry jarEntry) {
+        return !jarEntry.isDirectory() && !resourceMap.containsKey(jarEntry.getName());
+    }
+
+    /**
+     * Writes all classes to one STORED entry (see {@link ClassBlob}). Class data keep the order of entries,
+     * the name index is sorted by the hash code of class names.
+     */
+    private void writeClassBlob(ZipOutputStream zipOutputStream, Collection<JarEntry> entries,
+                                Map<String, Future<CompressedClass>> compressedClasses) throws IOException {
+        final List<String> classNames = new ArrayList<String>();
+        final List<byte[]> names = new ArrayList<byte[]>();
+        List<Integer> dataOffsets = new ArrayList<Integer>();
+        List<Integer> dataSizes = new ArrayList<Integer>();
+
+        OpenByteOutputStream data = new OpenByteOutputStream();
+
+        for (JarEntry jarEntry : entries) {
+            if (!isClassEntry(jarEntry)) continue;
+
+            String className = Utils.fileNameToClassName(jarEntry.getName());
+
+            classNames.add(className);
+            names.add(className.getBytes("UTF-8"));
+
+            byte[] classData = getResult(compressedClasses.get(className)).data;
+
+            dataOffsets.add(data.size());
+            dataSizes.add(classData.length);
+
+            data.write(classData);
+        }
+
+        Integer[] order = new Integer[classNames.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int hashA = classNames.get(a).hashCode();
+                int hashB = classNames.get(b).hashCode();
+                if (hashA != hashB) return hashA < hashB ? -1 : 1;
+
+                return classNames.get(a).compareTo(classNames.get(b));
+            }
+        });
+
+        OpenByteOutputStream buff = new OpenByteOutputStream();
+        DataOutputStream out = new DataOutputStream(buff);
+
+        out.write(Utils.MAGIC);
+        out.write(Utils.PACKER_VERSION);
+        out.writeInt(order.length);
+
+        for (Integer i : order) {
+            out.writeInt(classNames.get(i).hashCode());
+        }
+
+        int nameOffset = 0;
+        for (Integer i : order) {
+            out.writeInt(nameOffset);
+            nameOffset += names.get(i).length;
+        }
+        out.writeInt(nameOffset);
+
+        for (Integer i : order) {
+            out.writeInt(dataOffsets.get(i));
+        }
+
+        for (Integer i : order) {
+            out.writeInt(dataSizes.get(i));
+        }
+
+        for (Integer i : order) {
+            out.write(names.get(i));
+        }
+
+        data.writeTo(out);
+
+        ZipEntry entry = new ZipEntry(PackClassLoader.CLASSES_ENTRY_NAME);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(buff.size());
+        entry.setCompressedSize(buff.size());
+        entry.setCrc(Hashing.crc32().hashBytes(buff.getBuffer(), 0, buff.size()).asInt() & 0xFFFFFFFFL);
+
+        zipOutputStream.putNextEntry(entry);
+        buff.writeTo(zipOutputStream);
+        zipOutputStream.closeEntry();
+    }
+
+    private void writeClassIndex(ZipOutputStream zipOutputStream) throws IOException {
+        ClassIndexWriter indexWriter = new ClassIndexWriter();
+        for (ClassDescriptor classDescriptor : classMap.values()) {
+            indexWriter.addClass(classDescriptor);
+        }
+
+        zipOutputStream.putNextEntry(new ZipEntry(PackClassLoader.CLASS_INDEX_ENTRY_NAME));
+        indexWriter.writeTo(new DataOutputStream(zipOutputStream));
+        zipOutputStream.closeEntry();
+    }
+
+    private void writeEntry(ZipOutputStream zipOutputStream, JarEntry jarEntry,
+                            Map<String, Future<CompressedClass>> compressedClasses) throws IOException {
+        jarEntry.setCompressedSize(-1);
+
+        if (jarEntry.isDirectory()) {
+            zipOutputStream.putNextEntry(jarEntry);
+            zipOutputStream.closeEntry();
+            return;
+        }
+
+        byte[] resourceContent = resourceMap.get(jarEntry.getName());
+        if (resourceContent != null) {
+            zipOutputStream.putNextEntry(jarEntry);
+            zipOutputStream.write(resourceContent);
+            zipOutputStream.closeEntry();
+        }
+        else {
+            String className = Utils.fileNameToClassName(jarEntry.getName());
+
+            CompressedClass compressedClass = getResult(compressedClasses.get(className));
+
+            jarEntry.setMethod(ZipEntry.STORED);
+            jarEntry.setSize(compressedClass.data.length);
+            jarEntry.setCompressedSize(compressedClass.data.length);
+            jarEntry.setCrc(compressedClass.crc);
+
+            zipOutputStream.putNextEntry(jarEntry);
+            zipOutputStream.write(compressedClass.data);
+            zipOutputStream.closeEntry();
         }
     }
 
     public void checkResult(File targetJar) throws IOException {
+        if (streamingPacker != null) {
+            streamingPacker.checkResult(targetJar);
+            return;
+        }
+
         if (!hasClasses()) return;
 
-        PackClassLoader loader = new PackClassLoader(null, targetJar);
+        final PackClassLoader loader = new PackClassLoader(null, targetJar);
 
-        for (ClassDescriptor descriptor : classMap.values()) {
-            byte[] unpackClass = loader.unpackClass(descriptor.getClassName());
-            assert unpackClass != null;
+        ExecutorService executor = createExecutor(cfg);
+        try {
+            List<Future<?>> checkTasks = new ArrayList<Future<?>>();
+
+            for (final ClassDescriptor descriptor : classMap.values()) {
+                checkTasks.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        byte[] unpackClass = loader.unpackClass(descriptor.getClassName());
+                        assert unpackClass != null;
 
-            ClassComparator.compare(descriptor.getRepackedClass(), unpackClass);
+                        ClassComparator.compare(descriptor.getRepackedClass(), unpackClass);
+                        return null;
+                    }
+                }));
+            }
+
+            waitAll(checkTasks);
+        } finally {
+            executor.shutdownNow();
+            loader.close();
         }
     }
 
@@ -215,8 +778,35 @@ public class JarPacker {
         packer.checkResult(dest);
     }
 
+    /**
+     * @return packed classes, empty in the streaming mode.
+     */
     public Map<String, ClassDescriptor> getClassMap() {
         return classMap;
     }
 
+    static class CompressedBlock {
+        final byte[] data;
+
+        final int dictionaryId;
+
+        CompressedBlock(byte[] data, int dictionaryId) {
+            this.data = data;
+            this.dictionaryId = dictionaryId;
+        }
+    }
+
+    static class CompressedClass {
+        final byte[] data;
+        final long crc;
+
+        final int dictionaryId;
+
+        CompressedClass(byte[] data, int dictionaryId) {
+            this.data = data;
+            this.dictionaryId = dictionaryId;
+            crc = Hashing.crc32().hashBytes(data).asInt() & 0xFFFFFFFFL;
+        }
+    }
+
 }
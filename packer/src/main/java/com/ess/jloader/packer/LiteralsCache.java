@@ -3,11 +3,13 @@ package com.ess.jloader.packer;
 import com.ess.jloader.packer.consts.AbstractConst;
 import com.ess.jloader.packer.consts.ConstUtf;
 import com.ess.jloader.utils.HuffmanOutputStream;
+import com.ess.jloader.utils.HuffmanUtils;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.Ordering;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.*;
@@ -20,22 +22,18 @@ public class LiteralsCache {
 
     private final Map<String, Integer> stringsMap = new LinkedHashMap<String, Integer>();
 
-    private final Map<String, boolean[]> huffmanPathMap;
+    private final int[] codeLengths;
 
-    public LiteralsCache(Collection<ClassDescriptor> classes) throws InvalidJarException {
-        CountMap<String> stringsCountMap = new CountMap<String>();
+    private final Map<String, Integer> huffmanCodeMap;
 
-        for (ClassDescriptor classDescriptor : classes) {
-            for (AbstractConst aConst : classDescriptor.getConsts()) {
-                if (aConst instanceof ConstUtf) {
-                    String s = ((ConstUtf) aConst).getValue();
-                    if (!classDescriptor.getGeneratedStr().contains(s)) {
-                        stringsCountMap.incrementAndGet(s);
-                    }
-                }
-            }
-        }
+    public LiteralsCache(Collection<ClassDescriptor> classes) throws InvalidJarException {
+        this(countStrings(classes));
+    }
 
+    /**
+     * @param stringsCountMap number of classes containing a string, see {@link #countStrings(CountMap, ClassDescriptor)}.
+     */
+    public LiteralsCache(CountMap<String> stringsCountMap) {
         String[] keys = stringsCountMap.keySet().toArray(new String[stringsCountMap.size()]);
 
         Arrays.sort(keys, new Comparator<String>() {
@@ -57,7 +55,36 @@ public class LiteralsCache {
             }
         }
 
-        huffmanPathMap = HuffmanOutputStream.buildPathMap(stringsMap);
+        int[] weights = new int[stringsMap.size()];
+        int i = 0;
+        for (Integer count : stringsMap.values()) {
+            weights[i++] = count;
+        }
+
+        codeLengths = HuffmanUtils.buildCodeLengths(weights, HuffmanUtils.MAX_CODE_LENGTH);
+
+        huffmanCodeMap = HuffmanOutputStream.buildCodeMap(stringsMap.keySet(), codeLengths);
+    }
+
+    private static CountMap<String> countStrings(Collection<ClassDescriptor> classes) {
+        CountMap<String> res = new CountMap<String>();
+
+        for (ClassDescriptor classDescriptor : classes) {
+            countStrings(res, classDescriptor);
+        }
+
+        return res;
+    }
+
+    public static void countStrings(CountMap<String> stringsCountMap, ClassDescriptor classDescriptor) {
+        for (AbstractConst aConst : classDescriptor.getConsts()) {
+            if (aConst instanceof ConstUtf) {
+                String s = ((ConstUtf) aConst).getValue();
+                if (!classDescriptor.getGeneratedStr().contains(s)) {
+                    stringsCountMap.incrementAndGet(s);
+                }
+            }
+        }
     }
 
     @Nullable
@@ -85,20 +112,22 @@ public class LiteralsCache {
     }
 
     public HuffmanOutputStream<String> createHuffmanOutput() {
-        return new HuffmanOutputStream<String>(huffmanPathMap);
+        return new HuffmanOutputStream<String>(huffmanCodeMap);
     }
 
     public void writeTo(DataOutputStream out) throws IOException {
-        out.writeInt(stringsMap.size());
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        DataOutputStream stringsOut = new DataOutputStream(strings);
         for (String s : stringsMap.keySet()) {
-            out.writeUTF(s);
+            stringsOut.writeUTF(s);
         }
 
-        for (Integer integer : stringsMap.values()) {
-            if (integer > 0xFFFF) {
-                throw new InvalidJarException();
-            }
-            PackUtils.writeSmallShort3(out, integer);
+        out.writeInt(stringsMap.size());
+        out.writeInt(strings.size());
+        strings.writeTo(out);
+
+        for (int len : codeLengths) {
+            out.writeByte(len);
         }
     }
 }
@@ -1,5 +1,6 @@
 package com.ess.jloader.packer;
 
+import com.ess.jloader.utils.Codec;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.Options;
@@ -9,8 +10,12 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * @author Sergey Evdokimov
@@ -21,7 +26,16 @@ public class Main {
             .addOption("t", "target", true, "Target file.")
             .addOption("rm", "removeSource", false, "Remove source files after packaging.")
             .addOption("d", "directory", true, "Base directory.")
-            .addOption("e", "exclude", true, "Exclude files from transformation.");
+            .addOption("e", "exclude", true, "Exclude files from transformation.")
+            .addOption("lo", "loadOrder", true, "Class load-order trace, traced classes are placed at the beginning of the result in first-load order.")
+            .addOption("b", "singleBlob", false, "Store all classes in one indexed entry, the result can be loaded by PackClassLoader only.")
+            .addOption("ci", "classIndex", false, "Write an index of super classes, interfaces and annotations of classes.")
+            .addOption("j", "threads", true, "Number of threads packing classes, the number of processors by default.")
+            .addOption("s", "streaming", false, "Read source jars twice instead of keeping them in memory.")
+            .addOption("m", "memoryBudget", true, "Megabytes of heap used for classes being packed in the streaming mode, 64 by default.")
+            .addOption("dc", "dictionaries", true, "Maximum number of compression dictionaries, 8 by default, 1 disables clustering.")
+            .addOption("sb", "solidBlockSize", true, "Compress classes together in blocks of about this many kilobytes (32 works well), a block is inflated as a whole on the first load of its class.")
+            .addOption("c", "codec", true, "Compression of classes: deflate (default) or lz, lz makes the pack larger and class loading faster.");
 
     public static void main(String[] args) throws IOException {
         CommandLine commandLine;
@@ -57,13 +71,97 @@ public class Main {
 
         sc.scan();
 
+        Config cfg = new Config();
+
+        cfg.setSingleBlob(commandLine.hasOption("b"));
+        cfg.setClassIndex(commandLine.hasOption("ci"));
+
+        String threads = commandLine.getOptionValue("j");
+        if (threads != null) {
+            try {
+                cfg.setThreadCount(Integer.parseInt(threads));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid number of threads: " + threads);
+                return;
+            }
+        }
+
+        cfg.setStreaming(commandLine.hasOption("s"));
+
+        String memoryBudget = commandLine.getOptionValue("m");
+        if (memoryBudget != null) {
+            try {
+                long megabytes = Long.parseLong(memoryBudget);
+                if (megabytes > Long.MAX_VALUE >> 20) throw new IllegalArgumentException(); // overflows when converted to bytes
+
+                cfg.setMemoryBudget(megabytes * 1024 * 1024);
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid memory budget: " + memoryBudget);
+                return;
+            }
+        }
+
+        String dictionaries = commandLine.getOptionValue("dc");
+        if (dictionaries != null) {
+            try {
+                cfg.setDictionaryCount(Integer.parseInt(dictionaries));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid number of dictionaries: " + dictionaries);
+                return;
+            }
+        }
+
+        String solidBlockSize = commandLine.getOptionValue("sb");
+        if (solidBlockSize != null) {
+            try {
+                cfg.setSolidBlockSize((int) Math.min(Long.parseLong(solidBlockSize) * 1024, Integer.MAX_VALUE));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid solid block size: " + solidBlockSize);
+                return;
+            }
+        }
+
+        String codec = commandLine.getOptionValue("c");
+        if (codec != null) {
+            try {
+                cfg.setCodec(Codec.valueOf(codec.toUpperCase(Locale.ENGLISH)));
+            } catch (IllegalArgumentException e) {
+                System.out.println("Unknown codec: " + codec);
+                return;
+            }
+        }
+
+        if (cfg.isStreaming() && cfg.isSingleBlob()) {
+            System.out.println("The streaming mode doesn't support the single blob");
+            return;
+        }
+
+        if (cfg.isStreaming() && cfg.getSolidBlockSize() > 0) {
+            System.out.println("The streaming mode doesn't support solid blocks");
+            return;
+        }
+
+        String loadOrderPath = commandLine.getOptionValue("lo");
+        if (loadOrderPath != null) {
+            File loadOrderFile = new File(loadOrderPath);
+            if (!loadOrderFile.isAbsolute()) {
+                loadOrderFile = new File(sc.getBasedir(), loadOrderPath);
+            }
+            if (!loadOrderFile.isFile()) {
+                System.out.println("Load order file not found: " + loadOrderFile);
+                return;
+            }
+
+            cfg.setLoadOrderFile(loadOrderFile);
+        }
+
         String resultPath = commandLine.getOptionValue('t');
 
         if (resultPath == null) {
             for (String path : sc.getIncludedFiles()) {
                 File file = new File(sc.getBasedir(), path);
                 if (file.isFile()) {
-                    transformFile(file);
+                    transformFile(file, cfg);
                 }
             }
         }
@@ -77,7 +175,7 @@ public class Main {
                 return;
             }
 
-            JarPacker packer = new JarPacker(new Config());
+            JarPacker packer = new JarPacker(cfg);
 
             long sourceSize = 0;
 
@@ -112,7 +210,7 @@ public class Main {
         }
     }
 
-    private static void transformFile(@NotNull File file) throws IOException {
+    private static void transformFile(@NotNull File file, @NotNull Config cfg) throws IOException {
         System.out.printf("Packing %s ...", file.getPath());
 
         if (PackUtils.isPackedJar(file)) {
@@ -122,12 +220,29 @@ public class Main {
 
         long size = file.length();
 
-        JarPacker packer = new JarPacker(new Config());
+        JarPacker packer = new JarPacker(cfg);
         packer.addJar(file);
         if (packer.hasClasses()) {
-            packer.writeResult(file);
+            if (cfg.isStreaming()) {
+                // the streaming packer reads the source while writing the result
+                File packedFile = new File(file.getPath() + ".packing");
+
+                packer.writeResult(packedFile);
 
-            packer.checkResult(file);
+                packer.checkResult(packedFile);
+
+                // The source is replaced in one step, it is never deleted before the result is in place
+                try {
+                    Files.move(packedFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(packedFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            else {
+                packer.writeResult(file);
+
+                packer.checkResult(file);
+            }
 
             System.out.printf(" done (%d%%)\n", file.length() * 100 / size);
         }
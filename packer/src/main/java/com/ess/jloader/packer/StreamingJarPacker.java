@@ -0,0 +1,605 @@
+package com.ess.jloader.packer;
+
+import com.ess.jloader.loader.PackClassLoader;
+import com.ess.jloader.packer.codec.Encoder;
+import com.ess.jloader.packer.dictionary.DictionaryClusters;
+import com.ess.jloader.utils.ClassComparator;
+import com.ess.jloader.utils.OpenByteOutputStream;
+import com.ess.jloader.utils.Utils;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.io.ByteStreams;
+import org.objectweb.asm.ClassReader;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Packs jars without keeping their content in memory, used by {@link JarPacker} in the streaming mode
+ * (see {@link Config#isStreaming()}). Source jars are read twice:
+ * <ul>
+ *     <li>{@link #addJar(File)} builds descriptors of classes one by one and keeps only the statistics shared by all
+ *     classes: strings for {@link LiteralsCache}, class versions and names of entries;</li>
+ *     <li>{@link #writeResult(File)} reads classes again in the pack order, packs them to a temporary file collecting
+ *     the dictionary, then compresses the packed classes and writes entries. Resources are copied from the source
+ *     jars.</li>
+ * </ul>
+ * Classes being processed are limited by {@link Config#getMemoryBudget()}. The result is the same as the result of
+ * the in-memory mode unless the load order is specified: the dictionary is built from classes in the pack order
+ * here and in the source order there.
+ *
+ * @author Sergey Evdokimov
+ */
+class StreamingJarPacker {
+
+    /**
+     * A class being processed takes several times its size: the class reader, constants, the repacked class and
+     * the packed data.
+     */
+    private static final int CLASS_MEMORY_FACTOR = 16;
+
+    private final Config cfg;
+
+    private final Encoder encoder;
+
+    private final List<File> jars = new ArrayList<File>();
+
+    private final Map<String, SourceEntry> entries = new LinkedHashMap<String, SourceEntry>();
+
+    private final Set<String> classNames = new LinkedHashSet<String>();
+
+    private final CountMap<String> stringsCountMap = new CountMap<String>();
+
+    private final VersionCache versionCache = new VersionCache();
+
+    private Manifest manifest;
+
+    /**
+     * Created by {@link #writeResult(File)}, {@link #checkResult(File)} packs classes with it again.
+     */
+    private CompressionContext ctx;
+
+    StreamingJarPacker(Config cfg) {
+        this.cfg = cfg;
+
+        encoder = Encoder.forCodec(cfg.getCodec());
+    }
+
+    public void addJar(File jarFile) throws IOException {
+        int jarIndex = jars.size();
+        jars.add(jarFile);
+
+        JarInputStream jarInputStream = new JarInputStream(new FileInputStream(jarFile));
+
+        ExecutorService executor = JarPacker.createExecutor(cfg);
+        try {
+            if (manifest == null) {
+                manifest = jarInputStream.getManifest();
+            }
+
+            TaskWindow<ClassDescriptor> window = new TaskWindow<ClassDescriptor>(executor, cfg.getMemoryBudget());
+
+            JarEntry entry;
+            while ((entry = jarInputStream.getNextJarEntry()) != null) {
+                String fileName = entry.getName();
+
+                if (fileName.equals("META-INF/MANIFEST.MF")) continue;
+
+                SourceEntry existingEntry = entries.get(fileName);
+
+                HashCode hash = null;
+                int classSize = -1;
+
+                if (!entry.isDirectory()) {
+                    if (fileName.endsWith(".class")) {
+                        String className = Utils.fileNameToClassName(fileName);
+                        final ClassReader classReader = new ClassReader(jarInputStream);
+                        if (!classReader.getClassName().equals(className)) throw new InvalidJarException();
+
+                        hash = Hashing.md5().hashBytes(classReader.b);
+                        classSize = classReader.b.length;
+
+                        if (existingEntry != null) {
+                            if (!hash.equals(existingEntry.hash)) {
+                                throw new InvalidJarException("Duplicated class name: " + className);
+                            }
+                        }
+                        else {
+                            classNames.add(className);
+
+                            long weight = (long) classSize * CLASS_MEMORY_FACTOR;
+                            while (!window.hasRoom(weight)) {
+                                addStatistics(window.takeOldest());
+                            }
+
+                            window.submit(new Callable<ClassDescriptor>() {
+                                @Override
+                                public ClassDescriptor call() {
+                                    return new ClassDescriptor(classReader);
+                                }
+                            }, weight);
+                        }
+                    }
+                    else {
+                        HashingInputStream in = new HashingInputStream(Hashing.md5(), jarInputStream);
+                        ByteStreams.copy(in, ByteStreams.nullOutputStream());
+                        hash = in.hash();
+
+                        if (existingEntry != null && !hash.equals(existingEntry.hash)) {
+                            System.out.println("Duplicated resource: " + fileName);
+                        }
+                    }
+                }
+
+                entries.put(fileName, new SourceEntry(entry, jarIndex, hash, classSize));
+            }
+
+            while (!window.isEmpty()) {
+                addStatistics(window.takeOldest());
+            }
+        } finally {
+            executor.shutdownNow();
+            jarInputStream.close();
+        }
+    }
+
+    private void addStatistics(ClassDescriptor classDescriptor) throws InvalidJarException {
+        LiteralsCache.countStrings(stringsCountMap, classDescriptor);
+        versionCache.addClass(classDescriptor);
+    }
+
+    public boolean hasClasses() {
+        return classNames.size() > 0;
+    }
+
+    public void writeResult(File resultFile) throws IOException {
+        ctx = new CompressionContext(new LiteralsCache(stringsCountMap), versionCache);
+
+        Collection<SourceEntry> order = JarPacker.getEntryOrder(entries, classNames, cfg);
+
+        List<JarFile> jarFiles = openJars();
+        ExecutorService executor = JarPacker.createExecutor(cfg);
+
+        File packedClassesFile = File.createTempFile("packedClasses", ".tmp");
+
+        try {
+            ClassIndexWriter indexWriter = cfg.isClassIndex() ? new ClassIndexWriter() : null;
+
+            DictionaryClusters clusters = createClusters();
+
+            byte[][] dictionaries = packClasses(order, jarFiles, executor, packedClassesFile, clusters, indexWriter);
+
+            // Dictionaries chosen for the classes in the order of the temporary file, all zeros if there is one
+            int[] dictionaryIds = new int[classNames.size()];
+
+            if (dictionaries.length > 1) {
+                dictionaries = retrainDictionaries(executor, order, packedClassesFile, clusters, dictionaries, dictionaryIds);
+            }
+
+            OutputStream out = new FileOutputStream(resultFile);
+
+            try {
+                JarOutputStream zipOutputStream;
+
+                if (manifest != null) {
+                    zipOutputStream = new JarOutputStream(out, manifest);
+                }
+                else {
+                    zipOutputStream = new JarOutputStream(out);
+                }
+
+                if (hasClasses()) {
+                    JarPacker.writeMetadata(zipOutputStream, ctx, cfg.getCodec(), dictionaries, classNames);
+                }
+
+                writeEntries(zipOutputStream, order, jarFiles, executor, packedClassesFile, dictionaries, dictionaryIds);
+
+                if (indexWriter != null && hasClasses()) {
+                    zipOutputStream.putNextEntry(new ZipEntry(PackClassLoader.CLASS_INDEX_ENTRY_NAME));
+                    indexWriter.writeTo(new DataOutputStream(zipOutputStream));
+                    zipOutputStream.closeEntry();
+                }
+
+                zipOutputStream.close();
+            } finally {
+                out.close();
+            }
+        } finally {
+            executor.shutdownNow();
+            closeJars(jarFiles);
+
+            if (!packedClassesFile.delete()) {
+                packedClassesFile.deleteOnExit();
+            }
+        }
+    }
+
+    private DictionaryClusters createClusters() {
+        Map<String, Integer> classSizes = new HashMap<String, Integer>();
+        for (SourceEntry entry : entries.values()) {
+            if (entry.isClass()) {
+                classSizes.put(Utils.fileNameToClassName(entry.jarEntry.getName()), entry.classSize);
+            }
+        }
+
+        return new DictionaryClusters(classSizes, cfg.getDictionaryCount(), cfg.getDictionaryTrainingSize());
+    }
+
+    /**
+     * Packs classes in the pack order to the temporary file: the size and the content of the plain part, then the size
+     * and the content of the part to be compressed.
+     *
+     * @return the dictionaries.
+     */
+    private byte[][] packClasses(Collection<SourceEntry> order, final List<JarFile> jarFiles, ExecutorService executor,
+                                 File packedClassesFile, DictionaryClusters clusters, ClassIndexWriter indexWriter)
+            throws IOException {
+        TaskWindow<ClassDescriptor> window = new TaskWindow<ClassDescriptor>(executor, cfg.getMemoryBudget());
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(packedClassesFile)));
+
+        try {
+            for (final SourceEntry entry : order) {
+                if (!entry.isClass()) continue;
+
+                long weight = (long) entry.classSize * CLASS_MEMORY_FACTOR;
+                while (!window.hasRoom(weight)) {
+                    writePackedClass(out, window.takeOldest(), clusters, indexWriter);
+                }
+
+                window.submit(new Callable<ClassDescriptor>() {
+                    @Override
+                    public ClassDescriptor call() throws IOException {
+                        ClassDescriptor classDescriptor = new ClassDescriptor(readClass(jarFiles, entry));
+                        classDescriptor.pack(ctx);
+                        return classDescriptor;
+                    }
+                }, weight);
+            }
+
+            while (!window.isEmpty()) {
+                writePackedClass(out, window.takeOldest(), clusters, indexWriter);
+            }
+        } finally {
+            out.close();
+        }
+
+        return clusters.getDictionaries(executor);
+    }
+
+    private static void writePackedClass(DataOutputStream out, ClassDescriptor classDescriptor,
+                                         DictionaryClusters clusters, ClassIndexWriter indexWriter) throws IOException {
+        OpenByteOutputStream plainData = classDescriptor.getPlainDataArray();
+        OpenByteOutputStream forCompressionData = classDescriptor.forCompressionDataArray;
+
+        out.writeInt(plainData.size());
+        plainData.writeTo(out);
+
+        out.writeInt(forCompressionData.size());
+        forCompressionData.writeTo(out);
+
+        clusters.addData(classDescriptor.getClassName(), forCompressionData.getBuffer(), 0, forCompressionData.size());
+
+        if (indexWriter != null) {
+            indexWriter.addClass(classDescriptor);
+        }
+    }
+
+    /**
+     * Trains each dictionary again on the classes it compresses best, see {@link DictionaryClusters}.
+     *
+     * @param dictionaryIds receives the dictionary chosen for each class in the order of the temporary file.
+     */
+    private byte[][] retrainDictionaries(ExecutorService executor, Collection<SourceEntry> order, File packedClassesFile,
+                                         DictionaryClusters clusters, final byte[][] dictionaries,
+                                         int[] dictionaryIds) throws IOException {
+        TaskWindow<JarPacker.CompressedClass> window = new TaskWindow<JarPacker.CompressedClass>(executor, cfg.getMemoryBudget());
+
+        ArrayDeque<byte[]> pendingClasses = new ArrayDeque<byte[]>();
+        int assigned = 0;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(packedClassesFile)));
+
+        try {
+            for (SourceEntry entry : order) {
+                if (!entry.isClass()) continue;
+
+                final byte[] plainData = readArray(in);
+                final byte[] forCompressionData = readArray(in);
+
+                final int[] candidates = clusters.getCandidates(
+                        clusters.getCluster(Utils.fileNameToClassName(entry.jarEntry.getName())));
+
+                long weight = 2L * (plainData.length + forCompressionData.length);
+                while (!window.hasRoom(weight)) {
+                    assign(window.takeOldest(), pendingClasses.poll(), clusters, dictionaryIds, assigned++);
+                }
+
+                window.submit(new Callable<JarPacker.CompressedClass>() {
+                    @Override
+                    public JarPacker.CompressedClass call() throws IOException {
+                        return JarPacker.compressClass(plainData, plainData.length,
+                                forCompressionData, forCompressionData.length, dictionaries, candidates, encoder);
+                    }
+                }, weight);
+
+                pendingClasses.add(forCompressionData);
+            }
+
+            while (!window.isEmpty()) {
+                assign(window.takeOldest(), pendingClasses.poll(), clusters, dictionaryIds, assigned++);
+            }
+        } finally {
+            in.close();
+        }
+
+        return clusters.getDictionaries(executor);
+    }
+
+    private static void assign(JarPacker.CompressedClass compressedClass, byte[] forCompressionData,
+                               DictionaryClusters clusters, int[] dictionaryIds, int index) {
+        dictionaryIds[index] = compressedClass.dictionaryId;
+        clusters.addData(compressedClass.dictionaryId, forCompressionData, 0, forCompressionData.length);
+    }
+
+    /**
+     * Compresses packed classes in parallel, the entries are written in the pack order.
+     */
+    private void writeEntries(ZipOutputStream zipOutputStream, Collection<SourceEntry> order, List<JarFile> jarFiles,
+                              ExecutorService executor, File packedClassesFile, final byte[][] dictionaries,
+                              int[] dictionaryIds) throws IOException {
+        TaskWindow<JarPacker.CompressedClass> window = new TaskWindow<JarPacker.CompressedClass>(executor, cfg.getMemoryBudget());
+
+        ArrayDeque<SourceEntry> pendingEntries = new ArrayDeque<SourceEntry>();
+        int classIndex = 0;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(packedClassesFile)));
+
+        try {
+            for (SourceEntry entry : order) {
+                if (entry.isClass()) {
+                    final byte[] plainData = readArray(in);
+                    final byte[] forCompressionData = readArray(in);
+                    final int dictionaryId = dictionaryIds[classIndex++];
+
+                    long weight = 2L * (plainData.length + forCompressionData.length);
+                    while (!window.hasRoom(weight)) {
+                        writeEntry(zipOutputStream, pendingEntries.poll(), jarFiles, window);
+                    }
+
+                    window.submit(new Callable<JarPacker.CompressedClass>() {
+                        @Override
+                        public JarPacker.CompressedClass call() throws IOException {
+                            return JarPacker.compressClass(plainData, plainData.length,
+                                    forCompressionData, forCompressionData.length, dictionaries,
+                                    new int[]{dictionaryId}, encoder);
+                        }
+                    }, weight);
+                }
+
+                pendingEntries.add(entry);
+            }
+
+            while (!pendingEntries.isEmpty()) {
+                writeEntry(zipOutputStream, pendingEntries.poll(), jarFiles, window);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readArray(DataInputStream in) throws IOException {
+        byte[] res = new byte[in.readInt()];
+        in.readFully(res);
+        return res;
+    }
+
+    private static void writeEntry(ZipOutputStream zipOutputStream, SourceEntry entry, List<JarFile> jarFiles,
+                                   TaskWindow<JarPacker.CompressedClass> window) throws IOException {
+        JarEntry jarEntry = entry.jarEntry;
+
+        jarEntry.setCompressedSize(-1);
+
+        if (jarEntry.isDirectory()) {
+            zipOutputStream.putNextEntry(jarEntry);
+            zipOutputStream.closeEntry();
+        }
+        else if (entry.isClass()) {
+            JarPacker.CompressedClass compressedClass = window.takeOldest();
+
+            jarEntry.setMethod(ZipEntry.STORED);
+            jarEntry.setSize(compressedClass.data.length);
+            jarEntry.setCompressedSize(compressedClass.data.length);
+            jarEntry.setCrc(compressedClass.crc);
+
+            zipOutputStream.putNextEntry(jarEntry);
+            zipOutputStream.write(compressedClass.data);
+            zipOutputStream.closeEntry();
+        }
+        else {
+            zipOutputStream.putNextEntry(jarEntry);
+
+            InputStream in = openEntry(jarFiles, entry);
+            try {
+                ByteStreams.copy(in, zipOutputStream);
+            } finally {
+                in.close();
+            }
+
+            zipOutputStream.closeEntry();
+        }
+    }
+
+    public void checkResult(File targetJar) throws IOException {
+        if (!hasClasses()) return;
+
+        if (ctx == null) throw new IllegalStateException("The result is not written");
+
+        final PackClassLoader loader = new PackClassLoader(null, targetJar);
+
+        try {
+            final List<JarFile> jarFiles = openJars();
+            ExecutorService executor = JarPacker.createExecutor(cfg);
+
+            try {
+                TaskWindow<Void> window = new TaskWindow<Void>(executor, cfg.getMemoryBudget());
+
+                for (final SourceEntry entry : entries.values()) {
+                    if (!entry.isClass()) continue;
+
+                    long weight = (long) entry.classSize * CLASS_MEMORY_FACTOR;
+                    while (!window.hasRoom(weight)) {
+                        window.takeOldest();
+                    }
+
+                    window.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            ClassDescriptor descriptor = new ClassDescriptor(readClass(jarFiles, entry));
+                            descriptor.pack(ctx);
+
+                            byte[] unpackClass = loader.unpackClass(descriptor.getClassName());
+                            assert unpackClass != null;
+
+                            ClassComparator.compare(descriptor.getRepackedClass(), unpackClass);
+                            return null;
+                        }
+                    }, weight);
+                }
+
+                while (!window.isEmpty()) {
+                    window.takeOldest();
+                }
+            } finally {
+                executor.shutdownNow();
+                closeJars(jarFiles);
+            }
+        } finally {
+            loader.close();
+        }
+    }
+
+    private List<JarFile> openJars() throws IOException {
+        List<JarFile> res = new ArrayList<JarFile>();
+
+        try {
+            for (File jar : jars) {
+                res.add(new JarFile(jar));
+            }
+        } catch (IOException e) {
+            closeJars(res);
+            throw e;
+        }
+
+        return res;
+    }
+
+    private static void closeJars(List<JarFile> jarFiles) throws IOException {
+        for (JarFile jarFile : jarFiles) {
+            jarFile.close();
+        }
+    }
+
+    private static InputStream openEntry(List<JarFile> jarFiles, SourceEntry entry) throws IOException {
+        JarFile jarFile = jarFiles.get(entry.jarIndex);
+
+        ZipEntry zipEntry = jarFile.getEntry(entry.jarEntry.getName());
+        if (zipEntry == null) throw new IOException("Entry " + entry.jarEntry.getName() + " not found in " + jarFile.getName());
+
+        return jarFile.getInputStream(zipEntry);
+    }
+
+    private static ClassReader readClass(List<JarFile> jarFiles, SourceEntry entry) throws IOException {
+        InputStream in = openEntry(jarFiles, entry);
+
+        ClassReader res;
+        try {
+            res = new ClassReader(in);
+        } finally {
+            in.close();
+        }
+
+        if (!Hashing.md5().hashBytes(res.b).equals(entry.hash)) {
+            throw new IOException("Class " + entry.jarEntry.getName() + " has been changed after the first pass");
+        }
+
+        return res;
+    }
+
+    private static class SourceEntry {
+        private final JarEntry jarEntry;
+
+        private final int jarIndex;
+
+        /**
+         * MD5 of the content, <code>null</code> for directories.
+         */
+        private final HashCode hash;
+
+        /**
+         * Size of the class file, -1 for resources and directories.
+         */
+        private final int classSize;
+
+        private SourceEntry(JarEntry jarEntry, int jarIndex, HashCode hash, int classSize) {
+            this.jarEntry = jarEntry;
+            this.jarIndex = jarIndex;
+            this.hash = hash;
+            this.classSize = classSize;
+        }
+
+        private boolean isClass() {
+            return classSize >= 0;
+        }
+    }
+
+    /**
+     * Tasks submitted to the executor and not taken yet. The total weight of the tasks is limited by the budget,
+     * but a single task is accepted whatever its weight is.
+     */
+    private static class TaskWindow<T> {
+        private final ExecutorService executor;
+
+        private final long budget;
+
+        private final ArrayDeque<Future<T>> tasks = new ArrayDeque<Future<T>>();
+        private final ArrayDeque<Long> weights = new ArrayDeque<Long>();
+
+        private long weight;
+
+        private TaskWindow(ExecutorService executor, long budget) {
+            this.executor = executor;
+            this.budget = budget;
+        }
+
+        public boolean hasRoom(long taskWeight) {
+            return tasks.isEmpty() || weight + taskWeight <= budget;
+        }
+
+        public boolean isEmpty() {
+            return tasks.isEmpty();
+        }
+
+        public void submit(Callable<T> task, long taskWeight) {
+            tasks.add(executor.submit(task));
+            weights.add(taskWeight);
+            weight += taskWeight;
+        }
+
+        public T takeOldest() throws IOException {
+            weight -= weights.poll();
+            return JarPacker.getResult(tasks.poll());
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.ess.jloader.packer;
 
-import com.ess.jloader.utils.HuffmanUtils;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.Ordering;
 import com.google.common.util.concurrent.AtomicLongMap;
@@ -17,15 +16,22 @@ public class VersionCache {
 
     private final List<Integer> versions = new ArrayList<Integer>(8);
 
+    public VersionCache() {
+    }
+
     public VersionCache(Collection<ClassDescriptor> classes) throws InvalidJarException {
         for (ClassDescriptor classDescriptor : classes) {
-            Integer version = classDescriptor.getClassReader().readInt(4);
-            if (!versions.contains(version)) {
-                if (versions.size() == 8) {
-                    throw new InvalidJarException();
-                }
-                versions.add(version);
+            addClass(classDescriptor);
+        }
+    }
+
+    public void addClass(ClassDescriptor classDescriptor) throws InvalidJarException {
+        Integer version = classDescriptor.getClassReader().readInt(4);
+        if (!versions.contains(version)) {
+            if (versions.size() == 8) {
+                throw new InvalidJarException();
             }
+            versions.add(version);
         }
     }
 
@@ -22,6 +22,11 @@ public class AttributeCode extends Attribute {
 
     public static final Key<AttributeCode> CODE_ATTR_KEY = Key.create("CODE_ATTR_KEY");
 
+    // Tokens of the code, see writeCode(). Opcodes GETSTATIC .. INVOKEINTERFACE take the low 3 bits of a token.
+    private static final int MAX_SHORT_RUN = 31;
+    private static final int LONG_RUN_TOKEN = 0xFE;
+    private static final int END_OF_CODE_TOKEN = 0xFF;
+
     private int maxStack;
     private int maxLocals;
 
@@ -106,14 +111,32 @@ public class AttributeCode extends Attribute {
         }
     }
 
+    /**
+     * Writes the code as runs of instructions that don't refer to fields or methods, each run is copied by
+     * the loader as is (switch padding included). A run is followed by a field/method instruction with
+     * the reference relative to the beginning of its constant interval. The length of a run and the opcode of
+     * the following instruction are written in one byte before the run:
+     * <pre>
+     * 1        token: (run length << 3 | opcode - GETSTATIC) if the length is less than {@link #MAX_SHORT_RUN},
+     *          LONG_RUN_TOKEN or END_OF_CODE_TOKEN otherwise
+     * 2/3      smallShort3 run length, for LONG_RUN_TOKEN and END_OF_CODE_TOKEN only
+     * [*]      run
+     * 1        opcode, for LONG_RUN_TOKEN only
+     * 2        reference
+     * 1        argument count, invokeinterface only
+     * </pre>
+     * The code ends with END_OF_CODE_TOKEN and the last run.
+     */
     private void writeCode(DataOutputStream out, ClassDescriptor descriptor) throws IOException {
         ByteBuffer codeBuffer = ByteBuffer.wrap(code);
 
+        int runStart = 0;
+
         while (codeBuffer.hasRemaining()) {
+            int insnStart = codeBuffer.position();
 
             // visits the instruction at this offset
             int opcode = codeBuffer.get() & 0xFF;
-            out.write(opcode);
 
             switch (InsnTypes.TYPE[opcode]) {
                 case InsnTypes.NOARG_INSN:
@@ -123,7 +146,7 @@ public class AttributeCode extends Attribute {
                 case InsnTypes.VAR_INSN:
                 case InsnTypes.SBYTE_INSN:
                 case InsnTypes.LDC_INSN:
-                    out.write(codeBuffer.get());
+                    skip(codeBuffer, 1);
                     break;
 
                 case InsnTypes.LABEL_INSN:
@@ -131,42 +154,38 @@ public class AttributeCode extends Attribute {
                 case InsnTypes.LDCW_INSN:
                 case InsnTypes.TYPE_INSN:
                 case InsnTypes.IINC_INSN:
-                    PackUtils.write(out, codeBuffer, 2);
+                    skip(codeBuffer, 2);
                     break;
 
                 case InsnTypes.LABELW_INSN:
-                    PackUtils.write(out, codeBuffer, 4);
+                    skip(codeBuffer, 4);
                     break;
 
                 case InsnTypes.WIDE_INSN:
                     opcode = codeBuffer.get() & 0xFF;
-                    out.write(opcode);
 
                     if (opcode == Opcodes.IINC) {
-                        PackUtils.write(out, codeBuffer, 4);
+                        skip(codeBuffer, 4);
                     } else {
-                        PackUtils.write(out, codeBuffer, 2);
+                        skip(codeBuffer, 2);
                     }
                     break;
 
+                // Switches are copied with their run, the padding stays valid because the loader writes the run at
+                // the same offset. The checks below catch a packer that walks the instructions out of alignment.
                 case InsnTypes.TABL_INSN: {
                     skipPadding(codeBuffer);
 
                     int defaultLabel = codeBuffer.getInt(); // default ref
-                    assert defaultLabel >= 0 && defaultLabel < code.length;
-                    out.writeInt(defaultLabel);
+                    assert isJumpTarget(insnStart, defaultLabel) : defaultLabel;
 
                     int min = codeBuffer.getInt();
-                    out.writeInt(min);
-
                     int max = codeBuffer.getInt();
                     assert min <= max;
-                    out.writeInt(max);
 
                     for (int i = 0; i < max - min + 1; i++) {
                         int label = codeBuffer.getInt();
-                        assert label >= 0 && label < code.length;
-                        out.writeInt(label);
+                        assert isJumpTarget(insnStart, label) : label;
                     }
                     break;
                 }
@@ -174,17 +193,37 @@ public class AttributeCode extends Attribute {
                 case InsnTypes.LOOK_INSN: {
                     skipPadding(codeBuffer);
 
-                    PackUtils.write(out, codeBuffer, 4);
+                    int defaultLabel = codeBuffer.getInt();
+                    assert isJumpTarget(insnStart, defaultLabel) : defaultLabel;
 
                     int len = codeBuffer.getInt();
-                    out.writeInt(len);
+                    assert len >= 0 : len;
+
+                    for (int i = 0; i < len; i++) {
+                        int key = codeBuffer.getInt();
+                        int label = codeBuffer.getInt();
 
-                    PackUtils.write(out, codeBuffer, 8 * len);
+                        assert i == 0 || key > codeBuffer.getInt(codeBuffer.position() - 16) : key; // keys are sorted
+                        assert isJumpTarget(insnStart, label) : label;
+                    }
                     break;
                 }
 
                 case InsnTypes.ITFMETH_INSN:
                 case InsnTypes.FIELDORMETH_INSN:
+                    int runLength = insnStart - runStart;
+
+                    if (runLength < MAX_SHORT_RUN) {
+                        out.write(runLength << 3 | (opcode - Opcodes.GETSTATIC));
+                        out.write(code, runStart, runLength);
+                    }
+                    else {
+                        out.write(LONG_RUN_TOKEN);
+                        PackUtils.writeSmallShort3(out, runLength);
+                        out.write(code, runStart, runLength);
+                        out.write(opcode);
+                    }
+
                     int ref = codeBuffer.getShort() & 0xFFFF;
 
                     if (opcode == Opcodes.GETFIELD || opcode == Opcodes.PUTFIELD
@@ -203,6 +242,8 @@ public class AttributeCode extends Attribute {
                     else {
                         throw new UnsupportedOperationException(String.valueOf(opcode));
                     }
+
+                    runStart = codeBuffer.position();
                     break;
 
 //                case InsnTypes.INDYMETH_INSN: {
@@ -210,7 +251,7 @@ public class AttributeCode extends Attribute {
 //                }
 
                 case InsnTypes.MANA_INSN:
-                    PackUtils.write(out, codeBuffer, 3);
+                    skip(codeBuffer, 3);
                     break;
 
                 default:
@@ -218,9 +259,19 @@ public class AttributeCode extends Attribute {
             }
         }
 
-        out.write(0xFF); // end of code marker.
+        out.write(END_OF_CODE_TOKEN);
+        PackUtils.writeSmallShort3(out, code.length - runStart);
+        out.write(code, runStart, code.length - runStart);
     }
 
+    private boolean isJumpTarget(int insnStart, int label) {
+        int target = insnStart + label;
+        return target >= 0 && target < code.length;
+    }
+
+    private static void skip(ByteBuffer codeBuffer, int len) {
+        codeBuffer.position(codeBuffer.position() + len);
+    }
 
     public int getMaxStack() {
         return maxStack;
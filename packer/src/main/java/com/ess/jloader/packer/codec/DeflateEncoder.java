@@ -0,0 +1,25 @@
+package com.ess.jloader.packer.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Raw DEFLATE with a preset dictionary, decoded by {@link com.ess.jloader.utils.RawInflater}.
+ *
+ * @author Sergey Evdokimov
+ */
+public class DeflateEncoder extends Encoder {
+
+    @Override
+    public void encode(OutputStream out, byte[] data, int size, byte[] dictionary) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setDictionary(dictionary);
+
+        DeflaterOutputStream defOut = new DeflaterOutputStream(out, deflater);
+        defOut.write(data, 0, size);
+        defOut.close();
+        deflater.end();
+    }
+}
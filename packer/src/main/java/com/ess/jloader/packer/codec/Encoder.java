@@ -0,0 +1,30 @@
+package com.ess.jloader.packer.codec;
+
+import com.ess.jloader.utils.Codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses the class data for the decoder of the codec (see {@link Codec#createDecoder(byte[], int, int)}).
+ * Implementations keep no state, an instance is shared by all threads.
+ *
+ * @author Sergey Evdokimov
+ */
+public abstract class Encoder {
+
+    public abstract void encode(OutputStream out, byte[] data, int size, byte[] dictionary) throws IOException;
+
+    public static Encoder forCodec(Codec codec) {
+        switch (codec) {
+            case DEFLATE:
+                return new DeflateEncoder();
+
+            case LZ:
+                return new LzEncoder();
+
+            default:
+                throw new IllegalArgumentException(codec.name());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.ess.jloader.packer.codec;
+
+import com.ess.jloader.utils.LzDecoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Encoder of the LZ codec, see {@link LzDecoder} for the format. The dictionary is placed before the data, so matches
+ * may refer to it. Matches are found by hash chains like deflater does, the time of decoding doesn't depend on how
+ * hard the encoder looks for them.
+ *
+ * @author Sergey Evdokimov
+ */
+public class LzEncoder extends Encoder {
+
+    private static final int MIN_MATCH = LzDecoder.MIN_MATCH;
+
+    private static final int HASH_BITS = 15;
+
+    /**
+     * Maximum number of previous occurrences checked for a position.
+     */
+    private static final int MAX_CHAIN = 64;
+
+    @Override
+    public void encode(OutputStream out, byte[] data, int size, byte[] dictionary) throws IOException {
+        int start = dictionary.length;
+
+        byte[] window = new byte[start + size];
+        System.arraycopy(dictionary, 0, window, 0, start);
+        System.arraycopy(data, 0, window, start, size);
+
+        int[] head = new int[1 << HASH_BITS];
+        Arrays.fill(head, -1);
+
+        int[] prev = new int[window.length];
+
+        int lastHashed = window.length - MIN_MATCH;
+
+        for (int i = 0; i < start && i <= lastHashed; i++) {
+            insert(window, i, head, prev);
+        }
+
+        int pos = start;
+        int anchor = start;
+
+        while (pos <= lastHashed) {
+            long match = findMatch(window, pos, head, prev);
+            insert(window, pos, head, prev);
+
+            int length = (int) (match >>> 32);
+
+            // Lazy matching: a longer match at the next position is taken instead of this one
+            if (length < MIN_MATCH || (pos < lastHashed && findMatch(window, pos + 1, head, prev) >>> 32 > length)) {
+                pos++;
+                continue;
+            }
+
+            writeSequence(out, window, anchor, pos - anchor, (int) match, length);
+
+            int matchEnd = pos + length;
+
+            for (pos++; pos < Math.min(matchEnd, lastHashed + 1); pos++) {
+                insert(window, pos, head, prev);
+            }
+
+            pos = matchEnd;
+            anchor = matchEnd;
+        }
+
+        writeLastSequence(out, window, anchor, window.length - anchor);
+    }
+
+    /**
+     * @return the length of the longest match in the high 32 bits and its distance in the low ones.
+     */
+    private static long findMatch(byte[] window, int pos, int[] head, int[] prev) {
+        int maxLength = window.length - pos;
+
+        int bestLength = 0;
+        int bestDistance = 0;
+
+        int candidate = head[hash(window, pos)];
+
+        for (int chain = MAX_CHAIN; candidate >= 0 && pos - candidate <= LzDecoder.MAX_DISTANCE && chain > 0; chain--) {
+            if (window[candidate + bestLength] == window[pos + bestLength]) {
+                int len = 0;
+                while (len < maxLength && window[candidate + len] == window[pos + len]) {
+                    len++;
+                }
+
+                if (len > bestLength) {
+                    bestLength = len;
+                    bestDistance = pos - candidate;
+
+                    if (len == maxLength) break;
+                }
+            }
+
+            candidate = prev[candidate];
+        }
+
+        return ((long) bestLength << 32) | bestDistance;
+    }
+
+    private static int hash(byte[] data, int pos) {
+        int h = (data[pos] & 0xFF) | ((data[pos + 1] & 0xFF) << 8) | ((data[pos + 2] & 0xFF) << 16) | (data[pos + 3] << 24);
+        return (h * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+    private static void insert(byte[] data, int pos, int[] head, int[] prev) {
+        int h = hash(data, pos);
+        prev[pos] = head[h];
+        head[h] = pos;
+    }
+
+    private static void writeSequence(OutputStream out, byte[] data, int literalStart, int literalCount,
+                                      int distance, int matchLength) throws IOException {
+        int matchCode = matchLength - MIN_MATCH;
+
+        out.write((Math.min(literalCount, 15) << 4) | Math.min(matchCode, 15));
+
+        if (literalCount >= 15) {
+            writeLength(out, literalCount - 15);
+        }
+
+        out.write(data, literalStart, literalCount);
+
+        out.write(distance & 0xFF);
+        out.write(distance >>> 8);
+
+        if (matchCode >= 15) {
+            writeLength(out, matchCode - 15);
+        }
+    }
+
+    private static void writeLastSequence(OutputStream out, byte[] data, int literalStart, int literalCount)
+            throws IOException {
+        out.write(Math.min(literalCount, 15) << 4);
+
+        if (literalCount >= 15) {
+            writeLength(out, literalCount - 15);
+        }
+
+        out.write(data, literalStart, literalCount);
+    }
+
+    private static void writeLength(OutputStream out, int value) throws IOException {
+        while (value >= 255) {
+            out.write(255);
+            value -= 255;
+        }
+
+        out.write(value);
+    }
+}
@@ -1,154 +1,400 @@
 package com.ess.jloader.packer.dictionary;
 
-import com.ess.jloader.packer.CountMap;
-import com.ess.jloader.utils.ByteArrayString;
 import com.ess.jloader.utils.OpenByteOutputStream;
 import com.google.common.base.Throwables;
-import com.google.common.collect.Ordering;
+import com.google.common.util.concurrent.MoreExecutors;
 
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Comparator;
-import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
+ * Builds the preset dictionary of the deflater. Compressed data of classes are concatenated and parsed like deflater
+ * does: a hash chain finds the longest match within the last 32K for every position. The dictionary consists of
+ * the most frequent matched strings.
+ * <p/>
+ * The data is split into shards of about {@link #SHARD_SIZE} bytes at class boundaries, shards are parsed in parallel
+ * and their counters are merged in the order of shards, so the dictionary doesn't depend on the number of threads.
+ *
  * @author Sergey Evdokimov
  */
 public class DictionaryCalculator {
 
+    public static final long DEFAULT_MAX_TRAINING_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The match counter identifies strings by the index of the first occurrence, the index must fit 24 bits.
+     */
+    public static final long MAX_TRAINING_SIZE = 32 * 1024 * 1024;
+
     private static final int W_SIZE = 1024*32;
     private static final int W_SIZE_MASK = W_SIZE - 1;
 
-    private final byte[] window = new byte[W_SIZE];
+    private static final int MIN_MATCH = 3;
+    private static final int MAX_MATCH = 258;
+
+    private static final int HASH_BITS = 15;
+    private static final int HASH_MASK = (1 << HASH_BITS) - 1;
+
+    /**
+     * Maximum number of previous occurrences checked for a position.
+     */
+    private static final int MAX_CHAIN = 128;
+
+    private static final int SHARD_SIZE = 1024 * 1024;
+
+    private static final int FREQUENT_STRINGS_SIZE = 1024 * 4;
+    private static final int DICTIONARY_SIZE = 1024 * 27;
+
+    private final long maxTrainingSize;
+
+    private final OpenByteOutputStream data = new OpenByteOutputStream();
+
+    /**
+     * Offsets of classes in {@link #data}.
+     */
+    private int[] classOffsets = new int[256];
+    private int classCount;
+
+    public DictionaryCalculator() {
+        this(DEFAULT_MAX_TRAINING_SIZE);
+    }
+
+    /**
+     * @param maxTrainingSize the size of data to analyze, the time of building the dictionary is proportional to it.
+     */
+    public DictionaryCalculator(long maxTrainingSize) {
+        if (maxTrainingSize <= 0 || maxTrainingSize > MAX_TRAINING_SIZE) {
+            throw new IllegalArgumentException("maxTrainingSize: " + maxTrainingSize);
+        }
+
+        this.maxTrainingSize = maxTrainingSize;
+    }
+
+    /**
+     * Adds compressed data of a class. The data is copied, so the caller may reuse the buffer. Classes added after
+     * the training size is exceeded are ignored.
+     */
+    public void addData(byte[] data, int off, int len) {
+        if (this.data.size() + len > maxTrainingSize) return;
+
+        if (classCount == classOffsets.length) {
+            classOffsets = Arrays.copyOf(classOffsets, classCount * 2);
+        }
+
+        classOffsets[classCount++] = this.data.size();
+
+        this.data.write(data, off, len);
+    }
+
+    public byte[] getDictionary() {
+        return getDictionary(MoreExecutors.sameThreadExecutor());
+    }
+
+    public byte[] getDictionary(ExecutorService executor) {
+        final byte[] data = this.data.getBuffer();
+
+        List<Future<MatchCounter>> shards = new ArrayList<Future<MatchCounter>>();
 
-    private int windowPos = 0;
+        int shardStart = 0;
+        int classIdx = 0;
 
-    private CountMap<ByteArrayString> countMap = new CountMap<ByteArrayString>();
+        while (shardStart < this.data.size()) {
+            while (classIdx < classCount && classOffsets[classIdx] < shardStart + SHARD_SIZE) {
+                classIdx++;
+            }
+
+            final int start = shardStart;
+            final int end = classIdx < classCount ? classOffsets[classIdx] : this.data.size();
+            final int[] classOffsets = this.classOffsets;
+            final int classCount = this.classCount;
+            final int firstClass = Arrays.binarySearch(classOffsets, 0, classCount, start);
+
+            shards.add(executor.submit(new Callable<MatchCounter>() {
+                @Override
+                public MatchCounter call() {
+                    MatchCounter res = new MatchCounter();
+                    findMatches(data, start, end, classOffsets, classCount, firstClass, res);
+                    return res;
+                }
+            }));
 
-    private DictionaryCalculator() {
+            shardStart = end;
+        }
+
+        MatchCounter counter = new MatchCounter();
+
+        for (Future<MatchCounter> shard : shards) {
+            try {
+                counter.addAll(shard.get());
+            } catch (InterruptedException e) {
+                throw Throwables.propagate(e);
+            } catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        return selectStrings(data, counter);
     }
 
-    private void write(byte[] data, int pos, int end) {
-        byte[] window = this.window;
-        int windowPos = this.windowPos;
+    private static int hash(byte[] data, int pos) {
+        int h = ((data[pos] & 0xFF) << 16) | ((data[pos + 1] & 0xFF) << 8) | (data[pos + 2] & 0xFF);
+        return (h * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+    /**
+     * Parses data[start, end) to the longest matches. A matched string is counted only if it occurs in one of previous
+     * classes and the class itself doesn't contain a match of the same length before it, the dictionary doesn't help
+     * to compress such string.
+     */
+    private static void findMatches(byte[] data, int start, int end, int[] classOffsets, int classCount, int classIdx,
+                                    MatchCounter counter) {
+        int[] head = new int[HASH_MASK + 1];
+        Arrays.fill(head, -1);
+
+        int[] prev = new int[W_SIZE];
+
+        int classStart = start;
+        int classEnd = classIdx + 1 < classCount ? classOffsets[classIdx + 1] : end;
+
+        int pos = start;
 
         while (pos < end) {
-            byte firstB = data[pos];
+            while (pos >= classEnd) {
+                classStart = classEnd;
+                classIdx++;
+                classEnd = classIdx + 1 < classCount ? classOffsets[classIdx + 1] : end;
+            }
+
+            int maxLength = Math.min(MAX_MATCH, classEnd - pos);
+
+            int inClassLength = 0;
+            int crossClassLength = 0;
+
+            if (maxLength >= MIN_MATCH) {
+                int candidate = head[hash(data, pos)];
 
-            int maxLength = 0;
+                for (int chain = MAX_CHAIN; candidate >= 0 && pos - candidate <= W_SIZE && chain > 0; chain--) {
+                    boolean inClass = candidate >= classStart;
+                    int bestLength = inClass ? inClassLength : crossClassLength;
 
-            for (int i = 0; i < window.length; i++) {
-                if (firstB == window[i]) {
-                    int dataI = pos;
-                    int winI = i;
+                    if (data[candidate + bestLength] == data[pos + bestLength]) {
+                        int len = 0;
+                        while (len < maxLength && data[candidate + len] == data[pos + len]) {
+                            len++;
+                        }
 
-                    do {
-                        dataI++;
-                        winI = (winI + 1) & W_SIZE_MASK;
-                    } while (dataI < end && winI != windowPos && window[winI] == data[dataI]);
+                        if (len > bestLength) {
+                            if (inClass) {
+                                inClassLength = len;
+                            }
+                            else {
+                                crossClassLength = len;
+                            }
 
-                    int len = dataI - pos;
-                    if (len > maxLength) {
-                        maxLength = len;
+                            if (len == maxLength) break;
+                        }
                     }
+
+                    int next = prev[candidate & W_SIZE_MASK];
+                    if (next >= candidate) break;
+
+                    candidate = next;
                 }
             }
 
-            if (maxLength == 0) {
-                maxLength = 1;
+            if (crossClassLength >= MIN_MATCH && crossClassLength > inClassLength) {
+                counter.add(data, pos, crossClassLength);
             }
 
-            if (maxLength > 2) {
-                ByteArrayString str = new ByteArrayString(data, pos, maxLength);
-                countMap.incrementAndGet(str);
+            int step = Math.max(inClassLength, crossClassLength);
+            if (step < MIN_MATCH) {
+                step = 1;
             }
 
-            for (int i = 0; i < maxLength; i++) {
-                window[windowPos] = data[pos + i];
-                windowPos = (windowPos + 1) & W_SIZE_MASK;
+            for (int i = pos, stepEnd = Math.min(pos + step, end - MIN_MATCH + 1); i < stepEnd; i++) {
+                int h = hash(data, i);
+                prev[i & W_SIZE_MASK] = head[h];
+                head[h] = i;
             }
 
-            pos += maxLength;
+            pos += step;
         }
-
-        this.windowPos = windowPos;
     }
 
-    private byte[] getDictionary() {
-//            Map<ByteArrayString, Long> filteredMap = Maps.filterValues(countMap.asMap(), new Predicate<Long>() {
-//                @Override
-//                public boolean apply(Long aLong) {
-//                    return aLong > 1;
-//                }
-//            });
-
-        ByteArrayString[] strings = countMap.keySet().toArray(new ByteArrayString[countMap.size()]);
-        Arrays.sort(strings, Ordering.from(new Comparator<ByteArrayString>() {
-            @Override
-            public int compare(ByteArrayString o1, ByteArrayString o2) {
-                return Long.compare(countMap.get(o1), countMap.get(o2));
-            }
-        }).reverse());
+    /**
+     * Takes the most frequent strings first, then the strings saving the most bytes. The most valuable strings are
+     * placed at the end of the dictionary, close to the compressed data.
+     */
+    private static byte[] selectStrings(byte[] data, MatchCounter counter) {
+        int n = counter.size();
+
+        boolean[] used = new boolean[n];
+        int[] usedStrings = new int[n];
+        int usedCount = 0;
 
         int dictionarySize = 0;
-        LinkedHashSet<ByteArrayString> usedInDictionaryStrings = new LinkedHashSet<ByteArrayString>();
 
-        for (ByteArrayString s : strings) {
-            if (dictionarySize + s.getLength() > 1024 * 4) {
-                break;
-            }
+        long[] order = new long[n];
 
-            dictionarySize += s.getLength();
-            usedInDictionaryStrings.add(s);
+        for (int i = 0; i < n; i++) {
+            order[i] = sortKey(counter.counts[i], i);
         }
+        Arrays.sort(order);
 
-        Arrays.sort(strings, Ordering.from(new Comparator<ByteArrayString>() {
-            @Override
-            public int compare(ByteArrayString o1, ByteArrayString o2) {
-                return Long.compare(o1.getLength() * countMap.get(o1), o2.getLength() * countMap.get(o2));
-            }
-        }).reverse());
+        for (int j = n; --j >= 0; ) {
+            int i = indexOf(order[j]);
 
-        for (ByteArrayString s : strings) {
-            if (!usedInDictionaryStrings.contains(s)) {
-                if (dictionarySize + s.getLength() > 1024 * 27) {
-                    break;
-                }
+            if (dictionarySize + counter.lengths[i] > FREQUENT_STRINGS_SIZE) break;
 
-                dictionarySize += s.getLength();
-                usedInDictionaryStrings.add(s);
-            }
+            dictionarySize += counter.lengths[i];
+            used[i] = true;
+            usedStrings[usedCount++] = i;
         }
 
-        OpenByteOutputStream stream = new OpenByteOutputStream(dictionarySize);
+        for (int i = 0; i < n; i++) {
+            order[i] = sortKey((long) counter.counts[i] * counter.lengths[i], i);
+        }
+        Arrays.sort(order);
 
-        ByteArrayString[] rrr = usedInDictionaryStrings.toArray(new ByteArrayString[usedInDictionaryStrings.size()]);
+        for (int j = n; --j >= 0; ) {
+            int i = indexOf(order[j]);
 
-        for (int i = rrr.length; --i >= 0; ) {
-            try {
-                rrr[i].writeTo(stream);
-            } catch (IOException e) {
-                Throwables.propagate(e);
-            }
+            if (used[i]) continue;
+
+            if (dictionarySize + counter.lengths[i] > DICTIONARY_SIZE) break;
+
+            dictionarySize += counter.lengths[i];
+            used[i] = true;
+            usedStrings[usedCount++] = i;
         }
 
-        byte[] res = stream.getBuffer();
+        byte[] res = new byte[dictionarySize];
+
+        int pos = 0;
+        for (int j = usedCount; --j >= 0; ) {
+            int i = usedStrings[j];
+            System.arraycopy(data, counter.offsets[i], res, pos, counter.lengths[i]);
+            pos += counter.lengths[i];
+        }
 
-        assert res.length == dictionarySize;
-        assert stream.size() == dictionarySize;
+        assert pos == dictionarySize;
 
         return res;
     }
 
+    /**
+     * Strings with equal scores are ordered by the first occurrence, the earlier string is preferred.
+     */
+    private static long sortKey(long score, int index) {
+        assert index <= 0xFFFFFF;
+        return (score << 24) | (0xFFFFFF - index);
+    }
+
+    private static int indexOf(long sortKey) {
+        return 0xFFFFFF - (int) (sortKey & 0xFFFFFF);
+    }
+
     public static byte[] buildDictionary(Collection<OpenByteOutputStream> data) {
-        DictionaryCalculator dOut = new DictionaryCalculator();
+        DictionaryCalculator dOut = new DictionaryCalculator(MAX_TRAINING_SIZE);
 
         for (OpenByteOutputStream openByteOutputStream : data) {
-            dOut.write(openByteOutputStream.getBuffer(), 0, Math.min(openByteOutputStream.size(), 1024));
+            dOut.addData(openByteOutputStream.getBuffer(), 0, openByteOutputStream.size());
         }
 
         return dOut.getDictionary();
     }
 
+    /**
+     * Counts strings identified by a 64-bit hash of the content. Strings are stored in the order of the first occurrence,
+     * the hash table keeps indexes of them.
+     */
+    private static class MatchCounter {
+        private long[] hashes = new long[1024];
+        private int[] counts = new int[1024];
+        private int[] offsets = new int[1024];
+        private int[] lengths = new int[1024];
+
+        private int size;
+
+        private int[] table = new int[2048];
+
+        public int size() {
+            return size;
+        }
+
+        public void add(byte[] data, int offset, int length) {
+            long h = length;
+            for (int i = offset, end = offset + length; i < end; i++) {
+                h = (h ^ (data[i] & 0xFF)) * 0x100000001B3L;
+            }
+
+            add(h, 1, offset, length);
+        }
+
+        public void addAll(MatchCounter counter) {
+            for (int i = 0; i < counter.size; i++) {
+                add(counter.hashes[i], counter.counts[i], counter.offsets[i], counter.lengths[i]);
+            }
+        }
+
+        private void add(long hash, int count, int offset, int length) {
+            int mask = table.length - 1;
+
+            int slot = (int) (hash ^ (hash >>> 32)) * 0x9E3779B1 & mask;
+
+            while (true) {
+                int idx = table[slot] - 1;
+
+                if (idx < 0) break;
+
+                if (hashes[idx] == hash) {
+                    counts[idx] += count;
+                    return;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            if (size == hashes.length) {
+                hashes = Arrays.copyOf(hashes, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+
+            hashes[size] = hash;
+            counts[size] = count;
+            offsets[size] = offset;
+            lengths[size] = length;
+
+            table[slot] = ++size;
+
+            if (size * 2 > table.length) {
+                rehash();
+            }
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            int mask = table.length - 1;
+
+            for (int i = 0; i < size; i++) {
+                long hash = hashes[i];
+                int slot = (int) (hash ^ (hash >>> 32)) * 0x9E3779B1 & mask;
+
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+
+                table[slot] = i + 1;
+            }
+        }
+    }
+
 }
@@ -0,0 +1,137 @@
+package com.ess.jloader.packer.dictionary;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Splits classes into clusters, a separate dictionary is trained on classes of each cluster. Initially packages are
+ * sorted by name and the sequence is cut into parts of about the same size, so neighbouring packages (like
+ * org.codehaus.groovy.runtime and its subpackages) share a dictionary. A cluster contains at least
+ * {@link #MIN_CLUSTER_SIZE} bytes of classes, a dictionary doesn't pay off for less.
+ * <p/>
+ * The packer compresses every class with the dictionaries of its cluster and of the neighbouring ones (see
+ * {@link #getCandidates(int)}) and keeps the smallest result. Then the dictionaries are trained again on classes they
+ * compress best, like an iteration of k-means. The final pass compresses a class with the dictionary chosen for it.
+ *
+ * @author Sergey Evdokimov
+ */
+public class DictionaryClusters {
+
+    public static final long MIN_CLUSTER_SIZE = 2 * 1024 * 1024;
+
+    private final Map<String, Integer> packageClusters = new HashMap<String, Integer>();
+
+    private final DictionaryCalculator[] calculators;
+
+    private final long trainingSize;
+
+    /**
+     * @param classSizes sizes of classes by JVM class names.
+     * @param maxCount maximum number of clusters, there are no more clusters than packages.
+     * @param trainingSize the training size of all dictionaries, see {@link DictionaryCalculator}.
+     */
+    public DictionaryClusters(Map<String, Integer> classSizes, int maxCount, long trainingSize) {
+        if (maxCount < 1) throw new IllegalArgumentException("maxCount: " + maxCount);
+
+        TreeMap<String, Long> packageSizes = new TreeMap<String, Long>();
+        long totalSize = 0;
+
+        for (Map.Entry<String, Integer> entry : classSizes.entrySet()) {
+            String packageName = getPackageName(entry.getKey());
+
+            Long size = packageSizes.get(packageName);
+            packageSizes.put(packageName, (size == null ? 0 : size) + entry.getValue());
+
+            totalSize += entry.getValue();
+        }
+
+        maxCount = (int) Math.max(Math.min(maxCount, totalSize / MIN_CLUSTER_SIZE), 1);
+
+        int cluster = -1;
+        int lastPart = -1;
+
+        long position = 0;
+
+        for (Map.Entry<String, Long> entry : packageSizes.entrySet()) {
+            // the part containing the middle of the package
+            int part = (int) Math.min(maxCount - 1, (position + entry.getValue() / 2) * maxCount / Math.max(totalSize, 1));
+
+            if (part != lastPart) {
+                lastPart = part;
+                cluster++;
+            }
+
+            packageClusters.put(entry.getKey(), cluster);
+
+            position += entry.getValue();
+        }
+
+        this.trainingSize = trainingSize;
+
+        calculators = new DictionaryCalculator[Math.max(cluster + 1, 1)];
+        resetTrainingData();
+    }
+
+    private void resetTrainingData() {
+        for (int i = 0; i < calculators.length; i++) {
+            calculators[i] = new DictionaryCalculator(Math.max(trainingSize / calculators.length, 1));
+        }
+    }
+
+    private static String getPackageName(String className) {
+        int idx = className.lastIndexOf('/');
+        return idx < 0 ? "" : className.substring(0, idx);
+    }
+
+    public int getCount() {
+        return calculators.length;
+    }
+
+    public int getCluster(String className) {
+        Integer res = packageClusters.get(getPackageName(className));
+        return res == null ? 0 : res;
+    }
+
+    /**
+     * @return the cluster and its neighbours. Neighbouring clusters hold packages next to each other by name, a class
+     * rarely compresses better with a dictionary of a distant cluster, and trying every dictionary would multiply
+     * the packing time by the number of clusters.
+     */
+    public int[] getCandidates(int cluster) {
+        if (calculators.length == 1) return new int[]{0};
+
+        if (cluster == 0) return new int[]{0, 1};
+
+        if (cluster == calculators.length - 1) return new int[]{cluster, cluster - 1};
+
+        return new int[]{cluster, cluster - 1, cluster + 1};
+    }
+
+    /**
+     * Adds compressed data of a class to the training data of its cluster, see {@link DictionaryCalculator#addData}.
+     */
+    public void addData(String className, byte[] data, int off, int len) {
+        addData(getCluster(className), data, off, len);
+    }
+
+    public void addData(int cluster, byte[] data, int off, int len) {
+        calculators[cluster].addData(data, off, len);
+    }
+
+    /**
+     * Trains the dictionaries and drops the training data, so the dictionaries may be trained again on other
+     * clusters of the same number.
+     */
+    public byte[][] getDictionaries(ExecutorService executor) {
+        byte[][] res = new byte[calculators.length][];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = calculators[i].getDictionary(executor);
+        }
+
+        resetTrainingData();
+
+        return res;
+    }
+}
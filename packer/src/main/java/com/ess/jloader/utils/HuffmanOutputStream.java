@@ -6,17 +6,21 @@ import java.io.IOException;
 import java.util.*;
 
 /**
+ * Writes canonical Huffman codes (see {@link HuffmanUtils#buildCanonicalCodes(int[])}).
+ *
  * @author Sergey Evdokimov
  */
-@SuppressWarnings({"unchecked"})
 public class HuffmanOutputStream<T> {
 
-    private final Map<T, boolean[]> pathMap;
+    /**
+     * Symbol -> <code>code << 5 | codeLength</code>
+     */
+    private final Map<T, Integer> codeMap;
 
     private BitOutputStream out;
 
-    public HuffmanOutputStream(Map<T, boolean[]> pathMap) {
-        this.pathMap = pathMap;
+    public HuffmanOutputStream(Map<T, Integer> codeMap) {
+        this.codeMap = codeMap;
     }
 
     public void reset(BitOutputStream out) {
@@ -24,51 +28,36 @@ public class HuffmanOutputStream<T> {
     }
 
     public void write(T t) throws IOException {
-        boolean[] booleans = pathMap.get(t);
-        for (boolean aBoolean : booleans) {
-            out.writeBit(aBoolean);
-        }
-    }
+        int code = codeMap.get(t);
 
-    private static <T> void buildPathMap(Map<T, boolean[]> res, List<Boolean> path, HuffmanUtils.TreeElement element) {
-        if (element instanceof HuffmanUtils.Leaf) {
-            boolean[] pathArray = new boolean[path.size()];
-            for (int i = 0; i < pathArray.length; i++) {
-                pathArray[i] = path.get(i);
-            }
+        int len = code & 31;
+        code >>>= 5;
 
-            res.put((T)((HuffmanUtils.Leaf) element).element, pathArray);
-        }
-        else if (element instanceof HuffmanUtils.Node) {
-            HuffmanUtils.Node node = (HuffmanUtils.Node) element;
-
-            path.add(true);
-            buildPathMap(res, path, node.trueNode);
-            path.set(path.size() - 1, false);
-            buildPathMap(res, path, node.falseNode);
-            path.remove(path.size() - 1);
+        if (len > 16) {
+            out.writeBits(code, 16);
+            out.writeBits(code >>> 16, len - 16);
         }
         else {
-            assert false;
+            out.writeBits(code, len);
         }
     }
 
-    public static <T> Map<T, boolean[]> buildPathMap(Map<T, Integer> map) {
-        if (map.isEmpty()) {
-            return Collections.emptyMap();
-        }
-
-        PriorityQueue<HuffmanUtils.TreeElement> queue = new PriorityQueue<HuffmanUtils.TreeElement>();
-
-        for (Map.Entry<T, Integer> entry : map.entrySet()) {
-            queue.add(new HuffmanUtils.Leaf(entry.getValue(), entry.getKey()));
-        }
+    /**
+     * @param symbols symbols in the order of <code>lengths</code>
+     * @param lengths code lengths calculated by {@link HuffmanUtils#buildCodeLengths(int[], int)}
+     */
+    public static <T> Map<T, Integer> buildCodeMap(Collection<T> symbols, int[] lengths) {
+        assert symbols.size() == lengths.length;
 
-        HuffmanUtils.TreeElement root = HuffmanUtils.buildHuffmanTree(queue);
+        int[] codes = HuffmanUtils.buildCanonicalCodes(lengths);
 
-        Map<T, boolean[]> res = Maps.newHashMapWithExpectedSize(map.size());
+        Map<T, Integer> res = Maps.newHashMapWithExpectedSize(lengths.length);
 
-        buildPathMap(res, new ArrayList<Boolean>(), root);
+        int i = 0;
+        for (T t : symbols) {
+            res.put(t, codes[i] << 5 | lengths[i]);
+            i++;
+        }
 
         return res;
     }
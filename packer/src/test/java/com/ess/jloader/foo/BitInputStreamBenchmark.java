@@ -0,0 +1,160 @@
+package com.ess.jloader.foo;
+
+import com.ess.jloader.utils.BitInputStream;
+import com.ess.jloader.utils.BitOutputStream;
+import com.ess.jloader.utils.HuffmanTable;
+import com.ess.jloader.utils.OpenByteOutputStream;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares BitInputStream with the previous implementation ({@link LegacyBitInputStream}) on a mix of reads typical
+ * for Unpacker: short bit fields, constant pool indexes, small numbers and Huffman codes of packed strings.
+ *
+ * @author Sergey Evdokimov
+ */
+public class BitInputStreamBenchmark {
+
+    private static final int OP_COUNT = 2000000;
+
+    private static final int ITERATIONS = 20;
+
+    private static final int OP_BITS = 0;
+    private static final int OP_LIMITED_SHORT = 1;
+    private static final int OP_SMALL = 2;
+    private static final int OP_BIT = 3;
+    private static final int OP_HUFFMAN = 4;
+
+    private final int[] ops = new int[OP_COUNT];
+    private final int[] args = new int[OP_COUNT];
+
+    private byte[] data;
+
+    private void generate() throws IOException {
+        Random rnd = new Random(1);
+
+        // Unpacker reads records of the same shape, so the kinds of reads repeat with a short period
+        int[] pattern = new int[12];
+        int[] patternArgs = new int[pattern.length];
+        for (int i = 0; i < pattern.length; i++) {
+            pattern[i] = rnd.nextInt(5);
+
+            if (pattern[i] == OP_BITS) {
+                patternArgs[i] = 1 + rnd.nextInt(16);
+            }
+            else if (pattern[i] == OP_HUFFMAN) {
+                patternArgs[i] = 4 + rnd.nextInt(HuffmanTable.ROOT_BITS - 3);
+            }
+            else {
+                patternArgs[i] = 1 + rnd.nextInt(4000);
+            }
+        }
+
+        OpenByteOutputStream buff = new OpenByteOutputStream();
+        BitOutputStream out = new BitOutputStream(buff);
+
+        for (int i = 0; i < OP_COUNT; i++) {
+            int op = pattern[i % pattern.length];
+            ops[i] = op;
+            args[i] = patternArgs[i % pattern.length];
+
+            switch (op) {
+                case OP_BITS:
+                    out.writeBits(rnd.nextInt(), args[i]);
+                    break;
+
+                case OP_LIMITED_SHORT:
+                    out.writeLimitedShort(rnd.nextInt(args[i] + 1), args[i]);
+                    break;
+
+                case OP_SMALL:
+                    out.writeSmall_0_3_8_16(rnd.nextInt(10) < 8 ? rnd.nextInt(8) : rnd.nextInt(1000));
+                    break;
+
+                case OP_BIT:
+                    out.writeBit(rnd.nextBoolean());
+                    break;
+
+                case OP_HUFFMAN:
+                    out.writeBits(rnd.nextInt(), args[i]);
+                    break;
+            }
+        }
+
+        out.finish();
+
+        data = new byte[buff.size()];
+        System.arraycopy(buff.getBuffer(), 0, data, 0, data.length);
+    }
+
+    private long readCurrent() throws IOException {
+        BitInputStream in = new BitInputStream(data, 0, data.length);
+
+        long res = 0;
+
+        for (int i = 0; i < OP_COUNT; i++) {
+            switch (ops[i]) {
+                case OP_BITS: res += in.readBits(args[i]); break;
+                case OP_LIMITED_SHORT: res += in.readLimitedShort(args[i]); break;
+                case OP_SMALL: res += in.readSmall_0_3_8_16(); break;
+                case OP_BIT: res += in.readBit(); break;
+                case OP_HUFFMAN:
+                    res += in.peekBits(HuffmanTable.ROOT_BITS) & ((1 << args[i]) - 1);
+                    in.skipBits(args[i]);
+                    break;
+            }
+        }
+
+        return res;
+    }
+
+    private long readLegacy() throws IOException {
+        LegacyBitInputStream in = new LegacyBitInputStream(data, 0, data.length);
+
+        long res = 0;
+
+        for (int i = 0; i < OP_COUNT; i++) {
+            switch (ops[i]) {
+                case OP_BITS: res += in.readBits(args[i]); break;
+                case OP_LIMITED_SHORT: res += in.readLimitedShort(args[i]); break;
+                case OP_SMALL: res += in.readSmall_0_3_8_16(); break;
+                case OP_BIT: res += in.readBit(); break;
+                case OP_HUFFMAN:
+                    res += in.peekBits(HuffmanTable.ROOT_BITS) & ((1 << args[i]) - 1);
+                    in.skipBits(args[i]);
+                    break;
+            }
+        }
+
+        return res;
+    }
+
+    @Test
+    public void testThroughput() throws IOException {
+        generate();
+
+        long expected = readLegacy();
+        assert readCurrent() == expected;
+
+        long legacyTime = Long.MAX_VALUE;
+        long currentTime = Long.MAX_VALUE;
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            long time = System.nanoTime();
+            long res = readLegacy();
+            legacyTime = Math.min(legacyTime, System.nanoTime() - time);
+            assert res == expected;
+
+            time = System.nanoTime();
+            res = readCurrent();
+            currentTime = Math.min(currentTime, System.nanoTime() - time);
+            assert res == expected;
+        }
+
+        System.out.printf("Data: %d bytes, %d reads\n", data.length, OP_COUNT);
+        System.out.printf("Legacy:  %.2f ns/read, %.1f MB/s\n", (double) legacyTime / OP_COUNT, data.length * 1000.0 / legacyTime);
+        System.out.printf("Current: %.2f ns/read, %.1f MB/s\n", (double) currentTime / OP_COUNT, data.length * 1000.0 / currentTime);
+    }
+}
@@ -0,0 +1,144 @@
+package com.ess.jloader.foo;
+
+import com.ess.jloader.loader.PackClassLoader;
+import com.ess.jloader.packer.ClassDescriptor;
+import com.ess.jloader.packer.Config;
+import com.ess.jloader.packer.JarPacker;
+import com.ess.jloader.packer.codec.Encoder;
+import com.ess.jloader.packer.dictionary.DictionaryCalculator;
+import com.ess.jloader.packer.tests.TestUtils;
+import com.ess.jloader.utils.Codec;
+import com.ess.jloader.utils.Decoder;
+import com.ess.jloader.utils.FastInput;
+import com.ess.jloader.utils.OpenByteOutputStream;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares codecs on the test jars: the size of the pack, the throughput of the decoder alone (compressed parts of
+ * classes, one dictionary) and the throughput of unpacking all classes by the loader.
+ *
+ * @author Sergey Evdokimov
+ */
+public class CodecBenchmark {
+
+    private static final String[] MARKERS = {
+            "com/google/common/base/Objects.class",
+            "freemarker/core/Assignment.class",
+            "META-INF/maven/org.jruby/jrubyparser/pom.xml",
+            "org/codehaus/groovy/transform/stc/Receiver.class",
+    };
+
+    private static final int ROUNDS = 30;
+
+    @Test
+    public void compareCodecs() throws IOException {
+        // warm up the decoders and the loader, the result is not printed
+        for (Codec codec : Codec.values()) {
+            measure(TestUtils.getJarByMarker(MARKERS[0]), codec);
+        }
+
+        System.out.printf("%-28s %-8s %10s %14s %14s%n", "jar", "codec", "pack size", "decode MB/s", "unpack MB/s");
+
+        for (String marker : MARKERS) {
+            File jar = TestUtils.getJarByMarker(marker);
+
+            for (Codec codec : Codec.values()) {
+                System.out.printf("%-28s %-8s %s%n", jar.getName(), codec, measure(jar, codec));
+            }
+        }
+    }
+
+    private static String measure(File jar, Codec codec) throws IOException {
+        Config cfg = new Config();
+        cfg.setCodec(codec);
+
+        File packed = TestUtils.createTmpPackFile("codecBenchmark-" + codec);
+
+        JarPacker packer = new JarPacker(cfg);
+        packer.addJar(jar);
+        packer.writeResult(packed);
+
+        return String.format("%10d %14.1f %14.1f", packed.length(),
+                measureDecoding(packer.getClassMap().values(), codec), measureUnpacking(packer, packed));
+    }
+
+    /**
+     * @return megabytes of decoded data per second.
+     */
+    private static double measureDecoding(Iterable<ClassDescriptor> classes, Codec codec) throws IOException {
+        List<OpenByteOutputStream> data = new ArrayList<OpenByteOutputStream>();
+        for (ClassDescriptor classDescriptor : classes) {
+            data.add(classDescriptor.forCompressionDataArray);
+        }
+
+        byte[] dictionary = DictionaryCalculator.buildDictionary(data);
+
+        Encoder encoder = Encoder.forCodec(codec);
+
+        List<byte[]> compressed = new ArrayList<byte[]>();
+        long decodedSize = 0;
+
+        for (OpenByteOutputStream item : data) {
+            OpenByteOutputStream buff = new OpenByteOutputStream();
+            encoder.encode(buff, item.getBuffer(), item.size(), dictionary);
+
+            compressed.add(buff.toByteArray());
+            decodedSize += item.size();
+        }
+
+        Decoder decoder = codec.createDecoder(dictionary, 0, dictionary.length);
+
+        FastInput out = new FastInput(64 * 1024);
+
+        System.gc();
+
+        long bestTime = Long.MAX_VALUE;
+
+        for (int i = 0; i < ROUNDS; i++) {
+            long time = System.nanoTime();
+
+            for (byte[] item : compressed) {
+                decoder.decode(item, 0, item.length, out);
+            }
+
+            bestTime = Math.min(bestTime, System.nanoTime() - time);
+        }
+
+        return decodedSize * 1000.0 / bestTime;
+    }
+
+    /**
+     * @return megabytes of unpacked classes per second.
+     */
+    private static double measureUnpacking(JarPacker packer, File packed) throws IOException {
+        System.gc();
+
+        long bestTime = Long.MAX_VALUE;
+        long classesSize = 0;
+
+        for (int i = 0; i < ROUNDS; i++) {
+            PackClassLoader loader = new PackClassLoader(null, packed);
+
+            try {
+                classesSize = 0;
+
+                long time = System.nanoTime();
+
+                for (String className : packer.getClassMap().keySet()) {
+                    classesSize += loader.unpackClass(className).length;
+                }
+
+                bestTime = Math.min(bestTime, System.nanoTime() - time);
+            } finally {
+                loader.close();
+            }
+        }
+
+        return classesSize * 1000.0 / bestTime;
+    }
+}
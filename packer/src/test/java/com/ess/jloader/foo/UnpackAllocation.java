@@ -0,0 +1,81 @@
+package com.ess.jloader.foo;
+
+import com.ess.jloader.loader.PackClassLoader;
+import com.ess.jloader.packer.Config;
+import com.ess.jloader.packer.JarPacker;
+import com.ess.jloader.packer.tests.TestUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Measures bytes allocated by the unpacker per class. The unpacked class returned by
+ * {@link PackClassLoader#unpackClass(String)} is the only array expected to be allocated, the rest is garbage.
+ *
+ * @author Sergey Evdokimov
+ */
+public class UnpackAllocation {
+
+    private static final int ROUNDS = 10;
+
+    @Test
+    public void testUnpackAllocation() throws IOException {
+        File guava = TestUtils.getJarByMarker("com/google/common/base/Objects.class");
+
+        File packed = TestUtils.createTmpPackFile("packedGuava-allocation");
+
+        JarPacker packer = new JarPacker(new Config());
+        packer.addJar(guava);
+        packer.writeResult(packed);
+
+        List<String> classes = new ArrayList<String>();
+
+        JarFile jarFile = new JarFile(guava);
+        try {
+            for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                String name = entries.nextElement().getName();
+                if (name.endsWith(".class")) {
+                    classes.add(name.substring(0, name.length() - ".class".length()));
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        PackClassLoader loader = new PackClassLoader(null, packed);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                long classBytes = 0;
+
+                long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+                long time = System.nanoTime();
+
+                for (String className : classes) {
+                    classBytes += loader.unpackClass(className).length;
+                }
+
+                time = System.nanoTime() - time;
+                long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+                // an array has a header of 16 bytes and is aligned to 8 bytes
+                long resultBytes = classBytes + classes.size() * (16 + 4);
+
+                System.out.printf("Round %d: %d classes, %d ms, allocated %d bytes/class, garbage %d bytes/class%n",
+                        round, classes.size(), time / 1000000, allocated / classes.size(),
+                        (allocated - resultBytes) / classes.size());
+            }
+        } finally {
+            loader.close();
+        }
+    }
+}
@@ -1,8 +1,13 @@
 package com.ess.jloader.packer.tests;
 
+import com.ess.jloader.loader.LiteralPool;
 import com.ess.jloader.packer.PackUtils;
 import com.ess.jloader.utils.BitOutputStream;
 import com.ess.jloader.utils.BitInputStream;
+import com.ess.jloader.utils.FastBuffer;
+import com.ess.jloader.utils.HuffmanOutputStream;
+import com.ess.jloader.utils.HuffmanTable;
+import com.ess.jloader.utils.HuffmanUtils;
 import com.ess.jloader.utils.OpenByteOutputStream;
 import com.ess.jloader.utils.Utils;
 import com.google.common.base.Throwables;
@@ -11,7 +16,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.*;
-import java.util.Arrays;
+import java.util.*;
+import java.util.zip.ZipException;
 
 /**
  * @author Sergey Evdokimov
@@ -185,6 +191,198 @@ public class BitStreamTest {
         assert in.read() == -1;
     }
 
+    @Test
+    public void testMixedReads() throws IOException {
+        Random rnd = new Random(3);
+
+        int count = 5000;
+        int[] kinds = new int[count];
+        int[] values = new int[count];
+        int[] bitCounts = new int[count];
+
+        TestBitOutputStream out = new TestBitOutputStream();
+
+        for (int i = 0; i < count; i++) {
+            kinds[i] = rnd.nextInt(4);
+
+            switch (kinds[i]) {
+                case 0:
+                    bitCounts[i] = 1 + rnd.nextInt(16);
+                    values[i] = rnd.nextInt(1 << bitCounts[i]);
+                    out.writeBits(values[i], bitCounts[i]);
+                    break;
+                case 1:
+                    values[i] = rnd.nextInt(0x10000);
+                    out.writeShort(values[i]);
+                    break;
+                case 2:
+                    values[i] = rnd.nextInt();
+                    out.writeInt(values[i]);
+                    break;
+                case 3:
+                    values[i] = rnd.nextInt(0x100);
+                    out.writeByte(values[i]);
+                    break;
+            }
+        }
+
+        BitInputStream in = out.toInputStream();
+
+        for (int i = 0; i < count; i++) {
+            switch (kinds[i]) {
+                case 0:
+                    if (i % 2 == 0) {
+                        assert in.peekBits(bitCounts[i]) == values[i] : i;
+                        in.skipBits(bitCounts[i]);
+                    }
+                    else {
+                        assert in.readBits(bitCounts[i]) == values[i] : i;
+                    }
+                    break;
+                case 1:
+                    assert in.readUnsignedShort() == values[i] : i;
+                    break;
+                case 2:
+                    assert in.readInt() == values[i] : i;
+                    break;
+                case 3:
+                    assert in.readUnsignedByte() == values[i] : i;
+                    break;
+            }
+        }
+
+        assert in.peekBits(7) == 0;
+    }
+
+    @Test
+    public void testHuffman() throws IOException {
+        // Fibonacci weights produce the deepest tree, the code lengths have to be limited
+        Map<Integer, Integer> weights = new LinkedHashMap<Integer, Integer>();
+        int a = 1, b = 1;
+        for (int i = 0; i < 40; i++) {
+            weights.put(i, Math.min(a, 0xFFFF));
+            int c = a + b; a = b; b = c;
+        }
+        for (int i = 40; i < 3000; i++) {
+            weights.put(i, 1 + (i * 7919) % 50);
+        }
+
+        int[] weightArray = new int[weights.size()];
+        for (int i = 0; i < weightArray.length; i++) {
+            weightArray[i] = weights.get(i);
+        }
+
+        int[] lengths = HuffmanUtils.buildCodeLengths(weightArray, HuffmanUtils.MAX_CODE_LENGTH);
+
+        Map<Integer, Integer> codeMap = HuffmanOutputStream.buildCodeMap(weights.keySet(), lengths);
+
+        int maxLength = 0;
+        for (int length : lengths) {
+            maxLength = Math.max(maxLength, length);
+        }
+        assert maxLength > HuffmanTable.ROOT_BITS && maxLength <= HuffmanUtils.MAX_CODE_LENGTH;
+
+        Random rnd = new Random(5);
+        int[] symbols = new int[10000];
+        for (int i = 0; i < symbols.length; i++) {
+            symbols[i] = i < weightArray.length ? i : rnd.nextInt(weightArray.length);
+        }
+
+        TestBitOutputStream out = new TestBitOutputStream();
+        HuffmanOutputStream<Integer> huffmanOut = new HuffmanOutputStream<Integer>(codeMap);
+        huffmanOut.reset(out);
+
+        for (int i = 0; i < symbols.length; i++) {
+            huffmanOut.write(symbols[i]);
+            if (i % 100 == 0) {
+                out.writeShort(i);
+            }
+        }
+
+        HuffmanTable table = new HuffmanTable(lengths);
+
+        BitInputStream in = out.toInputStream();
+        for (int i = 0; i < symbols.length; i++) {
+            assert table.decode(in) == symbols[i] : i;
+            if (i % 100 == 0) {
+                assert in.readUnsignedShort() == i;
+            }
+        }
+    }
+
+    @Test
+    public void testHuffmanSingleSymbol() throws IOException {
+        Map<String, Integer> codeMap = HuffmanOutputStream.buildCodeMap(Collections.singleton("a"), new int[]{1});
+
+        TestBitOutputStream out = new TestBitOutputStream();
+        HuffmanOutputStream<String> huffmanOut = new HuffmanOutputStream<String>(codeMap);
+        huffmanOut.reset(out);
+
+        huffmanOut.write("a");
+        huffmanOut.write("a");
+        out.writeBits(5, 3);
+
+        HuffmanTable table = new HuffmanTable(new int[]{1});
+
+        BitInputStream in = out.toInputStream();
+        assert table.decode(in) == 0;
+        assert table.decode(in) == 0;
+        assert in.readBits(3) == 5;
+    }
+
+    @Test
+    public void testHuffmanInvalidCodes() throws IOException {
+        try {
+            new HuffmanTable(new int[]{1, 1, 2});
+            assert false;
+        } catch (ZipException ignored) {
+
+        }
+
+        new HuffmanTable(new int[]{1, 2, 2}); // complete
+        new HuffmanTable(new int[]{1, 0, 2}); // incomplete
+
+        HuffmanTable table = new HuffmanTable(new int[]{1});
+
+        TestBitOutputStream out = new TestBitOutputStream();
+        out.writeBits(0, 1);
+        out.writeBits(1, 1);
+
+        BitInputStream in = out.toInputStream();
+        assert table.decode(in) == 0;
+
+        try {
+            table.decode(in);
+            assert false;
+        } catch (ZipException ignored) {
+
+        }
+    }
+
+    @Test
+    public void testLiteralPoolInvalidCode() throws IOException {
+        // One string "a" with the code '0', the code '1' is not assigned
+        byte[] arena = {0, 1, 'a', 1};
+
+        LiteralPool pool = new LiteralPool(arena, 0, 3, 3, 1);
+
+        TestBitOutputStream out = new TestBitOutputStream();
+        out.writeBits(0, 1);
+        out.writeBits(1, 1);
+
+        BitInputStream in = out.toInputStream();
+        FastBuffer buffer = new FastBuffer(16);
+
+        pool.readString(in, buffer);
+
+        try {
+            pool.readString(in, buffer);
+            assert false;
+        } catch (IOException ignored) {
+
+        }
+    }
+
     private static class TestBitOutputStream extends BitOutputStream {
 
         public TestBitOutputStream() {
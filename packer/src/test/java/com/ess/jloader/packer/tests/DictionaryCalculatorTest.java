@@ -0,0 +1,60 @@
+package com.ess.jloader.packer.tests;
+
+import com.ess.jloader.packer.dictionary.DictionaryCalculator;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * @author Sergey Evdokimov
+ */
+public class DictionaryCalculatorTest {
+
+    private static final byte[] SHARED = "Ljava/lang/String;Ljava/util/List;".getBytes();
+
+    private static DictionaryCalculator createCalculator(int classCount, int classSize) {
+        Random rnd = new Random(0);
+
+        DictionaryCalculator res = new DictionaryCalculator();
+
+        byte[] data = new byte[classSize];
+        for (int i = 0; i < classCount; i++) {
+            rnd.nextBytes(data);
+            System.arraycopy(SHARED, 0, data, rnd.nextInt(classSize - SHARED.length), SHARED.length);
+
+            res.addData(data, 0, data.length);
+        }
+
+        return res;
+    }
+
+    private static int indexOf(byte[] data, byte[] str) {
+        for (int i = 0; i + str.length <= data.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(data, i, i + str.length), str)) return i;
+        }
+
+        return -1;
+    }
+
+    @Test
+    public void testSharedString() {
+        byte[] dictionary = createCalculator(100, 1000).getDictionary();
+
+        assert indexOf(dictionary, SHARED) >= 0;
+    }
+
+    @Test
+    public void testThreadCountIndependence() {
+        // several shards
+        DictionaryCalculator calculator = createCalculator(1000, 3000);
+
+        ForkJoinPool executor = new ForkJoinPool(4);
+        try {
+            assert Arrays.equals(calculator.getDictionary(), calculator.getDictionary(executor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.ess.jloader.packer.tests;
+
+import com.ess.jloader.packer.dictionary.DictionaryClusters;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Sergey Evdokimov
+ */
+public class DictionaryClustersTest {
+
+    private static final int CLASS_SIZE = (int) (DictionaryClusters.MIN_CLUSTER_SIZE / 2);
+
+    private static Map<String, Integer> createClassSizes(String ... classNames) {
+        Map<String, Integer> res = new HashMap<String, Integer>();
+        for (String className : classNames) {
+            res.put(className, CLASS_SIZE);
+        }
+        return res;
+    }
+
+    @Test
+    public void testNeighbourPackages() {
+        Map<String, Integer> classSizes = createClassSizes("a/A1", "a/A2", "a/b/B", "a/b/c/C", "z/Z1", "z/Z2", "z/y/Y", "z/y/Y2");
+
+        DictionaryClusters clusters = new DictionaryClusters(classSizes, 2, 1024 * 1024);
+
+        assert clusters.getCount() == 2;
+
+        assert clusters.getCluster("a/A1") == clusters.getCluster("a/b/c/C");
+        assert clusters.getCluster("z/Z1") == clusters.getCluster("z/y/Y");
+        assert clusters.getCluster("a/A1") != clusters.getCluster("z/Z1");
+
+        // classes of unknown packages are trained with the first dictionary
+        assert clusters.getCluster("q/Q") == 0;
+    }
+
+    @Test
+    public void testMinClusterSize() {
+        Map<String, Integer> classSizes = createClassSizes("a/A", "b/B", "c/C", "d/D");
+
+        assert new DictionaryClusters(classSizes, 8, 1024 * 1024).getCount() == 2;
+        assert new DictionaryClusters(createClassSizes("a/A"), 8, 1024 * 1024).getCount() == 1;
+    }
+
+    @Test
+    public void testCandidates() {
+        Map<String, Integer> classSizes = createClassSizes("a/A1", "a/A2", "b/B1", "b/B2", "c/C1", "c/C2");
+
+        DictionaryClusters clusters = new DictionaryClusters(classSizes, 3, 1024 * 1024);
+        assert clusters.getCount() == 3;
+
+        // the own cluster is tried first
+        assert Arrays.equals(clusters.getCandidates(0), new int[]{0, 1});
+        assert Arrays.equals(clusters.getCandidates(1), new int[]{1, 0, 2});
+        assert Arrays.equals(clusters.getCandidates(2), new int[]{2, 1});
+
+        assert Arrays.equals(new DictionaryClusters(createClassSizes("a/A"), 8, 1024 * 1024).getCandidates(0), new int[]{0});
+    }
+}
@@ -0,0 +1,128 @@
+package com.ess.jloader.packer.tests;
+
+import com.ess.jloader.packer.codec.LzEncoder;
+import com.ess.jloader.utils.FastInput;
+import com.ess.jloader.utils.LzDecoder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipException;
+
+/**
+ * @author Sergey Evdokimov
+ */
+public class LzCodecTest {
+
+    private static byte[] encode(byte[] data, byte[] dictionary) throws IOException {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        new LzEncoder().encode(res, data, data.length, dictionary);
+        return res.toByteArray();
+    }
+
+    /**
+     * @return data with short and long repeats, some of them from the dictionary.
+     */
+    private static byte[] generate(Random rnd, byte[] dictionary, int size) {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+
+        while (res.size() < size) {
+            switch (rnd.nextInt(3)) {
+                case 0:
+                    int len = 1 + rnd.nextInt(600);
+                    int from = rnd.nextInt(dictionary.length - len);
+                    res.write(dictionary, from, len);
+                    break;
+
+                case 1:
+                    int b = rnd.nextInt(256);
+                    for (int i = rnd.nextInt(300); i >= 0; i--) {
+                        res.write(b);
+                    }
+                    break;
+
+                default:
+                    for (int i = rnd.nextInt(40); i >= 0; i--) {
+                        res.write(rnd.nextInt(256));
+                    }
+            }
+        }
+
+        return res.toByteArray();
+    }
+
+    private static void check(byte[] data, byte[] dictionary) throws IOException {
+        byte[] compressed = encode(data, dictionary);
+
+        byte[] paddedDictionary = new byte[dictionary.length + 10];
+        System.arraycopy(dictionary, 0, paddedDictionary, 5, dictionary.length);
+
+        LzDecoder decoder = new LzDecoder(paddedDictionary, 5, dictionary.length);
+
+        FastInput out = new FastInput(16);
+        decoder.decode(compressed, 0, compressed.length, out);
+
+        assert out.pos == 0;
+        assert out.limit == data.length;
+        assert Arrays.equals(Arrays.copyOf(out.array, out.limit), data);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Random rnd = new Random(7);
+
+        byte[] dictionary = new byte[40000];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = (byte) ('a' + rnd.nextInt(20));
+        }
+
+        for (int size : new int[]{0, 1, 3, 4, 10, 300, 5000, 100000}) {
+            byte[] data = generate(rnd, dictionary, size);
+
+            check(data, dictionary);
+            check(data, new byte[0]);
+        }
+    }
+
+    @Test
+    public void testMatchCrossingDictionaryEnd() throws IOException {
+        byte[] dictionary = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes();
+
+        // "uvwxyz" is taken from the dictionary end, the match continues with the beginning of the output
+        byte[] data = "uvwxyzuvwxyzuvwxyzuvwxyz-0123456789".getBytes();
+
+        check(data, dictionary);
+
+        assert encode(data, dictionary).length < data.length;
+    }
+
+    @Test
+    public void testCorruptedData() throws IOException {
+        LzDecoder decoder = new LzDecoder(new byte[10], 0, 10);
+
+        try {
+            decoder.decode(new byte[]{0x10, 'a', 0, 0}, 0, 4, new FastInput(16)); // zero distance
+            assert false;
+        } catch (ZipException ignored) {
+
+        }
+
+        try {
+            decoder.decode(new byte[]{0x10, 'a', 100, 0}, 0, 4, new FastInput(16)); // before the dictionary
+            assert false;
+        } catch (ZipException ignored) {
+
+        }
+
+        byte[] data = encode(new byte[1000], new byte[0]);
+
+        try {
+            decoder.decode(data, 0, data.length - 1, new FastInput(16));
+            assert false;
+        } catch (IOException ignored) {
+
+        }
+    }
+}
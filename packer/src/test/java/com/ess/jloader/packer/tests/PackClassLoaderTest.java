@@ -0,0 +1,771 @@
+package com.ess.jloader.packer.tests;
+
+import com.ess.jloader.loader.ClassMetadataIndex;
+import com.ess.jloader.loader.ClassPrefetcher;
+import com.ess.jloader.loader.ClassResourceCache;
+import com.ess.jloader.loader.LoadOrderProfile;
+import com.ess.jloader.loader.LoadOrderRecorder;
+import com.ess.jloader.loader.PackClassLoader;
+import com.ess.jloader.loader.PackageIndex;
+import com.ess.jloader.loader.SolidBlocks;
+import com.ess.jloader.loader.UnpackedClassCache;
+import com.ess.jloader.packer.Config;
+import com.ess.jloader.packer.JarPacker;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Bytes;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * @author Sergey Evdokimov
+ */
+public class PackClassLoaderTest {
+
+    private static File packedGuava;
+
+    private static List<String> guavaClasses;
+
+    @BeforeClass
+    public static void packGuava() throws IOException {
+        File guava = TestUtils.getJarByMarker("com/google/common/base/Objects.class");
+
+        packedGuava = TestUtils.createTmpPackFile("packedGuava-loaderTest");
+
+        JarPacker packer = new JarPacker(new Config());
+        packer.addJar(guava);
+        packer.writeResult(packedGuava);
+
+        guavaClasses = new ArrayList<String>();
+
+        JarFile jarFile = new JarFile(guava);
+        try {
+            for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                String name = entries.nextElement().getName();
+                if (name.endsWith(".class")) {
+                    guavaClasses.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    @Test
+    public void testParallelLoading() throws Exception {
+        final PackClassLoader loader = new PackClassLoader(null, packedGuava);
+
+        try {
+            int threadCount = 8;
+
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+            try {
+                final CyclicBarrier barrier = new CyclicBarrier(threadCount);
+
+                List<Future<Map<String, Class>>> futures = new ArrayList<Future<Map<String, Class>>>();
+
+                for (int i = 0; i < threadCount; i++) {
+                    final List<String> classes = new ArrayList<String>(guavaClasses);
+                    Collections.shuffle(classes, new Random(i));
+
+                    futures.add(executor.submit(new Callable<Map<String, Class>>() {
+                        @Override
+                        public Map<String, Class> call() throws Exception {
+                            barrier.await();
+
+                            Map<String, Class> res = new HashMap<String, Class>();
+                            for (String className : classes) {
+                                res.put(className, loader.loadClass(className));
+                            }
+                            return res;
+                        }
+                    }));
+                }
+
+                Map<String, Class> first = futures.get(0).get();
+                assert first.size() == guavaClasses.size();
+
+                for (Future<Map<String, Class>> future : futures) {
+                    Map<String, Class> loaded = future.get();
+
+                    for (Map.Entry<String, Class> entry : loaded.entrySet()) {
+                        assert entry.getValue() == first.get(entry.getKey()) : entry.getKey();
+                        assert entry.getValue().getClassLoader() == loader : entry.getKey();
+                    }
+                }
+
+                // Locks of loaded and not found names are dropped
+                try {
+                    loader.loadClass("com.google.common.base.NotExistingClass");
+                    assert false;
+                } catch (ClassNotFoundException ignored) {
+
+                }
+
+                assert loader.getClassLockCount() == 0 : loader.getClassLockCount();
+            } finally {
+                executor.shutdown();
+            }
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testPrefetching() throws Exception {
+        List<String> loadOrder = new ArrayList<String>(guavaClasses);
+        Collections.shuffle(loadOrder, new Random(97));
+
+        List<String> profile = new ArrayList<String>();
+        for (String className : loadOrder) {
+            profile.add(className.replace('.', '/'));
+        }
+
+        Map<String, String> expected = new HashMap<String, String>();
+
+        PackClassLoader plainLoader = new PackClassLoader(null, packedGuava);
+        try {
+            for (String className : loadOrder) {
+                expected.put(className, describe(plainLoader.loadClass(className)));
+            }
+        } finally {
+            plainLoader.close();
+        }
+
+        PackClassLoader loader = new PackClassLoader(null, packedGuava);
+
+        try {
+            ClassPrefetcher prefetcher = loader.startPrefetching(profile, 2, 64, 1024 * 1024);
+
+            // Let the workers get ahead, otherwise on a slow machine every class may be unpacked by the loader itself
+            for (long end = System.currentTimeMillis() + 10000; prefetcher.getCachedBytes() == 0; ) {
+                assert System.currentTimeMillis() < end : prefetcher;
+                Thread.sleep(1);
+            }
+
+            for (String className : loadOrder) {
+                assert describe(loader.loadClass(className)).equals(expected.get(className)) : className;
+            }
+
+            prefetcher.close();
+
+            assert prefetcher.getHitCount() > 0 : prefetcher;
+            assert prefetcher.getHitCount() + prefetcher.getMissCount() <= loadOrder.size() : prefetcher;
+            assert prefetcher.getPrefetchedCount() == prefetcher.getHitCount() + prefetcher.getWastedCount() : prefetcher;
+            assert prefetcher.getCachedBytes() == 0 : prefetcher;
+        } finally {
+            loader.close();
+        }
+    }
+
+    /**
+     * @return the declaration of the class and its members, classes defined from the same bytes have equal descriptions.
+     */
+    private static String describe(Class<?> aClass) {
+        StringBuilder res = new StringBuilder();
+
+        res.append(aClass.getModifiers()).append(' ').append(aClass.getName());
+        res.append(" extends ").append(aClass.getSuperclass());
+        res.append(" implements ").append(Arrays.toString(aClass.getInterfaces()));
+
+        for (Field field : aClass.getDeclaredFields()) {
+            res.append('\n').append(field);
+        }
+
+        for (Method method : aClass.getDeclaredMethods()) {
+            res.append('\n').append(method);
+        }
+
+        for (Constructor<?> constructor : aClass.getDeclaredConstructors()) {
+            res.append('\n').append(constructor);
+        }
+
+        return res.toString();
+    }
+
+    @Test
+    public void testLoadOrderLayout() throws Exception {
+        List<String> loadOrder = new ArrayList<String>(guavaClasses);
+        Collections.shuffle(loadOrder, new Random(31));
+        loadOrder = loadOrder.subList(0, 100);
+
+        File trace = File.createTempFile("loadOrder", ".txt");
+        trace.deleteOnExit();
+
+        PackClassLoader loader = new PackClassLoader(null, packedGuava);
+
+        try {
+            LoadOrderRecorder recorder = new LoadOrderRecorder(trace);
+            loader.setLoadOrderRecorder(recorder);
+
+            for (String className : loadOrder) {
+                loader.loadClass(className);
+            }
+
+            recorder.close();
+        } finally {
+            loader.close();
+        }
+
+        List<String> trail = LoadOrderProfile.read(trace);
+
+        // Super classes and interfaces are loaded as well, so the trace may be longer than the list of requested classes
+        for (String className : loadOrder) {
+            assert trail.contains(className.replace('.', '/')) : className;
+        }
+
+        Config cfg = new Config();
+        cfg.setLoadOrderFile(trace);
+
+        File packed = TestUtils.createTmpPackFile("packedGuava-ordered");
+
+        JarPacker packer = new JarPacker(cfg);
+        packer.addJar(TestUtils.getJarByMarker("com/google/common/base/Objects.class"));
+        packer.writeResult(packed);
+        packer.checkResult(packed);
+
+        List<String> classEntries = new ArrayList<String>();
+
+        JarFile jarFile = new JarFile(packed);
+        try {
+            for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                String name = entries.nextElement().getName();
+                if (name.endsWith(".class")) {
+                    classEntries.add(name.substring(0, name.length() - ".class".length()));
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+
+        assert classEntries.subList(0, trail.size()).equals(trail);
+        assert classEntries.size() == guavaClasses.size();
+    }
+
+    @Test
+    public void testClassCache() throws Exception {
+        File cacheDir = File.createTempFile("classCache", "");
+        assert cacheDir.delete() && cacheDir.mkdir();
+
+        List<String> classes = new ArrayList<String>(guavaClasses);
+        Collections.shuffle(classes, new Random(7));
+        classes = classes.subList(0, 200);
+
+        File cacheFile;
+
+        PackClassLoader loader = new PackClassLoader(null, packedGuava);
+        try {
+            UnpackedClassCache cache = loader.openClassCache(cacheDir);
+            cacheFile = cache.getCacheFile();
+
+            for (String className : classes) {
+                loader.loadClass(className);
+            }
+
+            assert cache.getHitCount() == 0;
+            assert !cacheFile.exists();
+
+            assert cache.getPendingCount() >= classes.size() : cache.getPendingCount(); // and the supertypes
+
+            cache.flush();
+
+            // The flushed classes are served from the written file
+            assert cache.getPendingCount() == 0 : cache.getPendingCount();
+            assert cache.get(classes.get(0).replace('.', '/')) != null;
+            assert cache.getHitCount() == 1;
+        } finally {
+            loader.close();
+        }
+
+        assert cacheFile.isFile();
+
+        loader = new PackClassLoader(null, packedGuava);
+        try {
+            UnpackedClassCache cache = loader.openClassCache(cacheDir);
+            assert cache.getCacheFile().equals(cacheFile);
+
+            for (String className : classes) {
+                String jvmClassName = className.replace('.', '/');
+
+                ByteBuffer cached = cache.get(jvmClassName);
+                assert cached != null : className;
+
+                byte[] cachedData = new byte[cached.remaining()];
+                cached.get(cachedData);
+                assert Arrays.equals(cachedData, loader.unpackClass(jvmClassName)) : className;
+
+                assert loader.loadClass(className).getClassLoader() == loader;
+            }
+
+            assert cache.getMissCount() == 0 : cache;
+        } finally {
+            loader.close();
+        }
+
+        java.nio.file.Path cachePath = cacheFile.toPath();
+        if (java.nio.file.Files.getFileStore(cachePath).supportsFileAttributeView("posix")) {
+            assert java.nio.file.Files.getPosixFilePermissions(cachePath).equals(PosixFilePermissions.fromString("rw-------"))
+                    : java.nio.file.Files.getPosixFilePermissions(cachePath);
+        }
+
+        // A damaged class is unpacked from the pack again and the next flush writes a good copy
+        String damagedClass = classes.get(0).replace('.', '/');
+
+        loader = new PackClassLoader(null, packedGuava);
+        try {
+            byte[] classData = loader.unpackClass(damagedClass);
+
+            byte[] fileData = java.nio.file.Files.readAllBytes(cachePath);
+            int pos = Bytes.indexOf(fileData, classData);
+            assert pos > 0;
+            fileData[pos + classData.length / 2] ^= 1;
+            java.nio.file.Files.write(cachePath, fileData);
+
+            UnpackedClassCache cache = loader.openClassCache(cacheDir);
+
+            assert cache.get(damagedClass) == null;
+            assert cache.getMissCount() == 1;
+
+            assert loader.loadClass(classes.get(0)).getClassLoader() == loader;
+            assert cache.getPendingCount() == 1;
+        } finally {
+            loader.close();
+        }
+
+        loader = new PackClassLoader(null, packedGuava);
+        try {
+            UnpackedClassCache cache = loader.openClassCache(cacheDir);
+
+            ByteBuffer cached = cache.get(damagedClass);
+            assert cached != null;
+
+            byte[] cachedData = new byte[cached.remaining()];
+            cached.get(cachedData);
+            assert Arrays.equals(cachedData, loader.unpackClass(damagedClass));
+        } finally {
+            loader.close();
+        }
+
+        assert cacheDir.list().length == 1 : Arrays.toString(cacheDir.list());
+
+        cacheFile.delete();
+        cacheDir.delete();
+    }
+
+    @Test
+    public void testSingleBlob() throws Exception {
+        Config cfg = new Config();
+        cfg.setSingleBlob(true);
+
+        File packed = TestUtils.createTmpPackFile("packedGuava-blob");
+
+        JarPacker packer = new JarPacker(cfg);
+        packer.addJar(TestUtils.getJarByMarker("com/google/common/base/Objects.class"));
+        packer.writeResult(packed);
+        packer.checkResult(packed);
+
+        JarFile jarFile = new JarFile(packed);
+        try {
+            assert jarFile.getEntry(PackClassLoader.CLASSES_ENTRY_NAME) != null;
+
+            for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                assert !entries.nextElement().getName().endsWith(".class");
+            }
+        } finally {
+            jarFile.close();
+        }
+
+        PackClassLoader loader = new PackClassLoader(null, packed);
+        try {
+            for (String className : guavaClasses) {
+                assert loader.loadClass(className).getClassLoader() == loader : className;
+            }
+
+            assert loader.unpackClass("com/google/common/base/NotExistingClass") == null;
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testSolidBlocks() throws Exception {
+        Config cfg = new Config();
+        cfg.setSolidBlockSize(32 * 1024);
+
+        File packed = TestUtils.createTmpPackFile("packedGuava-solid");
+
+        JarPacker packer = new JarPacker(cfg);
+        packer.addJar(TestUtils.getJarByMarker("com/google/common/base/Objects.class"));
+        packer.writeResult(packed);
+        packer.checkResult(packed);
+
+        assert packed.length() < packedGuava.length();
+
+        PackClassLoader loader = new PackClassLoader(null, packed);
+        try {
+            SolidBlocks solidBlocks = loader.getSolidBlocks();
+            assert solidBlocks != null;
+
+            // every block is inflated once, other classes of the block are taken from the cache
+            for (String className : guavaClasses) {
+                assert loader.loadClass(className).getClassLoader() == loader : className;
+            }
+
+            assert solidBlocks.getMissCount() == solidBlocks.getBlockCount() : solidBlocks;
+            assert solidBlocks.getHitCount() > 0;
+
+            solidBlocks.setMaxCachedBytes(0);
+            assert solidBlocks.getCachedBytes() == 0;
+
+            // evicted blocks are inflated again
+            List<String> classNames = new ArrayList<String>(guavaClasses);
+            Collections.shuffle(classNames, new Random(5));
+
+            for (String className : classNames.subList(0, 100)) {
+                byte[] classData = loader.unpackClass(className.replace('.', '/'));
+                assert classData != null : className;
+            }
+
+            assert solidBlocks.getMissCount() == solidBlocks.getBlockCount() + 100 : solidBlocks;
+        } finally {
+            loader.close();
+        }
+
+        // Threads missing on the same block wait for one decoding
+        final PackClassLoader parallelLoader = new PackClassLoader(null, packed);
+        try {
+            int threadCount = 4;
+
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+            try {
+                final CyclicBarrier barrier = new CyclicBarrier(threadCount);
+
+                List<Future<?>> futures = new ArrayList<Future<?>>();
+
+                for (int i = 0; i < threadCount; i++) {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            barrier.await();
+
+                            for (String className : guavaClasses) {
+                                assert parallelLoader.unpackClass(className.replace('.', '/')) != null : className;
+                            }
+                            return null;
+                        }
+                    }));
+                }
+
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            SolidBlocks solidBlocks = parallelLoader.getSolidBlocks();
+            assert solidBlocks.getMissCount() == solidBlocks.getBlockCount() : solidBlocks;
+        } finally {
+            parallelLoader.close();
+        }
+    }
+
+    @Test
+    public void testPackageIndex() throws Exception {
+        PackClassLoader loader = new PackClassLoader(null, packedGuava);
+
+        try {
+            PackageIndex index = loader.getPackageIndex();
+
+            for (String className : guavaClasses) {
+                assert index.mayContainClass(className) : className;
+                assert index.ownsPackage(className) : className;
+            }
+
+            assert !index.ownsPackage("java.lang.String");
+            assert !index.ownsPackage("com.google.Foo");
+
+            int falsePositives = 0;
+            for (String className : guavaClasses) {
+                if (index.mayContainClass(className + "Missing")) {
+                    falsePositives++;
+                }
+            }
+
+            assert falsePositives < guavaClasses.size() / 20 : falsePositives;
+
+            loader.setOwnPackagesFirst(true);
+
+            for (String className : guavaClasses.subList(0, 100)) {
+                assert loader.loadClass(className).getClassLoader() == loader : className;
+            }
+
+            assert loader.loadClass("java.lang.String") == String.class;
+
+            try {
+                loader.loadClass("com.google.common.base.NotExistingClass");
+                assert false;
+            } catch (ClassNotFoundException ignored) {
+
+            }
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testClassMetadataIndex() throws Exception {
+        Config cfg = new Config();
+        cfg.setClassIndex(true);
+
+        File packed = TestUtils.createTmpPackFile("packedGuava-classIndex");
+
+        JarPacker packer = new JarPacker(cfg);
+        packer.addJar(TestUtils.getJarByMarker("com/google/common/base/Objects.class"));
+        packer.writeResult(packed);
+        packer.checkResult(packed);
+
+        PackClassLoader loader = new PackClassLoader(null, packed);
+        try {
+            final ClassMetadataIndex index = loader.getClassMetadataIndex();
+            assert index == loader.getClassMetadataIndex();
+
+            assert index.getClassCount() == guavaClasses.size();
+
+            final Map<String, List<String>> subclasses = new HashMap<String, List<String>>();
+            final Map<String, List<String>> implementations = new HashMap<String, List<String>>();
+            final Map<String, List<String>> annotated = new HashMap<String, List<String>>();
+
+            for (String className : guavaClasses) {
+                final String jvmName = className.replace('.', '/');
+
+                final int i = index.indexOf(jvmName);
+                assert i >= 0 && index.getClassName(i).equals(jvmName) : className;
+
+                new ClassReader(loader.unpackClass(jvmName)).accept(new ClassVisitor(Opcodes.ASM5) {
+                    @Override
+                    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                        assert index.getAccess(i) == (access & 0xFFFF) : name;
+                        assert Objects.equals(index.getSuperClass(i), superName) : name;
+                        assert Arrays.equals(index.getInterfaces(i), interfaces) : name;
+
+                        put(subclasses, superName, name);
+                        for (String itf : interfaces) {
+                            put(implementations, itf, name);
+                        }
+                    }
+
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                        String type = Type.getType(desc).getInternalName();
+                        assert Arrays.asList(index.getAnnotations(i)).contains(type) : jvmName;
+
+                        put(annotated, type, jvmName);
+                        return null;
+                    }
+                }, ClassReader.SKIP_CODE);
+            }
+
+            assert annotated.containsKey("com/google/common/annotations/GwtCompatible");
+
+            for (Map.Entry<String, List<String>> entry : subclasses.entrySet()) {
+                assert new HashSet<String>(index.findSubclasses(entry.getKey())).equals(new HashSet<String>(entry.getValue()));
+            }
+            for (Map.Entry<String, List<String>> entry : implementations.entrySet()) {
+                assert new HashSet<String>(index.findImplementations(entry.getKey())).equals(new HashSet<String>(entry.getValue()));
+            }
+            for (Map.Entry<String, List<String>> entry : annotated.entrySet()) {
+                assert new HashSet<String>(index.findAnnotatedClasses(entry.getKey())).equals(new HashSet<String>(entry.getValue()));
+            }
+
+            assert index.indexOf("com/google/common/base/NotExistingClass") < 0;
+            assert index.findSubclasses("com/google/common/base/NotExistingClass").isEmpty();
+
+        } finally {
+            loader.close();
+        }
+
+        PackClassLoader loaderWithoutIndex = new PackClassLoader(null, packedGuava);
+        try {
+            assert loaderWithoutIndex.getClassMetadataIndex() == null;
+        } finally {
+            loaderWithoutIndex.close();
+        }
+    }
+
+    private static void put(Map<String, List<String>> map, String key, String value) {
+        if (key == null) return;
+
+        List<String> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<String>();
+            map.put(key, list);
+        }
+
+        list.add(value);
+    }
+
+    @Test
+    public void testResources() throws Exception {
+        String name = "META-INF/maven/com.google.guava/guava/pom.xml";
+
+        byte[] expected;
+
+        JarFile jarFile = new JarFile(TestUtils.getJarByMarker("com/google/common/base/Objects.class"));
+        try {
+            expected = ByteStreams.toByteArray(jarFile.getInputStream(jarFile.getEntry(name)));
+        } finally {
+            jarFile.close();
+        }
+
+        PackClassLoader loader = new PackClassLoader(null, packedGuava);
+
+        try {
+            InputStream in = loader.getResourceAsStream(name);
+            assert in != null;
+            try {
+                assert Arrays.equals(ByteStreams.toByteArray(in), expected);
+            } finally {
+                in.close();
+            }
+
+            URL url = loader.getResource(name);
+            assert url.toString().equals("jloader:" + packedGuava.toURI().toURL() + "!/" + name) : url;
+
+            in = url.openStream();
+            try {
+                assert Arrays.equals(ByteStreams.toByteArray(in), expected);
+            } finally {
+                in.close();
+            }
+
+            // Only the loader can open its URLs, a URL rebuilt from the string must not read the packed bytes
+            for (URL ownUrl : Arrays.asList(url, loader.getResource("com/google/common/base/Objects.class"))) {
+                try {
+                    new URL(ownUrl.toExternalForm()).openStream().close();
+                    assert false : ownUrl;
+                } catch (MalformedURLException ignored) {
+
+                }
+            }
+
+            assert Collections.list(loader.getResources(name)).equals(Collections.singletonList(url));
+
+            assert loader.getResource("com/google/common/base") != null; // directory
+
+            assert loader.getResource("com/google/common/base/NotExisting.txt") == null;
+            assert loader.getResourceAsStream("com/google/common/base/NotExisting.txt") == null;
+            assert !loader.getResources("com/google/common/base/NotExisting.txt").hasMoreElements();
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testClassResources() throws Exception {
+        PackClassLoader loader = new PackClassLoader(null, packedGuava);
+
+        try {
+            ClassResourceCache cache = loader.getClassResourceCache();
+
+            String className = "com.google.common.base.Objects";
+            String resourceName = className.replace('.', '/') + ".class";
+
+            byte[] expected = loader.unpackClass(className.replace('.', '/'));
+
+            InputStream in = loader.getResourceAsStream(resourceName);
+            try {
+                assert Arrays.equals(ByteStreams.toByteArray(in), expected);
+            } finally {
+                in.close();
+            }
+
+            URLConnection connection = loader.getResource(resourceName).openConnection();
+            assert connection.getContentLength() == expected.length;
+
+            in = connection.getInputStream();
+            try {
+                assert Arrays.equals(ByteStreams.toByteArray(in), expected);
+            } finally {
+                in.close();
+            }
+
+            assert cache.getClassCount() == 1 : cache;
+
+            // The bytes read as a resource are used to define the class
+            assert loader.loadClass(className).getClassLoader() == loader;
+            assert cache.getClassCount() == 0 : cache;
+
+            // A class that has not been read as a resource is a miss
+            long missCount = cache.getMissCount();
+            loader.loadClass("com.google.common.base.Joiner");
+            assert cache.getMissCount() > missCount : cache;
+
+            assert loader.getResource("com/google/common/base/NotExisting.class") == null;
+
+            cache.setMaxBytes(expected.length * 3);
+            for (String name : guavaClasses.subList(0, 50)) {
+                loader.getResourceAsStream(name.replace('.', '/') + ".class").close();
+            }
+            assert cache.getSize() <= expected.length * 3 : cache;
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testDelegationToBootstrap() throws Exception {
+        PackClassLoader loader = new PackClassLoader(null, packedGuava);
+
+        try {
+            assert loader.loadClass("java.lang.String") == String.class;
+
+            try {
+                loader.loadClass("com.google.common.base.NotExistingClass");
+                assert false;
+            } catch (ClassNotFoundException ignored) {
+
+            }
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        PackClassLoader loader = new PackClassLoader(null, packedGuava);
+
+        assert loader.unpackClass("com/google/common/base/Objects").length > 0;
+
+        loader.close();
+
+        try {
+            loader.unpackClass("com/google/common/base/Objects");
+            assert false;
+        } catch (IOException ignored) {
+
+        }
+    }
+}
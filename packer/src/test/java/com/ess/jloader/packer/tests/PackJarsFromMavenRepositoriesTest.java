@@ -2,12 +2,19 @@ package com.ess.jloader.packer.tests;
 
 import com.ess.jloader.packer.Config;
 import com.ess.jloader.packer.JarPacker;
+import com.ess.jloader.utils.Codec;
+import com.google.common.io.ByteStreams;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestName;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * @author Sergey Evdokimov
@@ -32,6 +39,113 @@ public class PackJarsFromMavenRepositoriesTest {
         doTest("org/codehaus/groovy/transform/stc/Receiver.class");
     }
 
+    @Test
+    public void packInParallel() throws IOException {
+        File sourceJar = TestUtils.getJarByMarker("freemarker/core/Assignment.class");
+
+        File[] packedJars = new File[2];
+        int[] threadCounts = {1, 4};
+
+        for (int i = 0; i < packedJars.length; i++) {
+            Config cfg = new Config();
+            cfg.setThreadCount(threadCounts[i]);
+
+            packedJars[i] = TestUtils.createTmpPackFile(name.getMethodName() + threadCounts[i]);
+
+            JarPacker packer = new JarPacker(cfg);
+            packer.addJar(sourceJar);
+            packer.writeResult(packedJars[i]);
+
+            packer.checkResult(packedJars[i]);
+        }
+
+        assertSameEntries(packedJars[0], packedJars[1]);
+    }
+
+    @Test
+    public void packStreaming() throws IOException {
+        File sourceJar = TestUtils.getJarByMarker("freemarker/core/Assignment.class");
+
+        File[] packedJars = new File[2];
+
+        for (int i = 0; i < packedJars.length; i++) {
+            Config cfg = new Config();
+            cfg.setClassIndex(true);
+
+            if (i == 1) {
+                cfg.setStreaming(true);
+                cfg.setMemoryBudget(1024 * 1024);
+            }
+
+            packedJars[i] = TestUtils.createTmpPackFile(name.getMethodName() + i);
+
+            JarPacker packer = new JarPacker(cfg);
+            packer.addJar(sourceJar);
+            packer.writeResult(packedJars[i]);
+
+            packer.checkResult(packedJars[i]);
+        }
+
+        assertSameEntries(packedJars[0], packedJars[1]);
+    }
+
+    @Test
+    public void packLz() throws IOException {
+        File sourceJar = TestUtils.getJarByMarker("freemarker/core/Assignment.class");
+
+        for (int solidBlockSize : new int[]{0, 32 * 1024}) {
+            Config cfg = new Config();
+            cfg.setCodec(Codec.LZ);
+            cfg.setSolidBlockSize(solidBlockSize);
+
+            File packedJar = TestUtils.createTmpPackFile(name.getMethodName() + solidBlockSize);
+
+            JarPacker packer = new JarPacker(cfg);
+            packer.addJar(sourceJar);
+            packer.writeResult(packedJar);
+
+            packer.checkResult(packedJar);
+        }
+    }
+
+    /**
+     * Compares names and content of entries, the time of entries created by the packer differs from run to run.
+     */
+    private static void assertSameEntries(File jar1, File jar2) throws IOException {
+        ZipFile zip1 = new ZipFile(jar1);
+        ZipFile zip2 = new ZipFile(jar2);
+
+        try {
+            Enumeration<? extends ZipEntry> entries1 = zip1.entries();
+            Enumeration<? extends ZipEntry> entries2 = zip2.entries();
+
+            while (entries1.hasMoreElements()) {
+                assert entries2.hasMoreElements();
+
+                ZipEntry entry1 = entries1.nextElement();
+                ZipEntry entry2 = entries2.nextElement();
+
+                assert entry1.getName().equals(entry2.getName()) : entry1.getName() + " " + entry2.getName();
+                assert entry1.getMethod() == entry2.getMethod() : entry1.getName();
+                assert Arrays.equals(read(zip1, entry1), read(zip2, entry2)) : entry1.getName();
+            }
+
+            assert !entries2.hasMoreElements();
+        } finally {
+            zip1.close();
+            zip2.close();
+        }
+    }
+
+    private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException {
+        InputStream in = zip.getInputStream(entry);
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
     private void doTest(String marker) throws IOException {
         File sourceJar = TestUtils.getJarByMarker(marker);
 
@@ -0,0 +1,156 @@
+package com.ess.jloader.packer.tests;
+
+import com.ess.jloader.utils.FastInput;
+import com.ess.jloader.utils.RawInflater;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * @author Sergey Evdokimov
+ */
+public class RawInflaterTest {
+
+    private static byte[] deflate(byte[] data, byte[] dictionary, int level, int strategy) {
+        Deflater deflater = new Deflater(level, true);
+        deflater.setStrategy(strategy);
+
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+
+        deflater.setInput(data);
+        deflater.finish();
+
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        byte[] buff = new byte[1024];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buff);
+            res.write(buff, 0, n);
+        }
+
+        deflater.end();
+
+        return res.toByteArray();
+    }
+
+    /**
+     * @return text-like data with many repeats, some of them from the dictionary.
+     */
+    private static byte[] generate(Random rnd, byte[] dictionary, int size) {
+        String[] words = {"java/lang/Object", "getValue", "(Ljava/lang/String;)V", "Code", "this", "<init>", "I", "J"};
+
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+
+        while (res.size() < size) {
+            switch (rnd.nextInt(4)) {
+                case 0:
+                    byte[] word = words[rnd.nextInt(words.length)].getBytes();
+                    res.write(word, 0, word.length);
+                    break;
+
+                case 1:
+                    int len = 1 + rnd.nextInt(100);
+                    int from = rnd.nextInt(dictionary.length - len);
+                    res.write(dictionary, from, len);
+                    break;
+
+                case 2:
+                    int b = rnd.nextInt(256);
+                    for (int i = rnd.nextInt(300); i >= 0; i--) {
+                        res.write(b);
+                    }
+                    break;
+
+                default:
+                    res.write(rnd.nextInt(256));
+            }
+        }
+
+        return res.toByteArray();
+    }
+
+    private static void check(byte[] data, byte[] dictionary, int level, int strategy) throws IOException {
+        byte[] compressed = deflate(data, dictionary, level, strategy);
+
+        byte[] paddedDictionary = new byte[dictionary.length + 10];
+        System.arraycopy(dictionary, 0, paddedDictionary, 5, dictionary.length);
+
+        RawInflater inflater = new RawInflater(paddedDictionary, 5, dictionary.length);
+
+        FastInput out = new FastInput(16);
+        inflater.inflate(compressed, 0, compressed.length, out);
+
+        assert out.pos == 0;
+        assert out.limit == data.length : "level=" + level + ", strategy=" + strategy;
+        assert Arrays.equals(Arrays.copyOf(out.array, out.limit), data) : "level=" + level + ", strategy=" + strategy;
+
+        // decode() reuses the workspace of the instance, the second call must not see the state of the first one
+        for (int i = 0; i < 2; i++) {
+            FastInput decoded = new FastInput(16);
+            inflater.decode(compressed, 0, compressed.length, decoded);
+
+            assert Arrays.equals(Arrays.copyOf(decoded.array, decoded.limit), data) : "level=" + level + ", strategy=" + strategy;
+        }
+    }
+
+    @Test
+    public void testAgainstDeflater() throws IOException {
+        Random rnd = new Random(5);
+
+        byte[] dictionary = new byte[40000];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = (byte) ('a' + rnd.nextInt(20));
+        }
+
+        int[] strategies = {Deflater.DEFAULT_STRATEGY, Deflater.FILTERED, Deflater.HUFFMAN_ONLY};
+
+        for (int size : new int[]{0, 1, 10, 300, 5000, 100000}) {
+            byte[] data = generate(rnd, dictionary, size);
+
+            for (int level = 0; level <= 9; level++) {
+                for (int strategy : strategies) {
+                    check(data, dictionary, level, strategy);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMatchCrossingDictionaryEnd() throws IOException {
+        byte[] dictionary = "0123456789abcdefghijklmnopqrstuvwxyz".getBytes();
+
+        // "uvwxyz" is taken from the dictionary end, the match continues with the beginning of the output
+        byte[] data = "uvwxyzuvwxyzuvwxyzuvwxyz-0123456789".getBytes();
+
+        check(data, dictionary, 9, Deflater.DEFAULT_STRATEGY);
+    }
+
+    @Test
+    public void testCorruptedData() throws IOException {
+        byte[] dictionary = new byte[10];
+
+        RawInflater inflater = new RawInflater(dictionary, 0, dictionary.length);
+
+        try {
+            inflater.inflate(new byte[]{(byte) 0xFF, (byte) 0xFF}, 0, 2, new FastInput(16)); // block type 3
+            assert false;
+        } catch (ZipException ignored) {
+
+        }
+
+        byte[] data = deflate(new byte[1000], null, 9, Deflater.DEFAULT_STRATEGY);
+
+        try {
+            inflater.inflate(data, 0, data.length / 2, new FastInput(16));
+            assert false;
+        } catch (IOException ignored) {
+
+        }
+    }
+}